@@ -0,0 +1,88 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.NullConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.raaf.logelastic.log4j.layout.ElasticLayout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@code Logger.info} with an Elastic appender attached, from the calling thread's point of view, against an
+ * in-process stand-in for Elasticsearch.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppenderBenchmark {
+
+    /**
+     * {@code direct} posts every event from the logging thread, {@code bulk} batches them, and {@code asyncBulk}
+     * also hands them to a sender thread first.
+     */
+    @Param({"direct", "bulk", "asyncBulk"})
+    private String mode;
+
+    private StubElasticsearch elasticsearch;
+    private LoggerContext context;
+    private Logger logger;
+
+    @Setup
+    public void setUp() throws Exception {
+        elasticsearch = new StubElasticsearch();
+        elasticsearch.record(false);
+        elasticsearch.respond(request -> new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}"));
+
+        context = new LoggerContext("benchmark");
+        context.start(new NullConfiguration());
+        final Configuration configuration = context.getConfiguration();
+        final ElasticAppender appender = ElasticAppender.newBuilder()
+                .setConfiguration(configuration)
+                .withName("elastic")
+                .withLayout(ElasticLayout.createDefaultLayout())
+                .setUrl(elasticsearch.url() + "/logs")
+                .setBulk(!mode.equals("direct"))
+                .setAsync(mode.equals("asyncBulk"))
+                .setOverflowPolicy("DROP_NEWEST")
+                .build();
+        appender.start();
+        configuration.addAppender(appender);
+        final LoggerConfig root = configuration.getRootLogger();
+        for (final String name : root.getAppenders().keySet()) {
+            root.removeAppender(name);
+        }
+        root.addAppender(appender, null, null);
+        root.setLevel(Level.INFO);
+        context.updateLoggers();
+        logger = context.getLogger(AppenderBenchmark.class.getName());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.stop(5, TimeUnit.SECONDS);
+        elasticsearch.close();
+    }
+
+    @Benchmark
+    public void info() {
+        logger.info("User {} logged in from {}", "jane", "10.0.0.1");
+    }
+}
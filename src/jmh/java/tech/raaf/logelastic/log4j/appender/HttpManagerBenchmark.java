@@ -0,0 +1,91 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.raaf.logelastic.log4j.layout.ElasticLayout;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures shipping serialized events to an in-process stand-in for Elasticsearch, one at a time and in bulk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class HttpManagerBenchmark {
+
+    private static final int BULK_EVENTS = 100;
+
+    @Param({"none", "gzip"})
+    private String compression;
+
+    private StubElasticsearch elasticsearch;
+    private HttpManager manager;
+    private ElasticLayout layout;
+    private LogEvent event;
+    private byte[] document;
+    private BulkBatch bulk;
+
+    @Setup
+    public void setUp() throws Exception {
+        elasticsearch = new StubElasticsearch();
+        elasticsearch.record(false);
+        elasticsearch.respond(request -> new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}"));
+        final String index = elasticsearch.url() + "/logs";
+        final RequestCompressor.Encoding encoding = RequestCompressor.Encoding.toEncoding(compression);
+        manager = new HttpManager(new DefaultConfiguration(), "benchmark", new URL(index), new URL(index + "/_doc"),
+                new URL(index + "/_bulk"), 1000, 0, null, null, null, true, 4, 30000, null, LoadBalancing.ROUND_ROBIN,
+                false, 0, encoding != null ? new RequestCompressor(encoding, 1, 1024, 4) : null, TransportType.BLOCKING);
+
+        layout = ElasticLayout.createDefaultLayout();
+        event = Log4jLogEvent.newBuilder()
+                .setLoggerName("tech.raaf.logelastic.benchmark.Service")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("Request handled"))
+                .setThreadName("main")
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+        document = layout.toByteArray(event);
+        bulk = new BulkBatch(document.length * BULK_EVENTS * 2);
+        for (int i = 0; i < BULK_EVENTS; i++) {
+            bulk.add(document);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.stop(1, TimeUnit.SECONDS);
+        elasticsearch.close();
+    }
+
+    @Benchmark
+    public boolean send() throws Exception {
+        return manager.send(layout, event, document, document.length);
+    }
+
+    @Benchmark
+    public byte[] sendBulk() throws Exception {
+        return manager.sendBulk(bulk.array(), bulk.byteSize());
+    }
+}
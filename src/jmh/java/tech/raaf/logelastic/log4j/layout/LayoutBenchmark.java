@@ -0,0 +1,109 @@
+package tech.raaf.logelastic.log4j.layout;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing single events with the layouts, for events of different shapes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LayoutBenchmark {
+
+    @Param({"plain", "parameterized", "largeMdc", "deepStackTrace"})
+    private String shape;
+
+    @Param({"streaming", "jackson", "ecs"})
+    private String layoutType;
+
+    private Layout<?> layout;
+    private LogEvent event;
+
+    @Setup
+    public void setUp() {
+        switch (layoutType) {
+            case "streaming":
+                layout = ElasticLayout.newBuilder().setProperties(true).setStreaming(true).build();
+                break;
+            case "jackson":
+                layout = ElasticLayout.newBuilder().setProperties(true).setStreaming(false).build();
+                break;
+            default:
+                layout = EcsLayout.newBuilder().setServiceName("benchmark").setProperties(true).build();
+                break;
+        }
+
+        final Log4jLogEvent.Builder builder = Log4jLogEvent.newBuilder()
+                .setLoggerName("tech.raaf.logelastic.benchmark.Service")
+                .setLoggerFqcn("org.apache.logging.log4j.spi.AbstractLogger")
+                .setLevel(Level.INFO)
+                .setThreadName("main")
+                .setThreadId(1)
+                .setTimeMillis(System.currentTimeMillis());
+        switch (shape) {
+            case "plain":
+                builder.setMessage(new SimpleMessage("Request handled"));
+                break;
+            case "parameterized":
+                builder.setMessage(new ParameterizedMessage("User {} logged in from {} after {} attempts",
+                        "jane", "10.0.0.1", 3));
+                break;
+            case "largeMdc":
+                final SortedArrayStringMap contextData = new SortedArrayStringMap();
+                for (int i = 0; i < 50; i++) {
+                    contextData.putValue("key" + i, "value of key number " + i);
+                }
+                builder.setMessage(new SimpleMessage("Request handled")).setContextData(contextData);
+                break;
+            default:
+                builder.setLevel(Level.ERROR)
+                        .setMessage(new SimpleMessage("Request failed"))
+                        .setThrown(deepException(100));
+                break;
+        }
+        event = builder.build();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return layout.toByteArray(event);
+    }
+
+    private static Exception deepException(final int depth) {
+        try {
+            recurse(depth);
+            throw new AssertionError();
+        } catch (IllegalStateException e) {
+            return new RuntimeException("Wrapped", e);
+        }
+    }
+
+    private static void recurse(final int depth) {
+        if (depth == 0) {
+            throw new IllegalStateException("Too deep");
+        }
+        recurse(depth - 1);
+    }
+}
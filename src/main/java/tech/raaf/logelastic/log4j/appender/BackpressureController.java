@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes bulk requests and limits how many are in flight from the backpressure Elasticsearch gives.
+ * <p>
+ * The controller adjusts like TCP congestion control, additive increase and multiplicative decrease. Every round of
+ * responses without backpressure allows one more request in flight and somewhat larger batches, up to the configured
+ * maximums. A throttled response, a 429 or 503 status for the request or for some of its items, or a response slower
+ * than the target latency halves both. The requests that were in flight at that point likely saw the same overload,
+ * so their signals don't halve the limits again.
+ * </p>
+ */
+final class BackpressureController {
+
+    private static final long MIN_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int maxConcurrency;
+    private final int maxBatchEvents;
+    private final int minBatchEvents;
+    private final int batchStep;
+    private final long targetLatencyNanos;
+
+    private int concurrency = 1;
+    private volatile int batchEvents;
+    private int inFlight;
+    private int successes;
+    private long holdUntilNanos = System.nanoTime();
+    private boolean closed;
+
+    /**
+     * @param maxConcurrency the maximum number of requests in flight.
+     * @param maxBatchEvents the maximum number of events per batch, which is where batches start.
+     * @param targetLatencyMillis the latency above which a response counts as backpressure, 0 to ignore latency.
+     */
+    BackpressureController(final int maxConcurrency, final int maxBatchEvents, final long targetLatencyMillis) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxBatchEvents = maxBatchEvents;
+        this.minBatchEvents = Math.max(1, maxBatchEvents / 32);
+        this.batchStep = Math.max(1, maxBatchEvents / 16);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.batchEvents = maxBatchEvents;
+    }
+
+    /**
+     * Waits until another request may be sent.
+     *
+     * @return false if the controller was closed, so nothing may be sent anymore.
+     * @throws InterruptedException when the thread is interrupted while waiting.
+     */
+    synchronized boolean acquire() throws InterruptedException {
+        while (!closed && inFlight >= concurrency) {
+            wait();
+        }
+        if (closed) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Hands back what {@link #acquire()} took, once the request is done.
+     */
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Allows the maximum number of requests in flight from now on, such as to send the last batches at once when the
+     * appender stops.
+     */
+    synchronized void open() {
+        concurrency = maxConcurrency;
+        notifyAll();
+    }
+
+    /**
+     * Lets all waiting and future calls of {@link #acquire()} fail, such as when the appender ran out of time to stop.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Records the outcome of a bulk request that got a response.
+     *
+     * @param latencyNanos how long the request took.
+     * @param throttled whether Elasticsearch rejected the request or some of its items as overloaded.
+     */
+    synchronized void onResponse(final long latencyNanos, final boolean throttled) {
+        if (throttled || targetLatencyNanos > 0 && latencyNanos > targetLatencyNanos) {
+            decrease(latencyNanos);
+        } else if (++successes >= concurrency) {
+            successes = 0;
+            concurrency = Math.min(maxConcurrency, concurrency + 1);
+            batchEvents = Math.min(maxBatchEvents, batchEvents + batchStep);
+            notifyAll();
+        }
+    }
+
+    private void decrease(final long latencyNanos) {
+        final long now = System.nanoTime();
+        if (now - holdUntilNanos < 0) {
+            return;
+        }
+        holdUntilNanos = now + Math.max(MIN_HOLD_NANOS, latencyNanos);
+        successes = 0;
+        concurrency = Math.max(1, concurrency / 2);
+        batchEvents = Math.max(minBatchEvents, batchEvents / 2);
+    }
+
+    /**
+     * @return the number of requests that may be in flight.
+     */
+    synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the number of events at which a batch is sent.
+     */
+    int getBatchEvents() {
+        return batchEvents;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps byte arrays for reuse, so serializing events, assembling bulk batches and reading responses don't allocate
+ * a new array every time.
+ * <p>
+ * Arrays come in size classes, the powers of two from 1 KB up to the largest class, and a request is served from the
+ * smallest class that fits. Released arrays are kept as long as the pool holds fewer than its maximum number of
+ * bytes, and are left to the garbage collector otherwise, as are arrays larger than the largest class. An array that
+ * isn't released is simply collected, so only arrays that are certainly no longer used may be released.
+ * </p>
+ */
+final class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 10;
+
+    private final ConcurrentLinkedQueue<byte[]>[] classes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxBufferBytes the size of the largest class, rounded up to a power of two.
+     * @param maxPooledBytes the maximum total size of the arrays kept for reuse.
+     */
+    @SuppressWarnings("unchecked")
+    BufferPool(final int maxBufferBytes, final long maxPooledBytes) {
+        final int maxShift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, maxBufferBytes) - 1));
+        this.classes = new ConcurrentLinkedQueue[maxShift - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Hands out an array of at least the given size, which may hold data of an earlier use.
+     *
+     * @param minBytes the minimum size.
+     * @return the array.
+     */
+    byte[] acquire(final int minBytes) {
+        final int index = classOf(minBytes);
+        if (index >= classes.length) {
+            misses.increment();
+            return new byte[minBytes];
+        }
+        final byte[] buffer = classes[index].poll();
+        if (buffer == null) {
+            misses.increment();
+            return new byte[1 << index + MIN_CLASS_SHIFT];
+        }
+        pooledBytes.addAndGet(-buffer.length);
+        hits.increment();
+        return buffer;
+    }
+
+    /**
+     * Takes an array back for reuse.
+     *
+     * @param buffer the array, which the caller must not use anymore, may be null.
+     */
+    void release(final byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int index = classOf(buffer.length);
+        // Arrays of other sizes, such as those larger than the largest class, are not pooled.
+        if (index >= classes.length || 1 << index + MIN_CLASS_SHIFT != buffer.length) {
+            return;
+        }
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        classes[index].offer(buffer);
+    }
+
+    /**
+     * Hands out a larger array holding the contents of the given one, and takes the given one back.
+     *
+     * @param buffer the array to grow.
+     * @param used the number of bytes to keep.
+     * @param minBytes the minimum size of the new array.
+     * @return the new array.
+     */
+    byte[] grow(final byte[] buffer, final int used, final int minBytes) {
+        final byte[] larger = acquire(Math.max(minBytes, buffer.length * 2));
+        System.arraycopy(buffer, 0, larger, 0, used);
+        release(buffer);
+        return larger;
+    }
+
+    private static int classOf(final int bytes) {
+        if (bytes <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * @return the number of requests served with a pooled array.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of requests that needed a new array.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the total size of the arrays kept for reuse.
+     */
+    long getPooledBytes() {
+        return pooledBytes.get();
+    }
+}
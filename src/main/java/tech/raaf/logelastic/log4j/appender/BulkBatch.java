@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An NDJSON body for the Elasticsearch bulk API, holding one action line and one document line per item.
+ * <p>
+ * Items are appended into a single growing buffer so the body can be posted without copying. The start offset and
+ * the number of attempts of every item are kept so failed items can be copied into a retry batch.
+ * </p>
+ */
+final class BulkBatch {
+
+    static final byte[] INDEX_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int length;
+    private int[] offsets;
+    private int[] attempts;
+    private int count;
+    private long firstItemMillis;
+
+    BulkBatch(final int initialBytes) {
+        this(initialBytes, null);
+    }
+
+    /**
+     * @param initialBytes the initial capacity of the buffer.
+     * @param pool the pool to take the buffer from, which {@link #release()} hands it back to, or null.
+     */
+    BulkBatch(final int initialBytes, final BufferPool pool) {
+        this.pool = pool;
+        this.buffer = pool != null ? pool.acquire(Math.max(initialBytes, 256)) : new byte[Math.max(initialBytes, 256)];
+        this.offsets = new int[16];
+        this.attempts = new int[16];
+    }
+
+    /**
+     * Appends a serialized document, preceded by its action line.
+     * <p>
+     * Line breaks outside JSON strings are insignificant whitespace, and line breaks inside JSON strings are always
+     * escaped, so any CR or LF byte in the document can safely be turned into a space to keep it on a single line.
+     * </p>
+     *
+     * @param document the serialized document.
+     */
+    void add(final byte[] document) {
+        add(document, document.length);
+    }
+
+    /**
+     * Appends a serialized document, preceded by its action line.
+     *
+     * @param document the buffer holding the serialized document.
+     * @param documentLength the length of the document in the buffer.
+     */
+    void add(final byte[] document, final int documentLength) {
+        add(INDEX_ACTION, document, documentLength);
+    }
+
+    /**
+     * Appends a serialized document, preceded by the given action line.
+     *
+     * @param action the action line, including its line feed.
+     * @param document the buffer holding the serialized document.
+     * @param documentLength the length of the document in the buffer.
+     */
+    void add(final byte[] action, final byte[] document, final int documentLength) {
+        int end = documentLength;
+        while (end > 0 && (document[end - 1] == '\n' || document[end - 1] == '\r' || document[end - 1] == ' ')) {
+            end--;
+        }
+        startItem(0);
+        write(action, 0, action.length);
+        ensureCapacity(end + 1);
+        for (int i = 0; i < end; i++) {
+            final byte b = document[i];
+            buffer[length++] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+        }
+        buffer[length++] = '\n';
+    }
+
+    /**
+     * Copies an item of another batch into this one, counting one more attempt for it.
+     *
+     * @param other the batch holding the item.
+     * @param item the position of the item in the other batch.
+     */
+    void retry(final BulkBatch other, final int item) {
+        startItem(other.attempts[item] + 1);
+        write(other.buffer, other.itemOffset(item), other.itemLength(item));
+    }
+
+    /**
+     * Appends an item that is already in bulk format, such as one read back from the spill log.
+     *
+     * @param bytes the buffer holding the action and document lines.
+     * @param offset the start of the item in the buffer.
+     * @param len the length of the item.
+     */
+    void addItem(final byte[] bytes, final int offset, final int len) {
+        startItem(0);
+        write(bytes, offset, len);
+    }
+
+    int itemOffset(final int item) {
+        return offsets[item];
+    }
+
+    int itemLength(final int item) {
+        return (item + 1 < count ? offsets[item + 1] : length) - offsets[item];
+    }
+
+    int attempts(final int item) {
+        return attempts[item];
+    }
+
+    int size() {
+        return count;
+    }
+
+    int byteSize() {
+        return length;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    long ageMillis(final long now) {
+        return count == 0 ? 0 : now - firstItemMillis;
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Hands the buffer back to its pool once the batch was sent, spilled or dropped. The batch must not be used
+     * afterwards.
+     */
+    void release() {
+        if (pool != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void startItem(final int attempt) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            attempts = Arrays.copyOf(attempts, count * 2);
+        }
+        if (count == 0) {
+            firstItemMillis = System.currentTimeMillis();
+        }
+        offsets[count] = length;
+        attempts[count] = attempt;
+        count++;
+    }
+
+    private void write(final byte[] bytes, final int offset, final int len) {
+        ensureCapacity(len);
+        System.arraycopy(bytes, offset, buffer, length, len);
+        length += len;
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (length + extra > buffer.length) {
+            buffer = pool != null
+                    ? pool.grow(buffer, length, length + extra)
+                    : Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
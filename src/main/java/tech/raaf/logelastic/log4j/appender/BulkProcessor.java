@@ -0,0 +1,577 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accumulates serialized events into bulk batches and ships them to Elasticsearch from a background thread.
+ * <p>
+ * A batch is handed to the flush thread as soon as it holds {@code maxEvents} events or {@code maxBytes} bytes, or
+ * when its oldest event has waited {@code lingerMillis}. Items that Elasticsearch rejects with a transient status are
+ * sent again in a new batch, up to {@code maxRetries} times and after an exponentially growing delay; the rest of the
+ * batch is never sent twice. A request that is rejected as a whole because the cluster is overloaded, or because an
+ * index is missing while the index bootstrap creates it, is retried the same way.
+ * </p>
+ * <p>
+ * Up to {@code maxConcurrency} requests are sent at the same time, and a {@link BackpressureController} decides how
+ * many of them and how many events per batch the cluster can take right now. With more than one request in flight,
+ * batches may reach Elasticsearch out of order.
+ * </p>
+ * <p>
+ * With a spill log, batches that can't be delivered because the cluster is unreachable or overloaded are written to
+ * the log instead of being dropped, to be replayed by a {@link SpillReplayer}.
+ * </p>
+ * <p>
+ * Stopping drains the processor within the given time: the last batch is sent, retries skip their backoff, and as
+ * many requests are sent at the same time as {@code maxConcurrency} allows. Batches that weren't sent or answered by
+ * the deadline are spilled before stop returns, or dropped without a spill log. A batch that was in flight at the
+ * deadline may therefore be both delivered and spilled.
+ * </p>
+ */
+final class BulkProcessor {
+
+    private static final int MAX_PENDING_BATCHES = 8;
+    private static final long RETRY_DELAY_MILLIS = 500;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+    private static final long STOP_GRACE_MILLIS = 1000;
+
+    private final HttpManager manager;
+    private final int maxBytes;
+    private final int maxEvents;
+    private final long lingerMillis;
+    private final int maxRetries;
+    private final SegmentLog spillLog;
+    private final BackpressureController controller;
+    private final int maxPendingBatches;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService responses;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Queue<BulkBatch> queued = new ConcurrentLinkedQueue<>();
+    private final Map<BulkBatch, Future<?>> delayed = new HashMap<>();
+    private final Set<BulkBatch> inFlight = ConcurrentHashMap.newKeySet();
+    // Batches that were accepted and not yet delivered, spilled or dropped, including those waiting for a retry.
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Object idle = new Object();
+    private volatile boolean stopping;
+    private volatile boolean stopped;
+
+    private BulkBatch current;
+
+    BulkProcessor(final HttpManager manager, final String name, final int maxBytes, final int maxEvents,
+                  final long lingerMillis, final int maxRetries, final SegmentLog spillLog) {
+        this(manager, name, maxBytes, maxEvents, lingerMillis, maxRetries, spillLog, 1, 0);
+    }
+
+    BulkProcessor(final HttpManager manager, final String name, final int maxBytes, final int maxEvents,
+                  final long lingerMillis, final int maxRetries, final SegmentLog spillLog, final int maxConcurrency,
+                  final long targetLatencyMillis) {
+        this.manager = manager;
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.lingerMillis = lingerMillis;
+        this.maxRetries = maxRetries;
+        this.spillLog = spillLog;
+        this.controller = new BackpressureController(maxConcurrency, maxEvents, targetLatencyMillis);
+        this.maxPendingBatches = Math.max(MAX_PENDING_BATCHES, 2 * maxConcurrency);
+        this.current = newBatch();
+        // The async transport keeps many requests in flight from one thread.
+        this.executor = new ScheduledThreadPoolExecutor(manager.isAsync() ? 1 : maxConcurrency,
+                Log4jThreadFactory.createDaemonThreadFactory("ElasticBulk-" + name));
+        // Retries waiting for their backoff are cancelled by stop, and must not hold up the shutdown.
+        this.executor.setRemoveOnCancelPolicy(true);
+        // Responses of the async transport are handled apart from the flush thread, which may wait for the slot one
+        // of them frees. The blocking transport answers on the flush threads.
+        this.responses = manager.isAsync()
+                ? Executors.newSingleThreadExecutor(Log4jThreadFactory.createDaemonThreadFactory("ElasticBulkResponse-" + name))
+                : executor;
+        final long period = Math.max(1, lingerMillis / 4);
+        this.executor.scheduleWithFixedDelay(this::linger, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a serialized event to the current batch, handing the batch off when it is full.
+     *
+     * @param document the serialized event.
+     */
+    void add(final byte[] document) {
+        add(document, document.length);
+    }
+
+    /**
+     * Adds a serialized event to the current batch, handing the batch off when it is full. The document is copied,
+     * so the buffer can be reused afterwards.
+     *
+     * @param document the buffer holding the serialized event.
+     * @param length the length of the event in the buffer.
+     */
+    void add(final byte[] document, final int length) {
+        add(BulkBatch.INDEX_ACTION, document, length);
+    }
+
+    /**
+     * Adds a serialized event with its own action line to the current batch, handing the batch off when it is full.
+     *
+     * @param action the action line, such as one naming the index of the event.
+     * @param document the buffer holding the serialized event.
+     * @param length the length of the event in the buffer.
+     */
+    void add(final byte[] action, final byte[] document, final int length) {
+        BulkBatch full = null;
+        synchronized (this) {
+            current.add(action, document, length);
+            // The controller shrinks batches while the cluster pushes back, bytes shrink along with events.
+            final int batchEvents = controller.getBatchEvents();
+            if (current.size() >= batchEvents || current.byteSize() >= (long) maxBytes * batchEvents / maxEvents) {
+                full = current;
+                current = newBatch();
+            }
+        }
+        if (full != null) {
+            submit(full);
+        }
+    }
+
+    /**
+     * Flushes whatever is buffered and waits for outstanding requests to finish. Batches that are not sent by then
+     * are spilled or dropped.
+     *
+     * @param timeout the maximum time to wait.
+     * @param timeUnit the unit of the timeout.
+     * @return true if all batches were handled in time.
+     */
+    boolean stop(final long timeout, final TimeUnit timeUnit) {
+        final long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        stopping = true;
+        controller.open();
+        final BulkBatch last;
+        synchronized (this) {
+            last = current;
+            current = newBatch();
+        }
+        if (!last.isEmpty()) {
+            submit(last);
+        } else {
+            last.release();
+        }
+        for (final BulkBatch retry : takeDelayed()) {
+            requeue(retry);
+        }
+        // The flush threads keep running until the deadline, so responses and the retries they ask for are handled.
+        boolean drained;
+        try {
+            drained = awaitIdle(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        stopped = true;
+        // Flush threads waiting to send give up, and no thread is interrupted, which would close the spill log.
+        controller.close();
+        executor.shutdown();
+        responses.shutdown();
+        if (!drained) {
+            // Responses to the batches in flight would arrive after the spill log closed, so they are spilled now.
+            for (final BulkBatch batch : inFlight) {
+                if (inFlight.remove(batch)) {
+                    // Not released, the transport may still be sending it.
+                    spillOrDrop(batch);
+                    finish();
+                }
+            }
+            BulkBatch batch;
+            while ((batch = queued.poll()) != null) {
+                pending.decrementAndGet();
+                abandon(batch);
+            }
+            // Retries that were scheduled while stop took over the others.
+            for (final BulkBatch retry : takeDelayed()) {
+                abandon(retry);
+            }
+            // Responses that were being handled at the deadline, and whatever they spill.
+            try {
+                awaitIdle(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_GRACE_MILLIS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return drained;
+    }
+
+    private boolean awaitIdle(final long deadlineNanos) throws InterruptedException {
+        synchronized (idle) {
+            long remaining;
+            while (outstanding.get() > 0 && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+            }
+            return outstanding.get() == 0;
+        }
+    }
+
+    /**
+     * Counts a batch as delivered, spilled or dropped.
+     */
+    private void finish() {
+        if (outstanding.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    private List<BulkBatch> takeDelayed() {
+        final List<BulkBatch> retries;
+        synchronized (delayed) {
+            retries = new ArrayList<>(delayed.keySet());
+            for (final Future<?> future : delayed.values()) {
+                future.cancel(false);
+            }
+            delayed.clear();
+        }
+        return retries;
+    }
+
+    private BulkBatch newBatch() {
+        return new BulkBatch(Math.min(maxBytes, 64 * 1024), manager.getBufferPool());
+    }
+
+    private void submit(final BulkBatch batch) {
+        if (pending.incrementAndGet() > maxPendingBatches) {
+            pending.decrementAndGet();
+            if (!spill(batch)) {
+                manager.getMetrics().eventsDropped(batch.size());
+                manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Too many bulk requests pending, dropping " + batch.size() + " events..");
+            }
+            batch.release();
+            return;
+        }
+        outstanding.incrementAndGet();
+        enqueue(batch);
+    }
+
+    /**
+     * Queues a batch that was counted as pending for a flush thread. Queued batches are kept apart from the tasks of
+     * the executor, so a stop that runs out of time can still spill them.
+     */
+    private void enqueue(final BulkBatch batch) {
+        queued.add(batch);
+        try {
+            executor.execute(this::flushNext);
+        } catch (RejectedExecutionException e) {
+            if (queued.remove(batch)) {
+                pending.decrementAndGet();
+                abandon(batch);
+            }
+        }
+    }
+
+    private void flushNext() {
+        final BulkBatch batch = queued.poll();
+        if (batch == null) {
+            return;
+        }
+        try {
+            flush(batch);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    private void abandon(final BulkBatch batch) {
+        spillOrDrop(batch);
+        batch.release();
+        finish();
+    }
+
+    private void spillOrDrop(final BulkBatch batch) {
+        if (!spill(batch)) {
+            manager.getMetrics().eventsDropped(batch.size());
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Bulk processor is stopped, dropping " + batch.size() + " events..");
+        }
+    }
+
+    private void linger() {
+        final BulkBatch due;
+        synchronized (this) {
+            if (current.ageMillis(System.currentTimeMillis()) < lingerMillis || current.isEmpty()) {
+                return;
+            }
+            due = current;
+            current = newBatch();
+        }
+        outstanding.incrementAndGet();
+        flush(due);
+    }
+
+    /**
+     * @return the number of requests the controller currently allows in flight.
+     */
+    int getConcurrency() {
+        return controller.getConcurrency();
+    }
+
+    /**
+     * @return the number of events at which the controller currently has a batch sent.
+     */
+    int getBatchEvents() {
+        return controller.getBatchEvents();
+    }
+
+    private void flush(final BulkBatch batch) {
+        boolean acquired;
+        try {
+            acquired = controller.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            abandon(batch);
+            return;
+        }
+        inFlight.add(batch);
+        if (stopped) {
+            // Stop ran out of time, and spills the batch unless it is done here.
+            if (inFlight.remove(batch)) {
+                abandon(batch);
+            }
+            controller.release();
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        manager.getMetrics().bulkSent(batch.size(), batch.byteSize());
+        // With the async transport this only queues the request, and the I/O thread hands the response to the response
+        // thread, as handling it may spill to disk. Once that is shut down, stop spills the batch instead.
+        manager.sendBulk(batch.array(), batch.byteSize(), responses, (response, failure) -> {
+            if (!inFlight.remove(batch)) {
+                // Stop spilled the batch when it ran out of time.
+                controller.release();
+                return;
+            }
+            try {
+                final BulkBatch retry = complete(batch, startNanos, response, failure);
+                // The retry holds copies of its items, so the buffer can go back to the pool.
+                batch.release();
+                if (retry != null) {
+                    schedule(retry);
+                }
+            } finally {
+                // The batch counts until its retry does, so a stop that waits for idle sees every event.
+                controller.release();
+                finish();
+            }
+        });
+    }
+
+    /**
+     * Counts the outcome of a bulk request.
+     *
+     * @return the items to send again, or null.
+     */
+    private BulkBatch complete(final BulkBatch batch, final long startNanos, final PooledOutputStream response,
+                               final Exception error) {
+        final ElasticMetrics metrics = manager.getMetrics();
+        final BulkResponse result;
+        try {
+            if (error != null) {
+                throw error;
+            }
+            result = BulkResponse.parse(response.array(), response.size());
+        } catch (HttpStatusException e) {
+            if (e.getStatus() == 404) {
+                // The index bootstrap creates the missing indices, which doesn't say anything about the load.
+                controller.onResponse(System.nanoTime() - startNanos, false);
+                return retryBatch(batch, "Index does not exist (status 404)");
+            }
+            if (e.getStatus() == 429 || e.getStatus() == 503) {
+                controller.onResponse(System.nanoTime() - startNanos, true);
+                return retryBatch(batch, "Elasticsearch is overloaded (status " + e.getStatus() + ")");
+            }
+            if (!e.isRetryable()) {
+                // Such as a malformed or too large request, which would be rejected again after a spill.
+                metrics.eventsRejected(batch.size());
+                manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Elasticsearch rejected a bulk request of " + batch.size() + " events: " + e.getMessage());
+                return null;
+            }
+            failed(batch, e);
+            return null;
+        } catch (PoolExhaustedException e) {
+            // Every connection is busy with an earlier batch, which doesn't say anything about the node.
+            return retryBatch(batch, "No connection to Elasticsearch became free");
+        } catch (Exception e) {
+            failed(batch, e);
+            return null;
+        }
+        if (result.isIncomplete()) {
+            // Errors without items, so none of the items can be told apart from the others.
+            controller.onResponse(System.nanoTime() - startNanos, false);
+            return retryBatch(batch, "Elasticsearch reported errors without items");
+        }
+        boolean throttled = false;
+        for (final BulkResponse.Failure failure : result.getFailures()) {
+            throttled |= failure.getStatus() == 429 || failure.getStatus() == 503;
+        }
+        controller.onResponse(System.nanoTime() - startNanos, throttled);
+
+        BulkBatch retry = null;
+        BulkResponse.Failure rejected = null;
+        int rejections = 0;
+        metrics.eventsShipped(batch.size() - result.getFailures().size());
+        for (final BulkResponse.Failure failure : result.getFailures()) {
+            metrics.itemFailed(failure.getStatus());
+            if (failure.isRetryable() && batch.attempts(failure.getItem()) < maxRetries) {
+                if (retry == null) {
+                    retry = new BulkBatch(batch.byteSize() / Math.max(1, batch.size()) * result.getFailures().size(),
+                            manager.getBufferPool());
+                }
+                retry.retry(batch, failure.getItem());
+                metrics.retried(1);
+            } else if (failure.isRetryable() && spill(batch, failure.getItem())) {
+                continue;
+            } else {
+                metrics.eventRejected();
+                rejected = failure;
+                rejections++;
+            }
+        }
+
+        if (rejected != null) {
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Elasticsearch rejected " + rejections + " events, last one with status " + rejected.getStatus() + " (" + rejected.getReason() + ")");
+        }
+        return retry;
+    }
+
+    private void failed(final BulkBatch batch, final Exception e) {
+        if (!spill(batch)) {
+            manager.getMetrics().eventsDropped(batch.size());
+            manager.fakeLogMessage("WARN", e.getClass().getSimpleName(), "Bulk request failed, dropping " + batch.size() + " events: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collects the items of a batch that Elasticsearch rejected as a whole to send again later, and spills or drops
+     * the items that were tried often enough.
+     *
+     * @param cause why the batch was not accepted, for the warning about dropped items.
+     * @return the items to send again, or null.
+     */
+    private BulkBatch retryBatch(final BulkBatch batch, final String cause) {
+        final ElasticMetrics metrics = manager.getMetrics();
+        BulkBatch retry = null;
+        int dropped = 0;
+        for (int item = 0; item < batch.size(); item++) {
+            if (batch.attempts(item) < maxRetries) {
+                if (retry == null) {
+                    retry = new BulkBatch(batch.byteSize(), manager.getBufferPool());
+                }
+                retry.retry(batch, item);
+                metrics.retried(1);
+            } else if (!spill(batch, item)) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            metrics.eventsDropped(dropped);
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), cause + ", dropping " + dropped + " events..");
+        }
+        return retry;
+    }
+
+    private void schedule(final BulkBatch retry) {
+        outstanding.incrementAndGet();
+        // Exponential backoff with jitter, so retries of concurrent batches don't hit the cluster at the same time.
+        final long delay = Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(16, retry.attempts(0) - 1));
+        try {
+            synchronized (delayed) {
+                // Checked while holding the lock, so stop either sees the retry among the delayed ones or it is sent now.
+                if (!stopping) {
+                    delayed.put(retry, executor.schedule(() -> {
+                        final boolean due;
+                        synchronized (delayed) {
+                            due = delayed.remove(retry) != null;
+                        }
+                        if (due) {
+                            requeue(retry);
+                        }
+                    }, delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1), TimeUnit.MILLISECONDS));
+                    return;
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // Stopped, enqueueing spills it.
+        }
+        // The backoff would outlast the time left to drain.
+        requeue(retry);
+    }
+
+    private void requeue(final BulkBatch retry) {
+        // Retries don't count against the limit of pending batches, they were accepted once already.
+        pending.incrementAndGet();
+        enqueue(retry);
+    }
+
+    private boolean spill(final BulkBatch batch) {
+        if (spillLog == null) {
+            return false;
+        }
+        int spilled = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (spill(batch, i)) {
+                spilled++;
+            }
+        }
+        if (spilled < batch.size()) {
+            manager.getMetrics().eventsDropped(batch.size() - spilled);
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Unable to spill " + (batch.size() - spilled) + " events to " + spillLog.getDirectory() + ", dropping them..");
+        }
+        return true;
+    }
+
+    private boolean spill(final BulkBatch batch, final int item) {
+        if (spillLog == null) {
+            return false;
+        }
+        try {
+            if (spillLog.append(batch.array(), batch.itemOffset(item), batch.itemLength(item))) {
+                manager.getMetrics().eventSpilled();
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The per-item outcome of a bulk request.
+ * <p>
+ * Bulk requests ask Elasticsearch to leave everything but {@code errors} and the status and error of every item out
+ * of the response, with {@code filter_path}, so a response holds one small entry per item.
+ * </p>
+ */
+final class BulkResponse {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    static final BulkResponse SUCCESS = new BulkResponse(Collections.<Failure>emptyList());
+
+    /**
+     * A response that reports errors without saying which items failed, so the whole batch has to be treated as
+     * not delivered.
+     */
+    static final BulkResponse INCOMPLETE = new BulkResponse(Collections.<Failure>emptyList());
+
+    /**
+     * A bulk item that Elasticsearch did not accept.
+     */
+    static final class Failure {
+
+        private final int item;
+        private final int status;
+        private final String reason;
+
+        Failure(final int item, final int status, final String reason) {
+            this.item = item;
+            this.status = status;
+            this.reason = reason;
+        }
+
+        int getItem() {
+            return item;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        /**
+         * Rejections because of a full write queue or an unavailable shard go away by themselves, mapping and
+         * parse errors don't.
+         *
+         * @return true if sending the item again may succeed.
+         */
+        boolean isRetryable() {
+            return status == 429 || status >= 500;
+        }
+    }
+
+    private final List<Failure> failures;
+
+    private BulkResponse(final List<Failure> failures) {
+        this.failures = failures;
+    }
+
+    List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return true if the response reports errors but no items, so it is unknown which items went through.
+     */
+    boolean isIncomplete() {
+        return this == INCOMPLETE;
+    }
+
+    /**
+     * Parses a bulk response body. Items are reported in request order, so the position of an item in the response
+     * is the position of the item in the batch.
+     *
+     * @param body the response body.
+     * @return the parsed response.
+     * @throws IOException when the body is not a bulk response.
+     */
+    static BulkResponse parse(final byte[] body) throws IOException {
+        return parse(body, body.length);
+    }
+
+    /**
+     * Parses a bulk response body from the start of a buffer, such as a pooled one.
+     * <p>
+     * The body is read as a stream of tokens, and reading stops at {@code "errors":false}, which Elasticsearch writes
+     * before the items, so acknowledging a batch that went through costs next to nothing. Only the items of a
+     * response with errors are looked at, and a response with errors but without items is {@link #INCOMPLETE}.
+     * </p>
+     *
+     * @param body the buffer holding the response body.
+     * @param length the length of the response body in the buffer.
+     * @return the parsed response.
+     * @throws IOException when the body is not a bulk response.
+     */
+    static BulkResponse parse(final byte[] body, final int length) throws IOException {
+        if (length == 0) {
+            return SUCCESS;
+        }
+        try (JsonParser parser = FACTORY.createParser(body, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return SUCCESS;
+            }
+            boolean errors = false;
+            List<Failure> failures = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("errors".equals(field)) {
+                    if (value != JsonToken.VALUE_TRUE) {
+                        return SUCCESS;
+                    }
+                    errors = true;
+                } else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                    failures = parseItems(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (!errors) {
+                return SUCCESS;
+            }
+            return failures != null ? new BulkResponse(failures) : INCOMPLETE;
+        }
+    }
+
+    private static List<Failure> parseItems(final JsonParser parser) throws IOException {
+        final List<Failure> failures = new ArrayList<>();
+        for (int i = 0; parser.nextToken() == JsonToken.START_OBJECT; i++) {
+            // An item is an object with one field, named after its action.
+            boolean seen = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() == JsonToken.START_OBJECT && !seen) {
+                    seen = true;
+                    final Failure failure = parseResult(parser, i);
+                    if (failure != null) {
+                        failures.add(failure);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return failures;
+    }
+
+    private static Failure parseResult(final JsonParser parser, final int item) throws IOException {
+        int status = 0;
+        String reason = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("status".equals(field)) {
+                status = parser.getValueAsInt(0);
+            } else if ("error".equals(field) && value == JsonToken.START_OBJECT) {
+                final JsonNode error = MAPPER.readTree(parser);
+                reason = error.path("type").asText() + ": " + error.path("reason").asText();
+            } else if ("error".equals(field)) {
+                reason = parser.getValueAsString("");
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return status < 200 || status > 299 ? new Failure(item, status, reason) : null;
+    }
+}
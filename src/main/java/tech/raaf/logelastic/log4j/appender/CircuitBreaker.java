@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Guards an Elasticsearch node against requests while it is failing.
+ * <p>
+ * The breaker starts closed and lets every request through. A failed request opens it for a backoff period that
+ * doubles with every consecutive failure, with some jitter so that appenders don't all retry at the same moment.
+ * After the backoff one request is let through as a probe while the breaker is half-open: if it succeeds the breaker
+ * closes, if it fails the breaker opens again for longer.
+ * </p>
+ * <p>
+ * State, failure count and retry time are swapped as one immutable snapshot, so no lock is taken, and a closed
+ * breaker costs a single volatile read.
+ * </p>
+ */
+public final class CircuitBreaker {
+
+    /**
+     * The states of a breaker.
+     */
+    public enum State {
+
+        /**
+         * Requests are let through.
+         */
+        CLOSED,
+
+        /**
+         * Requests are refused until the backoff has passed.
+         */
+        OPEN,
+
+        /**
+         * One probe request is in progress, other requests are refused.
+         */
+        HALF_OPEN
+    }
+
+    private static final Snapshot CLOSED = new Snapshot(State.CLOSED, 0, 0);
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long probeTimeoutMillis;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(CLOSED);
+    private final AtomicLong trips = new AtomicLong();
+
+    /**
+     * @param baseDelayMillis the backoff after the first failure.
+     * @param maxDelayMillis the maximum backoff.
+     * @param probeTimeoutMillis the time after which a probe that never finished is given up, and another one is let
+     *                           through.
+     */
+    CircuitBreaker(final long baseDelayMillis, final long maxDelayMillis, final long probeTimeoutMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    /**
+     * @return the current state.
+     */
+    public State getState() {
+        return snapshot.get().state;
+    }
+
+    /**
+     * @return the number of consecutive failures, 0 when the breaker is closed.
+     */
+    public int getConsecutiveFailures() {
+        return snapshot.get().failures;
+    }
+
+    /**
+     * @return the time from which a probe will be let through, 0 when the breaker is closed.
+     */
+    public long getRetryAtMillis() {
+        return snapshot.get().retryAtMillis;
+    }
+
+    /**
+     * @return the number of times the breaker opened.
+     */
+    public long getTrips() {
+        return trips.get();
+    }
+
+    /**
+     * Tells whether a request would be let through now, without claiming the probe.
+     *
+     * @return true if the breaker is closed or its backoff has passed.
+     */
+    boolean isCallPermitted() {
+        final Snapshot current = snapshot.get();
+        return current.state == State.CLOSED || System.currentTimeMillis() >= current.retryAtMillis;
+    }
+
+    /**
+     * Claims permission for a request. When the backoff of an open breaker has passed, only one caller gets it.
+     *
+     * @return true if the request may be sent.
+     */
+    boolean tryAcquire() {
+        final Snapshot current = snapshot.get();
+        if (current.state == State.CLOSED) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        return now >= current.retryAtMillis
+                && snapshot.compareAndSet(current, new Snapshot(State.HALF_OPEN, current.failures, now + probeTimeoutMillis));
+    }
+
+    /**
+     * Records a successful request, closing the breaker.
+     *
+     * @return true if the breaker was not closed before.
+     */
+    boolean onSuccess() {
+        while (true) {
+            final Snapshot current = snapshot.get();
+            if (current.state == State.CLOSED) {
+                return false;
+            }
+            if (snapshot.compareAndSet(current, CLOSED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records a failed request, opening the breaker unless another failure already did.
+     *
+     * @return the backoff in milliseconds, or -1 if the breaker was already open.
+     */
+    long onFailure() {
+        while (true) {
+            final Snapshot current = snapshot.get();
+            if (current.state == State.OPEN) {
+                return -1;
+            }
+            final int failures = current.failures + 1;
+            final long delay = delayMillis(failures);
+            if (snapshot.compareAndSet(current, new Snapshot(State.OPEN, failures, System.currentTimeMillis() + delay))) {
+                trips.incrementAndGet();
+                return delay;
+            }
+        }
+    }
+
+    private long delayMillis(final int failures) {
+        final long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failures - 1, 30));
+        // Up to 20% less or more.
+        return delay - delay / 5 + ThreadLocalRandom.current().nextLong(delay * 2 / 5 + 1);
+    }
+
+    @Override
+    public String toString() {
+        final Snapshot current = snapshot.get();
+        return current.state + (current.state == State.CLOSED ? "" : " after " + current.failures + " failures");
+    }
+
+    private static final class Snapshot {
+
+        private final State state;
+        private final int failures;
+        private final long retryAtMillis;
+
+        private Snapshot(final State state, final int failures, final long retryAtMillis) {
+            this.state = state;
+            this.failures = failures;
+            this.retryAtMillis = retryAtMillis;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package tech.raaf.logelastic.log4j.appender;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
@@ -31,17 +32,26 @@ import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
 import org.apache.logging.log4j.core.lookup.StrSubstitutor;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
+import org.apache.logging.log4j.core.util.Constants;
 import tech.raaf.logelastic.log4j.config.Header;
+import tech.raaf.logelastic.log4j.config.RateLimit;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.time.LocalDateTime;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Sends log events over HTTP to Elasticsearch.
@@ -65,6 +75,18 @@ public final class ElasticAppender extends AbstractAppender {
         @Required(message = "No URL provided for ElasticAppender")
         private String url;
 
+        @PluginBuilderAttribute
+        private String nodes;
+
+        @PluginBuilderAttribute
+        private String loadBalancing;
+
+        @PluginBuilderAttribute
+        private boolean sniff;
+
+        @PluginBuilderAttribute
+        private int sniffIntervalMillis = 300000;
+
         @PluginBuilderAttribute
         private String indexFrequencyType;
 
@@ -74,77 +96,332 @@ public final class ElasticAppender extends AbstractAppender {
         @PluginBuilderAttribute
         private boolean overrideIndexFrequencyDelimiter = true;
 
+        @PluginBuilderAttribute
+        private String indexTimeZone = "UTC";
+
+        @PluginBuilderAttribute
+        private String indexTemplate;
+
         @PluginBuilderAttribute
         private int connectTimeoutMillis = 1000;
 
         @PluginBuilderAttribute
         private int readTimeoutMillis = 0;
 
+        @PluginBuilderAttribute
+        private int maxConnections = 4;
+
+        @PluginBuilderAttribute
+        private int connectionIdleTimeoutMillis = 30000;
+
+        @PluginBuilderAttribute
+        private String transport;
+
+        @PluginBuilderAttribute
+        private String compression;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        @PluginBuilderAttribute
+        private int compressionMinBytes = 1024;
+
         @PluginElement("Headers")
         private Header[] headers;
 
         @PluginElement("Properties")
         private Property[] properties;
 
+        @PluginElement("RateLimits")
+        private RateLimit[] rateLimits;
+
+        @PluginBuilderAttribute
+        private int rateLimitSummaryMillis = 60000;
+
+        @PluginBuilderAttribute
+        private int dedupWindowMillis;
+
+        @PluginBuilderAttribute
+        private int dedupMaxEntries = 1024;
+
         @PluginElement("SslConfiguration")
         private SslConfiguration sslConfiguration;
 
         @PluginBuilderAttribute
         private boolean verifyHostname = true;
 
+        @PluginBuilderAttribute
+        private boolean bulk;
+
+        @PluginBuilderAttribute
+        private int bulkMaxBytes = 5 * 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private int bulkMaxEvents = 1000;
+
+        @PluginBuilderAttribute
+        private int bulkLingerMillis = 1000;
+
+        @PluginBuilderAttribute
+        private int bulkMaxRetries = 3;
+
+        @PluginBuilderAttribute
+        private int bulkMaxConcurrency = 1;
+
+        @PluginBuilderAttribute
+        private long bulkTargetLatencyMillis;
+
+        @PluginBuilderAttribute
+        private boolean async;
+
+        @PluginBuilderAttribute
+        private int ringBufferSize = 8192;
+
+        @PluginBuilderAttribute
+        private int senderThreads = 1;
+
+        @PluginBuilderAttribute
+        private String overflowPolicy;
+
+        @PluginBuilderAttribute
+        private String overflowLevel;
+
+        @PluginBuilderAttribute
+        private String priorityLevel;
+
+        @PluginBuilderAttribute
+        private int priorityRingBufferSize = 1024;
+
+        @PluginBuilderAttribute
+        private String priorityOverflowPolicy;
+
+        @PluginBuilderAttribute
+        private int priorityWeight = 8;
+
+        @PluginBuilderAttribute
+        private String partitionKey;
+
+        @PluginBuilderAttribute
+        private String routingKey;
+
+        @PluginBuilderAttribute
+        private String spillDirectory;
+
+        @PluginBuilderAttribute
+        private long shutdownTimeoutMillis = 5000;
+
+        @PluginBuilderAttribute
+        private int spillSegmentBytes = 16 * 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private long spillMaxBytes = 1024L * 1024 * 1024;
+
         @Override
         public ElasticAppender build() {
             url = new StrSubstitutor(System.getProperties()).replace(url).toLowerCase();
 
+            // Settings are checked before anything is created, so a rejected configuration leaves no threads or
+            // locked spill directory behind.
+            if (maxConnections <= 0) {
+                LOGGER.error("Maximum number of connections of ElasticAppender {} must be positive", getName());
+                return null;
+            }
+
+            RequestCompressor compressor = null;
+            try {
+                final RequestCompressor.Encoding encoding = RequestCompressor.Encoding.toEncoding(compression);
+                if (encoding != null) {
+                    compressor = new RequestCompressor(encoding, compressionLevel, compressionMinBytes, maxConnections);
+                }
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("Invalid compression settings for ElasticAppender {}: {}", getName(), e.getMessage());
+                return null;
+            }
+
+            final ZoneId zone;
             try {
+                zone = ZoneId.of(indexTimeZone);
+            } catch (DateTimeException e) {
+                LOGGER.error("Invalid index time zone {} of ElasticAppender {}: {}", indexTimeZone, getName(), e.getMessage());
+                return null;
+            }
+
+            if (bulkMaxBytes <= 0 || bulkMaxEvents <= 0 || bulkLingerMillis <= 0 || bulkMaxRetries < 0
+                    || bulkMaxConcurrency <= 0 || bulkTargetLatencyMillis < 0) {
+                LOGGER.error("Bulk limits of ElasticAppender {} must be positive", getName());
+                return null;
+            }
+            final boolean spill = spillDirectory != null && !spillDirectory.trim().isEmpty();
+            final OverflowPolicy policy = OverflowPolicy.toOverflowPolicy(overflowPolicy, OverflowPolicy.BLOCK);
+            final OverflowPolicy priorityPolicy =
+                    OverflowPolicy.toOverflowPolicy(priorityOverflowPolicy, OverflowPolicy.BLOCK);
+            final PartitionKey partitionBy = PartitionKey.toPartitionKey(partitionKey, PartitionKey.THREAD);
+            if (async) {
+                if (ringBufferSize <= 0 || senderThreads <= 0) {
+                    LOGGER.error("Ring buffer size and sender threads of ElasticAppender {} must be positive", getName());
+                    return null;
+                }
+                if (policy == OverflowPolicy.SPILL && !spill) {
+                    LOGGER.error("No spillDirectory provided for ElasticAppender {} with overflow policy SPILL", getName());
+                    return null;
+                }
+                if (priorityLevel != null && (priorityRingBufferSize <= 0 || priorityWeight <= 0)) {
+                    LOGGER.error("Priority ring buffer size and weight of ElasticAppender {} must be positive", getName());
+                    return null;
+                }
+                if (priorityLevel != null && priorityPolicy == OverflowPolicy.SPILL && !spill) {
+                    LOGGER.error("No spillDirectory provided for ElasticAppender {} with priority overflow policy SPILL", getName());
+                    return null;
+                }
+                if (partitionBy == PartitionKey.ROUTING_KEY && (routingKey == null || routingKey.trim().isEmpty())) {
+                    LOGGER.error("No routingKey provided for ElasticAppender {} with partition key ROUTING_KEY", getName());
+                    return null;
+                }
+            }
+            if (dedupWindowMillis > 0 && dedupMaxEntries <= 0) {
+                LOGGER.error("Maximum number of dedup entries of ElasticAppender {} must be positive", getName());
+                return null;
+            }
+            if (shutdownTimeoutMillis < 0) {
+                LOGGER.error("Shutdown timeout of ElasticAppender {} must not be negative", getName());
+                return null;
+            }
+
+            IndexRouter indexRouter = null;
+            try {
+                final IndexFrequencyType frequency = translateIndexFrequencyType(indexFrequencyType);
+                indexRouter = new IndexRouter(new URL(url).getPath(), frequency, appendDelimiterToIndexFrequencyType(frequency), zone);
                 //is there a way to use LOGGER here instead of sysout?
-                System.out.println("ElasticSearch Index Name URL: " + url + this.appendDelimiterToIndexFrequencyType(translateIndexFrequencyType(indexFrequencyType)) + "/_doc");
+                System.out.println("ElasticSearch Index Name URL: " + url + (bulk ? "/_bulk" : "/_doc")
+                        + (frequency != IndexFrequencyType.NONE ? ", currently writing to index " + indexRouter.route(System.currentTimeMillis()) : ""));
                 httpManager = new HttpManager(getConfiguration(),
-                        getName(), new URL(url), new URL(url + this.appendDelimiterToIndexFrequencyType(translateIndexFrequencyType(indexFrequencyType)) + "/_doc"), connectTimeoutMillis, readTimeoutMillis, headers, properties, sslConfiguration, verifyHostname);
+                        getName(), new URL(url), new URL(url + "/_doc"), new URL(url + "/_bulk"), connectTimeoutMillis, readTimeoutMillis, headers, properties, sslConfiguration, verifyHostname, maxConnections, connectionIdleTimeoutMillis,
+                        toNodeUrls(), LoadBalancing.toLoadBalancing(loadBalancing, LoadBalancing.ROUND_ROBIN), sniff, sniffIntervalMillis, compressor,
+                        TransportType.toTransportType(transport, TransportType.BLOCKING));
             } catch (MalformedURLException e) {
                 e.printStackTrace();
             }
-            return new ElasticAppender(getName(), getLayout(), getFilter(), isIgnoreExceptions(), httpManager);
+            SegmentLog spillLog = null;
+            SpillReplayer spillReplayer = null;
+            if (spill && httpManager != null) {
+                final File directory = new File(new StrSubstitutor(System.getProperties()).replace(spillDirectory));
+                try {
+                    spillLog = SegmentLog.open(directory, spillSegmentBytes, spillMaxBytes, getName());
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER.error("Unable to open spill directory {} of ElasticAppender {}: {}", directory, getName(), e.getMessage());
+                    // The only failure once resources exist, and the manager is all there is so far.
+                    httpManager.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+                    return null;
+                }
+                spillReplayer = new SpillReplayer(httpManager, getName(), spillLog, bulkMaxBytes, bulkMaxEvents);
+            }
+            BulkProcessor bulkProcessor = null;
+            if (bulk && httpManager != null) {
+                bulkProcessor = new BulkProcessor(httpManager, getName(), bulkMaxBytes, bulkMaxEvents, bulkLingerMillis, bulkMaxRetries, spillLog,
+                        bulkMaxConcurrency, bulkTargetLatencyMillis);
+            }
+            SenderPipeline pipeline = null;
+            if (async) {
+                final ToIntFunction<LogEvent> partitioner;
+                switch (partitionBy) {
+                    case LOGGER:
+                        partitioner = event -> Objects.hashCode(event.getLoggerName());
+                        break;
+                    case INDEX:
+                        final IndexRouter router = indexRouter;
+                        partitioner = event -> router.route(event.getTimeMillis()).getPath().hashCode();
+                        break;
+                    case ROUTING_KEY:
+                        final String key = routingKey.trim();
+                        partitioner = event -> Objects.hashCode(event.getContextData().getValue(key));
+                        break;
+                    default:
+                        partitioner = null;
+                        break;
+                }
+                pipeline = new SenderPipeline(getName(), senderThreads, ringBufferSize, policy,
+                        Level.toLevel(overflowLevel, Level.WARN),
+                        priorityLevel != null ? Level.toLevel(priorityLevel, Level.WARN) : null,
+                        priorityRingBufferSize, priorityPolicy, priorityWeight, partitioner);
+            }
+            EventAdmission admission = null;
+            if (rateLimits != null && rateLimits.length > 0) {
+                admission = new EventAdmission(rateLimits, rateLimitSummaryMillis, ElasticAppender.class.getName() + '.' + getName());
+            }
+            EventDeduplicator deduplicator = null;
+            if (dedupWindowMillis > 0) {
+                deduplicator = new EventDeduplicator(dedupWindowMillis, dedupMaxEntries);
+            }
+            IndexBootstrap bootstrap = null;
+            if (indexTemplate != null && !indexTemplate.trim().isEmpty() && httpManager != null) {
+                bootstrap = new IndexBootstrap(httpManager, getName(), indexRouter, indexTemplate.trim());
+                httpManager.setIndexBootstrap(bootstrap);
+            }
+            return new ElasticAppender(getName(), getLayout(), getFilter(), isIgnoreExceptions(), httpManager, indexRouter, bulkProcessor, pipeline, spillLog, spillReplayer, admission, deduplicator, bootstrap, shutdownTimeoutMillis);
+        }
+
+        private List<URL> toNodeUrls() throws MalformedURLException {
+            final List<URL> nodeUrls = new ArrayList<>();
+            if (nodes != null) {
+                for (final String node : new StrSubstitutor(System.getProperties()).replace(nodes).split(",")) {
+                    if (!node.trim().isEmpty()) {
+                        nodeUrls.add(new URL(node.trim()));
+                    }
+                }
+            }
+            return nodeUrls;
         }
 
-        private String appendDelimiterToIndexFrequencyType(String translatedFrequencyType) {
-            if (translatedFrequencyType == null || translatedFrequencyType.trim().isEmpty())
-                return translatedFrequencyType;
+        private String appendDelimiterToIndexFrequencyType(IndexFrequencyType frequencyType) {
+            if (frequencyType == IndexFrequencyType.NONE)
+                return "";
             else { //elastic log4j is configured..lets make sure the delimiter is one of the allowed one otherwise, replace it with default when override is set
                 Matcher matcher = restrictedDelimitersPattern.matcher(new Character(indexFrequencyDelimiter).toString());
 
                 if (matcher.find() && isOverrideIndexFrequencyDelimiter())
-                    return new StringBuilder().append('-').append(translatedFrequencyType).toString();
+                    return "-";
                 else //when override is set to false explicitly then let it go..
-                    return new StringBuilder().append(indexFrequencyDelimiter).append(translatedFrequencyType).toString();
+                    return String.valueOf(indexFrequencyDelimiter);
             }
         }
 
-        private String translateIndexFrequencyType(String indexFrequencyType) {
+        private IndexFrequencyType translateIndexFrequencyType(String indexFrequencyType) {
 
             if (indexFrequencyType == null || indexFrequencyType.trim().isEmpty())
-                return "";
+                return IndexFrequencyType.NONE;
 
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.NONE.toString()))
-                return "";//default to empty
-            LocalDateTime localDateTime = LocalDateTime.now(); //This is java 8..so is this okay as it wont by backward compatible with Java 7?
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.MINUTE.toString()))
-                return new StringBuilder().append(localDateTime.getYear()).append(localDateTime.getMonthValue()).append(localDateTime.getDayOfMonth()).append(localDateTime.getHour()).append(localDateTime.getMinute()).toString(); //generate YYYYMMDDhhmm
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.HOUR.toString()))
-                return new StringBuilder().append(localDateTime.getYear()).append(localDateTime.getMonthValue()).append(localDateTime.getDayOfMonth()).append(localDateTime.getHour()).toString();// generate YYYYMMDDhh
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.DAY.toString()))
-                return new StringBuilder().append(localDateTime.getYear()).append(localDateTime.getMonthValue()).append(localDateTime.getDayOfMonth()).toString(); // generate YYYYMMDD
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.MONTH.toString()))
-                return new StringBuilder().append(localDateTime.getYear()).append(localDateTime.getMonthValue()).toString(); // generate YYYYMM
-            if (indexFrequencyType.equalsIgnoreCase(IndexFrequencyType.YEAR.toString()))
-                return new StringBuilder().append(localDateTime.getYear()).toString(); // generate YYYY
-            return "";
+            // The suffix itself is derived from the time of every event, see IndexRouter.
+            for (final IndexFrequencyType type : IndexFrequencyType.values()) {
+                if (indexFrequencyType.trim().equalsIgnoreCase(type.toString()))
+                    return type;
+            }
+            return IndexFrequencyType.NONE;
         }
 
         public String getUrl() {
             return url;
         }
 
+        public String getNodes() {
+            return nodes;
+        }
+
+        public String getLoadBalancing() {
+            return loadBalancing;
+        }
+
+        public String getTransport() {
+            return transport;
+        }
+
+        public boolean isSniff() {
+            return sniff;
+        }
+
+        public int getSniffIntervalMillis() {
+            return sniffIntervalMillis;
+        }
+
         public int getConnectTimeoutMillis() {
             return connectTimeoutMillis;
         }
@@ -153,6 +430,26 @@ public final class ElasticAppender extends AbstractAppender {
             return readTimeoutMillis;
         }
 
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getConnectionIdleTimeoutMillis() {
+            return connectionIdleTimeoutMillis;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public int getCompressionMinBytes() {
+            return compressionMinBytes;
+        }
+
         public Header[] getHeaders() {
             return headers;
         }
@@ -161,6 +458,22 @@ public final class ElasticAppender extends AbstractAppender {
             return properties;
         }
 
+        public RateLimit[] getRateLimits() {
+            return rateLimits;
+        }
+
+        public int getRateLimitSummaryMillis() {
+            return rateLimitSummaryMillis;
+        }
+
+        public int getDedupWindowMillis() {
+            return dedupWindowMillis;
+        }
+
+        public int getDedupMaxEntries() {
+            return dedupMaxEntries;
+        }
+
         public SslConfiguration getSslConfiguration() {
             return sslConfiguration;
         }
@@ -169,6 +482,94 @@ public final class ElasticAppender extends AbstractAppender {
             return verifyHostname;
         }
 
+        public boolean isBulk() {
+            return bulk;
+        }
+
+        public int getBulkMaxBytes() {
+            return bulkMaxBytes;
+        }
+
+        public int getBulkMaxEvents() {
+            return bulkMaxEvents;
+        }
+
+        public int getBulkLingerMillis() {
+            return bulkLingerMillis;
+        }
+
+        public int getBulkMaxRetries() {
+            return bulkMaxRetries;
+        }
+
+        public int getBulkMaxConcurrency() {
+            return bulkMaxConcurrency;
+        }
+
+        public long getBulkTargetLatencyMillis() {
+            return bulkTargetLatencyMillis;
+        }
+
+        public boolean isAsync() {
+            return async;
+        }
+
+        public int getRingBufferSize() {
+            return ringBufferSize;
+        }
+
+        public int getSenderThreads() {
+            return senderThreads;
+        }
+
+        public String getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public String getOverflowLevel() {
+            return overflowLevel;
+        }
+
+        public String getPriorityLevel() {
+            return priorityLevel;
+        }
+
+        public int getPriorityRingBufferSize() {
+            return priorityRingBufferSize;
+        }
+
+        public String getPriorityOverflowPolicy() {
+            return priorityOverflowPolicy;
+        }
+
+        public int getPriorityWeight() {
+            return priorityWeight;
+        }
+
+        public String getPartitionKey() {
+            return partitionKey;
+        }
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public String getSpillDirectory() {
+            return spillDirectory;
+        }
+
+        public long getShutdownTimeoutMillis() {
+            return shutdownTimeoutMillis;
+        }
+
+        public int getSpillSegmentBytes() {
+            return spillSegmentBytes;
+        }
+
+        public long getSpillMaxBytes() {
+            return spillMaxBytes;
+        }
+
         public String getIndexFrequencyType() {
             return indexFrequencyType;
         }
@@ -181,11 +582,44 @@ public final class ElasticAppender extends AbstractAppender {
             return overrideIndexFrequencyDelimiter;
         }
 
+        public String getIndexTimeZone() {
+            return indexTimeZone;
+        }
+
+        public String getIndexTemplate() {
+            return indexTemplate;
+        }
+
         public B setUrl(final String url) {
             this.url = url;
             return asBuilder();
         }
 
+        public B setNodes(final String nodes) {
+            this.nodes = nodes;
+            return asBuilder();
+        }
+
+        public B setLoadBalancing(final String loadBalancing) {
+            this.loadBalancing = loadBalancing;
+            return asBuilder();
+        }
+
+        public B setTransport(final String transport) {
+            this.transport = transport;
+            return asBuilder();
+        }
+
+        public B setSniff(final boolean sniff) {
+            this.sniff = sniff;
+            return asBuilder();
+        }
+
+        public B setSniffIntervalMillis(final int sniffIntervalMillis) {
+            this.sniffIntervalMillis = sniffIntervalMillis;
+            return asBuilder();
+        }
+
         public B setConnectTimeoutMillis(final int connectTimeoutMillis) {
             this.connectTimeoutMillis = connectTimeoutMillis;
             return asBuilder();
@@ -196,6 +630,31 @@ public final class ElasticAppender extends AbstractAppender {
             return asBuilder();
         }
 
+        public B setMaxConnections(final int maxConnections) {
+            this.maxConnections = maxConnections;
+            return asBuilder();
+        }
+
+        public B setConnectionIdleTimeoutMillis(final int connectionIdleTimeoutMillis) {
+            this.connectionIdleTimeoutMillis = connectionIdleTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setCompression(final String compression) {
+            this.compression = compression;
+            return asBuilder();
+        }
+
+        public B setCompressionLevel(final int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        public B setCompressionMinBytes(final int compressionMinBytes) {
+            this.compressionMinBytes = compressionMinBytes;
+            return asBuilder();
+        }
+
         public B setHeaders(final Header[] headers) {
             this.headers = headers;
             return asBuilder();
@@ -206,6 +665,26 @@ public final class ElasticAppender extends AbstractAppender {
             return asBuilder();
         }
 
+        public B setRateLimits(final RateLimit[] rateLimits) {
+            this.rateLimits = rateLimits;
+            return asBuilder();
+        }
+
+        public B setRateLimitSummaryMillis(final int rateLimitSummaryMillis) {
+            this.rateLimitSummaryMillis = rateLimitSummaryMillis;
+            return asBuilder();
+        }
+
+        public B setDedupWindowMillis(final int dedupWindowMillis) {
+            this.dedupWindowMillis = dedupWindowMillis;
+            return asBuilder();
+        }
+
+        public B setDedupMaxEntries(final int dedupMaxEntries) {
+            this.dedupMaxEntries = dedupMaxEntries;
+            return asBuilder();
+        }
+
         public B setSslConfiguration(final SslConfiguration sslConfiguration) {
             this.sslConfiguration = sslConfiguration;
             return asBuilder();
@@ -216,6 +695,116 @@ public final class ElasticAppender extends AbstractAppender {
             return asBuilder();
         }
 
+        public B setBulk(final boolean bulk) {
+            this.bulk = bulk;
+            return asBuilder();
+        }
+
+        public B setBulkMaxBytes(final int bulkMaxBytes) {
+            this.bulkMaxBytes = bulkMaxBytes;
+            return asBuilder();
+        }
+
+        public B setBulkMaxEvents(final int bulkMaxEvents) {
+            this.bulkMaxEvents = bulkMaxEvents;
+            return asBuilder();
+        }
+
+        public B setBulkLingerMillis(final int bulkLingerMillis) {
+            this.bulkLingerMillis = bulkLingerMillis;
+            return asBuilder();
+        }
+
+        public B setBulkMaxRetries(final int bulkMaxRetries) {
+            this.bulkMaxRetries = bulkMaxRetries;
+            return asBuilder();
+        }
+
+        public B setBulkMaxConcurrency(final int bulkMaxConcurrency) {
+            this.bulkMaxConcurrency = bulkMaxConcurrency;
+            return asBuilder();
+        }
+
+        public B setBulkTargetLatencyMillis(final long bulkTargetLatencyMillis) {
+            this.bulkTargetLatencyMillis = bulkTargetLatencyMillis;
+            return asBuilder();
+        }
+
+        public B setAsync(final boolean async) {
+            this.async = async;
+            return asBuilder();
+        }
+
+        public B setRingBufferSize(final int ringBufferSize) {
+            this.ringBufferSize = ringBufferSize;
+            return asBuilder();
+        }
+
+        public B setSenderThreads(final int senderThreads) {
+            this.senderThreads = senderThreads;
+            return asBuilder();
+        }
+
+        public B setOverflowPolicy(final String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+
+        public B setOverflowLevel(final String overflowLevel) {
+            this.overflowLevel = overflowLevel;
+            return asBuilder();
+        }
+
+        public B setPriorityLevel(final String priorityLevel) {
+            this.priorityLevel = priorityLevel;
+            return asBuilder();
+        }
+
+        public B setPriorityRingBufferSize(final int priorityRingBufferSize) {
+            this.priorityRingBufferSize = priorityRingBufferSize;
+            return asBuilder();
+        }
+
+        public B setPriorityOverflowPolicy(final String priorityOverflowPolicy) {
+            this.priorityOverflowPolicy = priorityOverflowPolicy;
+            return asBuilder();
+        }
+
+        public B setPriorityWeight(final int priorityWeight) {
+            this.priorityWeight = priorityWeight;
+            return asBuilder();
+        }
+
+        public B setPartitionKey(final String partitionKey) {
+            this.partitionKey = partitionKey;
+            return asBuilder();
+        }
+
+        public B setRoutingKey(final String routingKey) {
+            this.routingKey = routingKey;
+            return asBuilder();
+        }
+
+        public B setSpillDirectory(final String spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return asBuilder();
+        }
+
+        public B setShutdownTimeoutMillis(final long shutdownTimeoutMillis) {
+            this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setSpillSegmentBytes(final int spillSegmentBytes) {
+            this.spillSegmentBytes = spillSegmentBytes;
+            return asBuilder();
+        }
+
+        public B setSpillMaxBytes(final long spillMaxBytes) {
+            this.spillMaxBytes = spillMaxBytes;
+            return asBuilder();
+        }
+
         public B setIndexFrequencyType(final String indexFrequencyType) {
             this.indexFrequencyType = indexFrequencyType;
             return asBuilder();
@@ -230,6 +819,16 @@ public final class ElasticAppender extends AbstractAppender {
             this.overrideIndexFrequencyDelimiter = overrideIndexFrequencyDelimiter;
             return asBuilder();
         }
+
+        public B setIndexTimeZone(final String indexTimeZone) {
+            this.indexTimeZone = indexTimeZone;
+            return asBuilder();
+        }
+
+        public B setIndexTemplate(final String indexTemplate) {
+            this.indexTemplate = indexTemplate;
+            return asBuilder();
+        }
     }
 
     /**
@@ -241,33 +840,269 @@ public final class ElasticAppender extends AbstractAppender {
     }
 
     private final HttpManager manager;
+    private final IndexRouter indexRouter;
+    private final BulkProcessor bulkProcessor;
+    private final SenderPipeline pipeline;
+    private final SegmentLog spillLog;
+    private final SpillReplayer spillReplayer;
+    private final EventAdmission admission;
+    private final EventDeduplicator deduplicator;
+    private final IndexBootstrap bootstrap;
+    private final long shutdownTimeoutMillis;
+    private final ElasticMetrics metrics;
+    private final ThreadLocal<EventBuffer> eventBuffers = new ThreadLocal<>();
 
     private ElasticAppender(final String name, final Layout<? extends Serializable> layout, final Filter filter,
-                            final boolean ignoreExceptions, final HttpManager manager) {
+                            final boolean ignoreExceptions, final HttpManager manager, final IndexRouter indexRouter,
+                            final BulkProcessor bulkProcessor, final SenderPipeline pipeline, final SegmentLog spillLog,
+                            final SpillReplayer spillReplayer, final EventAdmission admission,
+                            final EventDeduplicator deduplicator, final IndexBootstrap bootstrap,
+                            final long shutdownTimeoutMillis) {
         super(name, filter, layout, ignoreExceptions);
         Objects.requireNonNull(layout, "layout");
         this.manager = Objects.requireNonNull(manager, "manager");
+        this.indexRouter = Objects.requireNonNull(indexRouter, "indexRouter");
+        this.bulkProcessor = bulkProcessor;
+        this.pipeline = pipeline;
+        this.spillLog = spillLog;
+        this.spillReplayer = spillReplayer;
+        this.admission = admission;
+        this.deduplicator = deduplicator;
+        this.bootstrap = bootstrap;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.metrics = manager.getMetrics();
+        this.metrics.bind(this::getQueueDepth, this::getDroppedEvents, this::getSpillBacklog);
     }
 
     @Override
     public void start() {
+        if (pipeline != null) {
+            pipeline.start(this::ship, this::spill);
+        }
+        metrics.register(getName());
         super.start();
     }
 
     @Override
     public void append(final LogEvent event) {
+        metrics.eventAppended();
+        if (deduplicator != null && !deduplicator.accept(event, this::dispatch)) {
+            metrics.eventCollapsed();
+            return;
+        }
+        if (admission != null) {
+            final LogEvent summary = admission.pollSummary(event.getTimeMillis());
+            if (summary != null) {
+                dispatch(summary);
+            }
+            // Suppressed events are never serialized.
+            if (!admission.admit(event)) {
+                metrics.eventSuppressed();
+                return;
+            }
+        }
+        dispatch(event);
+    }
+
+    private void dispatch(final LogEvent event) {
+        if (pipeline != null) {
+            pipeline.publish(event);
+        } else {
+            ship(event);
+        }
+    }
+
+    /**
+     * Returns the number of events waiting to be shipped by the sender threads.
+     *
+     * @return the queue depth, 0 when the appender is not asynchronous.
+     */
+    public long getQueueDepth() {
+        return pipeline != null ? pipeline.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of events dropped because the ring buffer was full.
+     *
+     * @return the number of dropped events, 0 when the appender is not asynchronous.
+     */
+    public long getDroppedEvents() {
+        return pipeline != null ? pipeline.getDroppedEvents() : 0;
+    }
+
+    /**
+     * Returns the number of events in the spill log waiting to be replayed.
+     *
+     * @return the spill backlog, 0 when the appender has no spill directory.
+     */
+    public long getSpillBacklog() {
+        return spillLog != null ? spillLog.getPendingRecords() : 0;
+    }
+
+    /**
+     * Returns the number of spilled events deleted without being replayed because the spill log was full.
+     *
+     * @return the number of evicted events, 0 when the appender has no spill directory.
+     */
+    public long getEvictedEvents() {
+        return spillLog != null ? spillLog.getEvictedRecords() : 0;
+    }
+
+    /**
+     * Returns the metrics of this appender, which are also published over JMX.
+     *
+     * @return the metrics.
+     */
+    public ElasticMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the uncompressed size divided by the compressed size of all compressed request bodies.
+     *
+     * @return the compression ratio, 1 when requests are not compressed.
+     */
+    public double getCompressionRatio() {
+        return manager.getCompressor() != null ? manager.getCompressor().getCompressionRatio() : 1;
+    }
+
+    private void spill(final LogEvent event) {
         try {
-            manager.send(getLayout(), event);
+            final BulkBatch item = new BulkBatch(1024, manager.getBufferPool());
+            try {
+                final byte[] document = getLayout().toByteArray(event);
+                item.add(indexRouter.route(event.getTimeMillis()).getAction(), document, document.length);
+                if (spillLog.append(item.array(), 0, item.byteSize())) {
+                    metrics.eventSpilled();
+                } else {
+                    metrics.eventsDropped(1);
+                    error("Event too large to spill to " + spillLog.getDirectory() + " in appender [" + getName() + "]", event, null);
+                }
+            } finally {
+                item.release();
+            }
         } catch (final Exception e) {
+            metrics.eventsDropped(1);
+            error("Unable to spill event to " + spillLog.getDirectory() + " in appender [" + getName() + "]", event, e);
+        }
+    }
+
+    private void ship(final LogEvent event) {
+        try {
+            if (spillLog != null && !spillLog.isEmpty()) {
+                // Queue up behind the backlog, so events reach Elasticsearch in order.
+                spill(event);
+            } else {
+                final EventBuffer buffer = eventBuffer().encode(getLayout(), event);
+                try {
+                    ship(event, buffer);
+                } finally {
+                    if (!Constants.ENABLE_THREADLOCALS) {
+                        // The buffer was taken for this event only.
+                        buffer.release();
+                    }
+                }
+            }
+        } catch (final Exception e) {
+            metrics.eventsDropped(1);
             error("Unable to send HTTP in appender [" + getName() + "]", event, e);
         }
     }
 
+    private void ship(final LogEvent event, final EventBuffer buffer) throws IOException {
+        metrics.eventSerialized(buffer.size());
+        if (bulkProcessor != null) {
+            bulkProcessor.add(indexRouter.route(event.getTimeMillis()).getAction(), buffer.array(), buffer.size());
+            return;
+        }
+        final String indexPath = indexRouter.route(event.getTimeMillis()).getPath();
+        if (manager.send(getLayout(), event, indexPath, buffer.array(), buffer.size())) {
+            metrics.eventsShipped(1);
+        } else if (spillLog != null) {
+            spill(event);
+        } else {
+            metrics.eventsDropped(1);
+        }
+    }
+
+    private void abandon(final LogEvent event) {
+        if (spillLog != null) {
+            spill(event);
+        } else {
+            metrics.eventsDropped(1);
+        }
+    }
+
+    private static long remaining(final long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    private EventBuffer eventBuffer() {
+        if (!Constants.ENABLE_THREADLOCALS) {
+            return new EventBuffer(manager.getBufferPool());
+        }
+        EventBuffer buffer = eventBuffers.get();
+        if (buffer == null) {
+            buffer = new EventBuffer(manager.getBufferPool());
+            eventBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Stops taking events and drains what is buffered within the timeout: queued events are shipped, and the last
+     * bulk batches are sent at once. What isn't shipped by the deadline is spilled when there is a spill directory,
+     * and dropped otherwise. How many events were shipped, spilled and dropped while draining, and how many were
+     * still in flight at the deadline, is written to the status output.
+     *
+     * @param timeout the maximum time to drain, 0 for {@code shutdownTimeoutMillis}, as log4j stops appenders
+     *                without a timeout when the JVM shuts down.
+     * @param timeUnit the unit of the timeout.
+     * @return true if everything was shipped in time.
+     */
     @Override
     public boolean stop(final long timeout, final TimeUnit timeUnit) {
         setStopping();
+        final long deadline = System.nanoTime()
+                + (timeout > 0 ? timeUnit.toNanos(timeout) : TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis));
+        final long shipped = metrics.getEventsShipped();
+        final long spilled = metrics.getEventsSpilled();
+        final long dropped = metrics.getEventsDropped();
         boolean stopped = super.stop(timeout, timeUnit, false);
-        stopped &= manager.stop(timeout, timeUnit);
+        if (deduplicator != null) {
+            deduplicator.flush(this::dispatch);
+        }
+        if (admission != null) {
+            final LogEvent summary = admission.summary(System.currentTimeMillis());
+            if (summary != null) {
+                dispatch(summary);
+            }
+        }
+        if (pipeline != null) {
+            stopped &= pipeline.stop(remaining(deadline), TimeUnit.NANOSECONDS, this::abandon);
+        }
+        if (bulkProcessor != null) {
+            stopped &= bulkProcessor.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+        }
+        if (pipeline != null || bulkProcessor != null) {
+            // Events in flight at the deadline were spilled or dropped by the bulk processor.
+            final long queued = pipeline != null ? pipeline.getQueueDepth() : 0;
+            manager.fakeLogMessage(queued > 0 || metrics.getEventsDropped() > dropped ? "WARN" : "INFO",
+                    getClass().getSimpleName(), "Drained appender " + getName() + ": shipped "
+                            + (metrics.getEventsShipped() - shipped) + ", spilled " + (metrics.getEventsSpilled() - spilled)
+                            + " and dropped " + (metrics.getEventsDropped() - dropped + queued) + " events");
+        }
+        if (spillReplayer != null) {
+            stopped &= spillReplayer.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+        }
+        if (bootstrap != null) {
+            stopped &= bootstrap.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+        }
+        metrics.unregister();
+        stopped &= manager.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+        if (spillLog != null) {
+            spillLog.close();
+        }
         setStopped();
         return stopped;
     }
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts what an Elastic appender does: events in and out, requests, failures and retries.
+ * <p>
+ * Counters are {@link LongAdder}s, which spread concurrent updates over separate cells, so counting an appended event
+ * doesn't make logging threads contend. Queue depth and spill backlog are read from their source when asked for.
+ * The metrics are published over JMX, unless {@code log4j2.disable.jmx} is set, and handed to every
+ * {@link ElasticMetricsReporter} on the class path.
+ * </p>
+ */
+public final class ElasticMetrics implements ElasticMetricsMXBean {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+    private static final String DOMAIN = "tech.raaf.logelastic";
+
+    private static volatile List<ElasticMetricsReporter> reporters;
+    // The metrics last registered under each appender name, guarded by itself. A reconfigured appender registers
+    // before the one it replaces stops, and that one mustn't withdraw the metrics of its successor.
+    private static final Map<String, ElasticMetrics> OWNERS = new HashMap<>();
+
+    private final LongAdder eventsAppended = new LongAdder();
+    private final LongAdder eventsShipped = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventsRejected = new LongAdder();
+    private final LongAdder eventsSpilled = new LongAdder();
+    private final LongAdder eventsSuppressed = new LongAdder();
+    private final LongAdder eventsCollapsed = new LongAdder();
+    private final LongAdder serializedBytes = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> failedRequests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LongAdder> failedItems = new ConcurrentHashMap<>();
+    private final Histogram requestLatency = new Histogram();
+    private final Histogram bulkEvents = new Histogram();
+    private final Histogram bulkBytes = new Histogram();
+
+    private volatile LongSupplier queueDepth = () -> 0;
+    private volatile LongSupplier overflowDrops = () -> 0;
+    private volatile LongSupplier spillBacklog = () -> 0;
+    private volatile BufferPool bufferPool;
+    private volatile String registeredName;
+    private volatile ObjectName objectName;
+
+    @Override
+    public long getEventsAppended() {
+        return eventsAppended.sum();
+    }
+
+    @Override
+    public long getEventsShipped() {
+        return eventsShipped.sum();
+    }
+
+    @Override
+    public long getEventsDropped() {
+        return eventsDropped.sum() + overflowDrops.getAsLong();
+    }
+
+    @Override
+    public long getEventsRejected() {
+        return eventsRejected.sum();
+    }
+
+    @Override
+    public long getEventsSpilled() {
+        return eventsSpilled.sum();
+    }
+
+    @Override
+    public long getEventsSuppressed() {
+        return eventsSuppressed.sum();
+    }
+
+    @Override
+    public long getEventsCollapsed() {
+        return eventsCollapsed.sum();
+    }
+
+    @Override
+    public long getSerializedBytes() {
+        return serializedBytes.sum();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public Map<Integer, Long> getFailedRequestsByStatus() {
+        return toMap(failedRequests);
+    }
+
+    @Override
+    public Map<Integer, Long> getFailedItemsByStatus() {
+        return toMap(failedItems);
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getSpillBacklog() {
+        return spillBacklog.getAsLong();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        final BufferPool pool = bufferPool;
+        return pool != null ? pool.getHits() : 0;
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        final BufferPool pool = bufferPool;
+        return pool != null ? pool.getMisses() : 0;
+    }
+
+    @Override
+    public long getBufferPoolBytes() {
+        final BufferPool pool = bufferPool;
+        return pool != null ? pool.getPooledBytes() : 0;
+    }
+
+    @Override
+    public Histogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    @Override
+    public Histogram getBulkEvents() {
+        return bulkEvents;
+    }
+
+    @Override
+    public Histogram getBulkBytes() {
+        return bulkBytes;
+    }
+
+    void eventAppended() {
+        eventsAppended.increment();
+    }
+
+    void eventSerialized(final int bytes) {
+        serializedBytes.add(bytes);
+    }
+
+    void eventsShipped(final int events) {
+        eventsShipped.add(events);
+    }
+
+    void eventsDropped(final int events) {
+        eventsDropped.add(events);
+    }
+
+    void eventRejected() {
+        eventsRejected.increment();
+    }
+
+    void eventsRejected(final int events) {
+        eventsRejected.add(events);
+    }
+
+    void eventSpilled() {
+        eventsSpilled.increment();
+    }
+
+    void eventSuppressed() {
+        eventsSuppressed.increment();
+    }
+
+    void eventCollapsed() {
+        eventsCollapsed.increment();
+    }
+
+    void itemFailed(final int status) {
+        failedItems.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    void requestCompleted(final long startNanos) {
+        requests.increment();
+        requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    void requestFailed(final int status) {
+        failedRequests.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    void retried(final int count) {
+        retries.add(count);
+    }
+
+    void bulkSent(final int events, final int bytes) {
+        bulkEvents.record(events);
+        bulkBytes.record(bytes);
+    }
+
+    /**
+     * Connects the metrics that are kept elsewhere.
+     */
+    void bind(final LongSupplier queueDepth, final LongSupplier overflowDrops, final LongSupplier spillBacklog) {
+        this.queueDepth = queueDepth;
+        this.overflowDrops = overflowDrops;
+        this.spillBacklog = spillBacklog;
+    }
+
+    /**
+     * Connects the buffer pool of the manager.
+     */
+    void bind(final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Publishes the metrics over JMX and to the reporters, taking the name over from an appender that registered it
+     * before.
+     *
+     * @param name the name of the appender.
+     */
+    void register(final String name) {
+        synchronized (OWNERS) {
+            registeredName = name;
+            OWNERS.put(name, this);
+            if (!PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+                try {
+                    final ObjectName candidate = new ObjectName(DOMAIN + ":type=ElasticAppender,name=" + quote(name));
+                    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                    if (server.isRegistered(candidate)) {
+                        server.unregisterMBean(candidate);
+                    }
+                    server.registerMBean(this, candidate);
+                    objectName = candidate;
+                } catch (JMException | RuntimeException e) {
+                    LOGGER.warn("Unable to register the metrics of ElasticAppender {} over JMX: {}", name, e.getMessage());
+                }
+            }
+            for (final ElasticMetricsReporter reporter : reporters()) {
+                try {
+                    reporter.register(name, this);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Metrics reporter {} failed to register ElasticAppender {}", reporter.getClass().getName(), name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Withdraws the metrics from JMX and the reporters, unless a newer appender with the same name took them over.
+     */
+    void unregister() {
+        synchronized (OWNERS) {
+            final String name = registeredName;
+            if (name == null) {
+                return;
+            }
+            registeredName = null;
+            final ObjectName registered = objectName;
+            objectName = null;
+            if (!OWNERS.remove(name, this)) {
+                // Replaced by a newer appender with the same name.
+                return;
+            }
+            if (registered != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+                } catch (JMException | RuntimeException e) {
+                    LOGGER.warn("Unable to unregister the metrics of ElasticAppender {} from JMX: {}", name, e.getMessage());
+                }
+            }
+            for (final ElasticMetricsReporter reporter : reporters()) {
+                try {
+                    reporter.unregister(name, this);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Metrics reporter {} failed to unregister ElasticAppender {}", reporter.getClass().getName(), name, e);
+                }
+            }
+        }
+    }
+
+    private static List<ElasticMetricsReporter> reporters() {
+        List<ElasticMetricsReporter> loaded = reporters;
+        if (loaded == null) {
+            loaded = new ArrayList<>();
+            final Iterator<ElasticMetricsReporter> iterator =
+                    ServiceLoader.load(ElasticMetricsReporter.class, ElasticMetrics.class.getClassLoader()).iterator();
+            while (true) {
+                try {
+                    if (!iterator.hasNext()) {
+                        break;
+                    }
+                    loaded.add(iterator.next());
+                } catch (ServiceConfigurationError e) {
+                    LOGGER.warn("Unable to load a metrics reporter: {}", e.getMessage());
+                }
+            }
+            loaded = Collections.unmodifiableList(loaded);
+            reporters = loaded;
+        }
+        return loaded;
+    }
+
+    private static String quote(final String name) {
+        for (int i = 0; i < name.length(); i++) {
+            switch (name.charAt(i)) {
+                case ',':
+                case '=':
+                case ':':
+                case '"':
+                case '*':
+                case '?':
+                case '\\':
+                case '\n':
+                    return ObjectName.quote(name);
+                default:
+                    break;
+            }
+        }
+        return name;
+    }
+
+    private static Map<Integer, Long> toMap(final ConcurrentMap<Integer, LongAdder> counters) {
+        final Map<Integer, Long> result = new TreeMap<>();
+        for (final Map.Entry<Integer, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+}
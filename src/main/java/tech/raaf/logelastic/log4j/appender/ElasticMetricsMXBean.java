@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.Map;
+
+/**
+ * The metrics of an Elastic appender, as published over JMX under
+ * {@code tech.raaf.logelastic:type=ElasticAppender,name=<appender name>}.
+ */
+public interface ElasticMetricsMXBean {
+
+    /**
+     * @return the number of events handed to the appender.
+     */
+    long getEventsAppended();
+
+    /**
+     * @return the number of events Elasticsearch accepted.
+     */
+    long getEventsShipped();
+
+    /**
+     * @return the number of events lost because they could neither be delivered nor spilled, including events
+     *         discarded by the overflow policy.
+     */
+    long getEventsDropped();
+
+    /**
+     * @return the number of events Elasticsearch refused for good, such as events that don't match the mapping.
+     */
+    long getEventsRejected();
+
+    /**
+     * @return the number of events written to the spill log.
+     */
+    long getEventsSpilled();
+
+    /**
+     * @return the number of events suppressed by the rate limits and sampling of the appender.
+     */
+    long getEventsSuppressed();
+
+    /**
+     * @return the number of repeated events collapsed into the document of their window.
+     */
+    long getEventsCollapsed();
+
+    /**
+     * @return the total size of the serialized events.
+     */
+    long getSerializedBytes();
+
+    /**
+     * @return the number of requests sent to Elasticsearch.
+     */
+    long getRequests();
+
+    /**
+     * @return the number of requests that failed, by HTTP status, or status 0 when no response came back.
+     */
+    Map<Integer, Long> getFailedRequestsByStatus();
+
+    /**
+     * @return the number of bulk items Elasticsearch did not accept, by item status, including items that were
+     *         retried or spilled afterwards.
+     */
+    Map<Integer, Long> getFailedItemsByStatus();
+
+    /**
+     * @return the number of requests sent to another node, and of bulk items sent again, after a failure.
+     */
+    long getRetries();
+
+    /**
+     * @return the number of events waiting for a sender thread.
+     */
+    long getQueueDepth();
+
+    /**
+     * @return the number of events waiting in the spill log.
+     */
+    long getSpillBacklog();
+
+    /**
+     * @return the number of buffers served from the buffer pool.
+     */
+    long getBufferPoolHits();
+
+    /**
+     * @return the number of buffers the buffer pool had to allocate.
+     */
+    long getBufferPoolMisses();
+
+    /**
+     * @return the total size of the buffers the buffer pool keeps for reuse.
+     */
+    long getBufferPoolBytes();
+
+    /**
+     * @return the time requests took, in microseconds.
+     */
+    Histogram getRequestLatency();
+
+    /**
+     * @return the number of events per bulk request.
+     */
+    Histogram getBulkEvents();
+
+    /**
+     * @return the size of bulk requests in bytes.
+     */
+    Histogram getBulkBytes();
+}
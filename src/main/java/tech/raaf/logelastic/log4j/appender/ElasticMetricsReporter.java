@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+/**
+ * Publishes the metrics of Elastic appenders to a metrics library, such as Micrometer.
+ * <p>
+ * Implementations are found with {@link java.util.ServiceLoader}: list the class name in
+ * {@code META-INF/services/tech.raaf.logelastic.log4j.appender.ElasticMetricsReporter}. The metrics are counters that
+ * are read when the library asks for them, so a reporter only has to register functions that call the getters of
+ * {@link ElasticMetrics}.
+ * </p>
+ */
+public interface ElasticMetricsReporter {
+
+    /**
+     * Called when an appender starts.
+     *
+     * @param appenderName the name of the appender.
+     * @param metrics the metrics of the appender.
+     */
+    void register(String appenderName, ElasticMetrics metrics);
+
+    /**
+     * Called when an appender stops.
+     *
+     * @param appenderName the name of the appender.
+     * @param metrics the metrics of the appender.
+     */
+    void unregister(String appenderName, ElasticMetrics metrics);
+}
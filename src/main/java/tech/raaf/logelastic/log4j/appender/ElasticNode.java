@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Elasticsearch node requests can be sent to, with its own connections and health.
+ * <p>
+ * A node that fails to answer is marked dead and skipped for a while by its {@link CircuitBreaker}; every
+ * consecutive failure makes it wait longer before it is tried again.
+ * </p>
+ */
+public final class ElasticNode {
+
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 1200 * 1000;
+    private static final long PROBE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private final URL url;
+    private final HttpTransport transport;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS,
+            PROBE_TIMEOUT_MILLIS);
+
+    ElasticNode(final URL url, final HttpTransport transport) {
+        this.url = url;
+        this.transport = transport;
+    }
+
+    /**
+     * @return the base URL of the node, without path.
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the pool of connections to the node, or null when the node uses the asynchronous transport.
+     */
+    public HttpConnectionPool getConnectionPool() {
+        return transport instanceof HttpConnectionPool ? (HttpConnectionPool) transport : null;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the number of requests currently sent to the node.
+     */
+    public int getOutstandingRequests() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the circuit breaker that keeps requests away from the node while it is failing.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return true if the node is not waiting out a failure.
+     */
+    public boolean isAlive() {
+        return circuitBreaker.isCallPermitted();
+    }
+
+    /**
+     * @return the number of consecutive failed requests.
+     */
+    public int getFailures() {
+        return circuitBreaker.getConsecutiveFailures();
+    }
+
+    long getDeadUntilMillis() {
+        return circuitBreaker.getRetryAtMillis();
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    void end() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Marks the node alive after a successful request.
+     *
+     * @return true if the node was failing before.
+     */
+    boolean markAlive() {
+        return circuitBreaker.onSuccess();
+    }
+
+    /**
+     * Marks the node dead after a failed request.
+     *
+     * @return the number of milliseconds the node will be skipped, or -1 if another request already marked it dead.
+     */
+    long markDead() {
+        return circuitBreaker.onFailure();
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import tech.raaf.logelastic.log4j.config.RateLimit;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which events are shipped at all, before they are serialized, from {@link RateLimit} rules.
+ * <p>
+ * The rule of the most specific logger that covers the level of an event applies. Every logger and level gets its own
+ * sampler and token bucket, looked up once per logger and then read from an array by level, so admitting an event
+ * costs a map lookup, a random number and a compare-and-set. Suppressed events are counted per logger and level, and
+ * the counts are handed out as a summary event once per interval.
+ * </p>
+ */
+final class EventAdmission {
+
+    private static final StandardLevel[] LEVELS = StandardLevel.values();
+
+    private final RateLimit[] rules;
+    private final long summaryIntervalMillis;
+    private final String summaryLogger;
+    private final ConcurrentMap<String, Limiter[]> limiters = new ConcurrentHashMap<>();
+    private final AtomicLong nextSummaryMillis;
+
+    /**
+     * @param rules the rules.
+     * @param summaryIntervalMillis the interval of the summary events, 0 for no summaries.
+     * @param summaryLogger the logger name of the summary events.
+     */
+    EventAdmission(final RateLimit[] rules, final long summaryIntervalMillis, final String summaryLogger) {
+        this.rules = rules.clone();
+        // Most specific logger first, the order of the configuration otherwise.
+        Arrays.sort(this.rules, Comparator.comparingInt((RateLimit rule) -> rule.getLogger().length()).reversed());
+        this.summaryIntervalMillis = summaryIntervalMillis;
+        this.summaryLogger = summaryLogger;
+        this.nextSummaryMillis = new AtomicLong(System.currentTimeMillis() + summaryIntervalMillis);
+    }
+
+    /**
+     * Decides whether an event is shipped.
+     *
+     * @param event the event.
+     * @return true if the event is admitted, false if it is suppressed.
+     */
+    boolean admit(final LogEvent event) {
+        final String loggerName = event.getLoggerName() != null ? event.getLoggerName() : "";
+        Limiter[] byLevel = limiters.get(loggerName);
+        if (byLevel == null) {
+            byLevel = limiters.computeIfAbsent(loggerName, this::newLimiters);
+        }
+        final Limiter limiter = byLevel[event.getLevel().getStandardLevel().ordinal()];
+        return limiter == null || limiter.admit();
+    }
+
+    private Limiter[] newLimiters(final String loggerName) {
+        final Limiter[] byLevel = new Limiter[LEVELS.length];
+        for (final StandardLevel standardLevel : LEVELS) {
+            final Level level = Level.toLevel(standardLevel.name());
+            for (final RateLimit rule : rules) {
+                if (rule.appliesTo(loggerName) && rule.appliesTo(level)) {
+                    byLevel[standardLevel.ordinal()] = new Limiter(loggerName, level, rule);
+                    break;
+                }
+            }
+        }
+        return byLevel;
+    }
+
+    /**
+     * Returns the summary of the suppressed events when the summary interval has passed. Only one caller gets it.
+     *
+     * @param nowMillis the current time.
+     * @return the summary event, or null when it is not due or no events were suppressed.
+     */
+    LogEvent pollSummary(final long nowMillis) {
+        final long next = nextSummaryMillis.get();
+        if (summaryIntervalMillis <= 0 || nowMillis < next
+                || !nextSummaryMillis.compareAndSet(next, nowMillis + summaryIntervalMillis)) {
+            return null;
+        }
+        return summary(nowMillis);
+    }
+
+    /**
+     * Returns the summary of the events suppressed since the last summary, such as when the appender stops.
+     *
+     * @param nowMillis the current time.
+     * @return the summary event, or null when no events were suppressed.
+     */
+    LogEvent summary(final long nowMillis) {
+        // Elasticsearch reads dots in field names as objects, so the counts are keyed by logger_name_LEVEL.
+        final SortedArrayStringMap counts = new SortedArrayStringMap();
+        final StringBuilder details = new StringBuilder();
+        long total = 0;
+        for (final Limiter[] byLevel : limiters.values()) {
+            for (final Limiter limiter : byLevel) {
+                if (limiter == null) {
+                    continue;
+                }
+                final long suppressed = limiter.suppressed.sumThenReset();
+                if (suppressed > 0) {
+                    counts.putValue("suppressed_" + limiter.loggerName.replace('.', '_') + '_' + limiter.level, suppressed);
+                    details.append(", ").append(limiter.loggerName).append(' ').append(limiter.level).append(": ").append(suppressed);
+                    total += suppressed;
+                }
+            }
+        }
+        if (total == 0) {
+            return null;
+        }
+        counts.putValue("suppressed", total);
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(summaryLogger)
+                .setLevel(Level.WARN)
+                .setTimeMillis(nowMillis)
+                .setThreadName(Thread.currentThread().getName())
+                .setMessage(new SimpleMessage("Suppressed " + total + " events" + details))
+                .setContextData(counts)
+                .build();
+    }
+
+    /**
+     * The sampler and token bucket of one logger and level.
+     * <p>
+     * The bucket is kept as the time at which it would be full again, the generic cell rate algorithm: an event is
+     * admitted when moving that time one interval ahead keeps it within the burst from now.
+     * </p>
+     */
+    private static final class Limiter {
+
+        private final String loggerName;
+        private final Level level;
+        private final double sampling;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong fullAtNanos;
+        private final LongAdder suppressed = new LongAdder();
+
+        private Limiter(final String loggerName, final Level level, final RateLimit rule) {
+            this.loggerName = loggerName;
+            this.level = level;
+            this.sampling = rule.getSampling();
+            this.intervalNanos = rule.getEventsPerSecond() > 0 ? (long) (1_000_000_000L / rule.getEventsPerSecond()) : 0;
+            this.toleranceNanos = intervalNanos * rule.getBurst();
+            this.fullAtNanos = new AtomicLong(System.nanoTime());
+        }
+
+        private boolean admit() {
+            if (sampling < 1 && (sampling == 0 || ThreadLocalRandom.current().nextDouble() >= sampling)) {
+                suppressed.increment();
+                return false;
+            }
+            if (intervalNanos == 0) {
+                return true;
+            }
+            while (true) {
+                final long now = System.nanoTime();
+                final long fullAt = fullAtNanos.get();
+                final long next = (fullAt - now > 0 ? fullAt : now) + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    suppressed.increment();
+                    return false;
+                }
+                if (fullAtNanos.compareAndSet(fullAt, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
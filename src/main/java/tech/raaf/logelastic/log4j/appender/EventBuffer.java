@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A growable heap buffer that a layout encodes a single event into, reused for every event of a thread.
+ * <p>
+ * Instead of writing the bytes somewhere when the layout drains it, the buffer grows, so after encoding it holds the
+ * whole event.
+ * </p>
+ * <p>
+ * With a {@link BufferPool}, the backing arrays come from the pool and a grown array goes back to it, so a buffer per
+ * event, such as when thread locals are disabled, costs no allocation once the pool is warm.
+ * </p>
+ */
+final class EventBuffer implements ByteBufferDestination {
+
+    private static final int INITIAL_BYTES = 1024;
+    private static final int MAX_REUSED_BYTES = 512 * 1024;
+
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    EventBuffer() {
+        this(null);
+    }
+
+    /**
+     * @param pool the pool to take the backing arrays from, or null.
+     */
+    EventBuffer(final BufferPool pool) {
+        this.pool = pool;
+        this.buffer = allocate(INITIAL_BYTES);
+    }
+
+    /**
+     * Encodes an event with a layout, replacing the previous contents.
+     *
+     * @param layout the layout.
+     * @param event the event.
+     * @return this buffer.
+     */
+    EventBuffer encode(final Layout<?> layout, final LogEvent event) {
+        if (buffer.capacity() > MAX_REUSED_BYTES) {
+            release();
+            buffer = allocate(INITIAL_BYTES);
+        }
+        buffer.clear();
+        layout.encode(event, this);
+        return this;
+    }
+
+    byte[] array() {
+        return buffer.array();
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Hands the backing array back to the pool. The buffer must not be used afterwards.
+     */
+    void release() {
+        if (pool != null) {
+            pool.release(buffer.array());
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer drain(final ByteBuffer full) {
+        final ByteBuffer larger;
+        if (pool != null) {
+            larger = ByteBuffer.wrap(pool.grow(full.array(), full.position(), full.capacity() * 2));
+            larger.position(full.position());
+        } else {
+            larger = ByteBuffer.allocate(full.capacity() * 2);
+            full.flip();
+            larger.put(full);
+        }
+        buffer = larger;
+        return larger;
+    }
+
+    private ByteBuffer allocate(final int bytes) {
+        return pool != null ? ByteBuffer.wrap(pool.acquire(bytes)) : ByteBuffer.allocate(bytes);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Collapses repeated identical events, such as the same error logged over and over while a dependency is down.
+ * <p>
+ * Events are fingerprinted by logger, level, message template and the frames of the exception, so the same error
+ * with different parameters counts as a repeat. The first event of a fingerprint is shipped right away and opens a
+ * window. Repeats within the window are only counted, and when the window closes one document is shipped for all of
+ * them: the first repeat, stamped with the time of the last one, with the number of events in the window including
+ * the first in {@code occurrences}, and {@code firstOccurrence} and {@code lastOccurrence} in epoch milliseconds in
+ * its context data. A window without repeats closes silently.
+ * </p>
+ * <p>
+ * The windows are kept in a bounded number of stripes, each a small map in insertion order, so the oldest window of a
+ * stripe is the first to close and the least recent one is closed early when the stripe is full. An event only locks
+ * the stripe of its fingerprint.
+ * </p>
+ */
+final class EventDeduplicator {
+
+    private static final int STRIPES = 16;
+    private static final int MAX_CAUSES = 8;
+
+    private final long windowMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong nextSweepMillis;
+
+    /**
+     * @param windowMillis how long repeats of an event are collapsed.
+     * @param maxEntries the maximum number of open windows.
+     */
+    EventDeduplicator(final long windowMillis, final int maxEntries) {
+        this.windowMillis = windowMillis;
+        final int perStripe = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+        this.nextSweepMillis = new AtomicLong(System.currentTimeMillis() + windowMillis);
+    }
+
+    /**
+     * Records an event and hands out the documents of closed windows.
+     *
+     * @param event the event.
+     * @param collapsed receives the documents of windows that closed, on the calling thread.
+     * @return true if the event should be shipped, false if it is a repeat.
+     */
+    boolean accept(final LogEvent event, final Consumer<LogEvent> collapsed) {
+        final long now = event.getTimeMillis();
+        final long next = nextSweepMillis.get();
+        if (now >= next && nextSweepMillis.compareAndSet(next, now + windowMillis)) {
+            sweep(now, collapsed);
+        }
+        final long fingerprint = fingerprint(event);
+        final Stripe stripe = stripes[(int) (fingerprint ^ fingerprint >>> 32) & STRIPES - 1];
+        final List<LogEvent> closed = new ArrayList<>(0);
+        final boolean first;
+        synchronized (stripe) {
+            Window window = stripe.get(fingerprint);
+            if (window != null && now - window.firstMillis >= windowMillis) {
+                stripe.remove(fingerprint);
+                window.close(closed);
+                window = null;
+            }
+            if (window == null) {
+                stripe.evicted = closed;
+                stripe.put(fingerprint, new Window(now));
+                stripe.evicted = null;
+                first = true;
+            } else {
+                window.repeat(event);
+                first = false;
+            }
+        }
+        closed.forEach(collapsed);
+        return first;
+    }
+
+    /**
+     * Closes the windows that are older than the window length.
+     *
+     * @param nowMillis the current time.
+     * @param collapsed receives the documents of the closed windows.
+     */
+    void sweep(final long nowMillis, final Consumer<LogEvent> collapsed) {
+        final List<LogEvent> closed = new ArrayList<>(0);
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (final Iterator<Window> windows = stripe.values().iterator(); windows.hasNext(); ) {
+                    final Window window = windows.next();
+                    if (nowMillis - window.firstMillis < windowMillis) {
+                        // Insertion order, so the remaining windows are younger.
+                        break;
+                    }
+                    windows.remove();
+                    window.close(closed);
+                }
+            }
+        }
+        closed.forEach(collapsed);
+    }
+
+    /**
+     * Closes all windows, such as when the appender stops.
+     *
+     * @param collapsed receives the documents of the closed windows.
+     */
+    void flush(final Consumer<LogEvent> collapsed) {
+        sweep(Long.MAX_VALUE, collapsed);
+    }
+
+    /**
+     * Hashes what makes two events the same error: logger, level, message template and exception frames.
+     *
+     * @param event the event.
+     * @return the fingerprint.
+     */
+    static long fingerprint(final LogEvent event) {
+        long hash = mix(1125899906842597L, hashCode(event.getLoggerName()));
+        hash = mix(hash, event.getLevel().intLevel());
+        hash = mix(hash, hashCode(event.getMessage() != null ? event.getMessage().getFormat() : null));
+        Throwable thrown = event.getThrown();
+        for (int depth = 0; thrown != null && depth < MAX_CAUSES; depth++, thrown = thrown.getCause()) {
+            hash = mix(hash, thrown.getClass().getName().hashCode());
+            for (final StackTraceElement frame : thrown.getStackTrace()) {
+                hash = mix(hash, frame.hashCode());
+            }
+        }
+        return hash;
+    }
+
+    private static int hashCode(final String value) {
+        return value != null ? value.hashCode() : 0;
+    }
+
+    private static long mix(final long hash, final int value) {
+        final long mixed = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return mixed ^ mixed >>> 29;
+    }
+
+    /**
+     * The open windows of a share of the fingerprints, evicting the least recently opened window when full.
+     */
+    private static final class Stripe extends LinkedHashMap<Long, Window> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private transient List<LogEvent> evicted;
+
+        private Stripe(final int maxEntries) {
+            super(16, 0.75f, false);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Window> eldest) {
+            if (size() <= maxEntries) {
+                return false;
+            }
+            if (evicted != null) {
+                eldest.getValue().close(evicted);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The repeats of one fingerprint since its first event was shipped.
+     */
+    private static final class Window {
+
+        private final long firstMillis;
+        private long lastMillis;
+        private long repeats;
+        private LogEvent repeat;
+
+        private Window(final long firstMillis) {
+            this.firstMillis = firstMillis;
+        }
+
+        private void repeat(final LogEvent event) {
+            if (repeats++ == 0) {
+                // Events of the ring buffer are reused once appended, so the first repeat is copied.
+                repeat = event.toImmutable();
+            }
+            lastMillis = event.getTimeMillis();
+        }
+
+        private void close(final List<LogEvent> closed) {
+            if (repeats == 0) {
+                return;
+            }
+            final SortedArrayStringMap contextData = new SortedArrayStringMap(repeat.getContextData());
+            contextData.putValue("occurrences", repeats + 1);
+            contextData.putValue("firstOccurrence", firstMillis);
+            contextData.putValue("lastOccurrence", lastMillis);
+            closed.add(new Log4jLogEvent.Builder(repeat).setTimeMillis(lastMillis).setContextData(contextData).build());
+        }
+    }
+}
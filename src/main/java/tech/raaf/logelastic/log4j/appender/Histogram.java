@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies or request sizes.
+ * <p>
+ * Values are counted in buckets per power of two, so percentiles are accurate to within a factor of two, which is
+ * plenty to spot a regression, and recording a value is a few atomic additions.
+ * </p>
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(final long value) {
+        final long recorded = Math.max(0, value);
+        // Bucket i holds the values from 2^(i-1) up to 2^i - 1, bucket 0 holds zero.
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(recorded));
+        count.increment();
+        sum.add(recorded);
+        max.accumulate(recorded);
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the recorded values.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest recorded value.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the average of the recorded values, 0 when there are none.
+     */
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    public long getP95() {
+        return getPercentile(95);
+    }
+
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * Returns an upper bound of the given percentile.
+     *
+     * @param percentile the percentile, from 0 to 100.
+     * @return the upper bound of the bucket holding the percentile, 0 when there are no values.
+     */
+    public long getPercentile(final double percentile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                final long upper = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + Math.round(getMean()) + ", p50=" + getP50() + ", p99=" + getP99()
+                + ", max=" + getMax();
+    }
+}
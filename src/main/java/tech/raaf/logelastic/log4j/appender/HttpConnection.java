@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A persistent HTTP/1.1 connection to a single endpoint.
+ * <p>
+ * Only what is needed to talk to Elasticsearch is supported: requests always carry a {@code Content-Length}, and
+ * responses may be delimited by {@code Content-Length}, chunked transfer coding or the end of the connection.
+ * </p>
+ */
+final class HttpConnection {
+
+    private static final Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int MAX_ERROR_BODY = 8 * 1024;
+
+    /**
+     * The status line and, for unsuccessful requests, the start of the body of a response.
+     */
+    static final class Response {
+
+        private final int status;
+        private final String reason;
+        private final String errorBody;
+
+        Response(final int status, final String reason, final String errorBody) {
+            this.status = status;
+            this.reason = reason;
+            this.errorBody = errorBody;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getReason() {
+            return reason;
+        }
+
+        String getErrorBody() {
+            return errorBody;
+        }
+
+        boolean isSuccess() {
+            return status >= 200 && status <= 299;
+        }
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final Socket socket;
+    private final byte[] hostLine;
+    private final InputStream in;
+    private final OutputStream out;
+    private final StringBuilder line = new StringBuilder(128);
+    private final byte[] buffer = new byte[8192];
+    private byte[] head = new byte[256];
+
+    private boolean reusable = true;
+    private boolean used;
+    private boolean responseStarted;
+    private long lastUsedMillis = System.currentTimeMillis();
+
+    HttpConnection(final Socket socket, final String hostHeader) throws IOException {
+        this.socket = socket;
+        this.hostLine = ("Host: " + hostHeader + "\r\n").getBytes(HEADER_CHARSET);
+        this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+    }
+
+    /**
+     * Sends a request and reads the complete response.
+     *
+     * @param method the request method.
+     * @param target the path and query of the request.
+     * @param headers the request header lines other than {@code Host} and {@code Content-Length}, each ended by CRLF.
+     * @param body the buffer holding the request body.
+     * @param length the number of valid bytes in the buffer.
+     * @param sink receives the body of a successful response, may be null to discard it.
+     * @return the response.
+     * @throws IOException when the connection fails.
+     */
+    Response execute(final String method, final String target, final byte[] headers,
+                     final byte[] body, final int length, final OutputStream sink) throws IOException {
+        used = true;
+        responseStarted = false;
+        try {
+            writeHead(method, target, headers, length);
+            out.write(body, 0, length);
+            out.flush();
+            return readResponse(method, sink);
+        } catch (IOException | RuntimeException e) {
+            reusable = false;
+            throw e;
+        } finally {
+            lastUsedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return true if the connection already carried a request, so failures may be caused by a stale keep-alive.
+     */
+    boolean isUsed() {
+        return used;
+    }
+
+    /**
+     * @return true if the status line of the last response was received.
+     */
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    boolean isReusable() {
+        return reusable && !socket.isClosed();
+    }
+
+    long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    void close() {
+        reusable = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+
+    private void writeHead(final String method, final String target, final byte[] headers,
+                           final int length) throws IOException {
+        line.setLength(0);
+        line.append(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        writeLine();
+        out.write(hostLine);
+        line.setLength(0);
+        line.append("Content-Length: ").append(length).append("\r\n");
+        writeLine();
+        out.write(headers);
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes the line builder as ISO-8859-1 without creating a string.
+     */
+    private void writeLine() throws IOException {
+        final int n = line.length();
+        if (head.length < n) {
+            head = new byte[Math.max(n, head.length * 2)];
+        }
+        for (int i = 0; i < n; i++) {
+            final char c = line.charAt(i);
+            head[i] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        out.write(head, 0, n);
+    }
+
+    private Response readResponse(final String method, final OutputStream sink) throws IOException {
+        String statusLine = readLine();
+        responseStarted = true;
+        int status = parseStatus(statusLine);
+        while (status == 100) {
+            while (!readLine().isEmpty()) {
+                // Skip the headers of the interim response.
+            }
+            statusLine = readLine();
+            status = parseStatus(statusLine);
+        }
+        final int reasonStart = statusLine.indexOf(' ', statusLine.indexOf(' ') + 1);
+        final String reason = reasonStart > 0 ? statusLine.substring(reasonStart + 1) : "";
+
+        long contentLength = -1;
+        boolean chunked = false;
+        if (statusLine.startsWith("HTTP/1.0")) {
+            reusable = false;
+        }
+        String header;
+        while (!(header = readLine()).isEmpty()) {
+            final int colon = header.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            final String name = header.substring(0, colon).trim();
+            final String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                if (value.equalsIgnoreCase("close")) {
+                    reusable = false;
+                } else if (value.equalsIgnoreCase("keep-alive")) {
+                    reusable = true;
+                }
+            }
+        }
+
+        final boolean success = status >= 200 && status <= 299;
+        final ErrorBuffer error = success ? null : new ErrorBuffer();
+        final OutputStream target = success ? sink : error;
+        if (method.equals("HEAD") || status == 204 || status == 304) {
+            // No body.
+        } else if (chunked) {
+            readChunked(target);
+        } else if (contentLength >= 0) {
+            copy(target, contentLength);
+        } else {
+            reusable = false;
+            copy(target, Long.MAX_VALUE);
+        }
+        return new Response(status, reason, error != null ? error.toString() : null);
+    }
+
+    private void readChunked(final OutputStream target) throws IOException {
+        while (true) {
+            final String sizeLine = readLine();
+            final int extension = sizeLine.indexOf(';');
+            final long size = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+            if (size == 0) {
+                while (!readLine().isEmpty()) {
+                    // Skip trailers.
+                }
+                return;
+            }
+            copy(target, size);
+            readLine();
+        }
+    }
+
+    private void copy(final OutputStream target, final long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            final int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                if (length == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("Connection closed before the end of the response body");
+            }
+            if (target != null) {
+                target.write(buffer, 0, n);
+            }
+            remaining -= n;
+        }
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                final int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        throw new EOFException("Connection closed before the end of the response");
+    }
+
+    static int parseStatus(final String statusLine) throws IOException {
+        final int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+            throw new IOException("Malformed HTTP status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP status line: " + statusLine);
+        }
+    }
+
+    /**
+     * Keeps the start of an error body for reporting.
+     */
+    static final class ErrorBuffer extends ByteArrayOutputStream {
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            super.write(b, off, Math.max(0, Math.min(len, MAX_ERROR_BODY - count)));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of persistent connections to one Elasticsearch endpoint.
+ * <p>
+ * Connections are handed out most recently used first, so a quiet appender keeps few sockets warm, and connections
+ * that were idle for longer than the idle timeout are closed whenever the pool is used. A request that fails on a
+ * reused connection before the status line of the response arrived is sent once more on a fresh connection, since
+ * the server may have closed the idle connection in the meantime.
+ * </p>
+ */
+public final class HttpConnectionPool implements HttpTransport {
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final SSLSocketFactory sslSocketFactory;
+    private final boolean verifyHostname;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final Deque<HttpConnection> idle = new ArrayDeque<>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a pool for the endpoint of a URL.
+     *
+     * @param url any URL on the endpoint, only scheme, host and port are used.
+     * @param sslSocketFactory the factory for TLS sockets, null for plain HTTP.
+     * @param verifyHostname whether the host name must match the server certificate.
+     * @param connectTimeoutMillis the connect timeout, 0 for none.
+     * @param readTimeoutMillis the read timeout, 0 for none.
+     * @param maxConnections the maximum number of connections, leased and idle.
+     * @param idleTimeoutMillis how long a connection may stay idle before it is closed.
+     */
+    HttpConnectionPool(final URL url, final SSLSocketFactory sslSocketFactory, final boolean verifyHostname,
+                       final int connectTimeoutMillis, final int readTimeoutMillis, final int maxConnections,
+                       final long idleTimeoutMillis) {
+        this.host = url.getHost();
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        this.hostHeader = url.getPort() != -1 ? host + ':' + port : host;
+        this.sslSocketFactory = sslSocketFactory;
+        this.verifyHostname = verifyHostname;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Sends a request on a pooled connection, waiting for a free connection if all of them are in use.
+     *
+     * @param method the request method.
+     * @param target the path and query of the request.
+     * @param headers the request header lines other than {@code Host} and {@code Content-Length}.
+     * @param body the buffer holding the request body.
+     * @param length the number of valid bytes in the buffer.
+     * @param sink receives the body of a successful response, may be null to discard it.
+     * @return the response.
+     * @throws IOException when the request fails.
+     */
+    @Override
+    public HttpConnection.Response execute(final String method, final String target, final byte[] headers,
+                                           final byte[] body, final int length, final OutputStream sink) throws IOException {
+        acquire();
+        try {
+            HttpConnection connection = poll();
+            final boolean stale = connection.isUsed();
+            try {
+                return execute(connection, method, target, headers, body, length, sink);
+            } catch (IOException e) {
+                if (!stale || connection.isResponseStarted() || e instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                connection = connect();
+                return execute(connection, method, target, headers, body, length, sink);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends a request on the calling thread and reports the response to the callback before returning.
+     */
+    @Override
+    public void execute(final String method, final String target, final byte[] headers, final byte[] body,
+                        final int length, final OutputStream sink, final Callback callback) {
+        final HttpConnection.Response response;
+        try {
+            response = execute(method, target, headers, body, length, sink);
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.completed(response);
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * @return the host and port of the endpoint.
+     */
+    @Override
+    public String getEndpoint() {
+        return host + ':' + port;
+    }
+
+    /**
+     * @return the maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the number of connections currently carrying a request.
+     */
+    public int getLeasedConnections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of open connections waiting for a request.
+     */
+    public synchronized int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of connections opened so far.
+     */
+    public long getCreatedConnections() {
+        return created.get();
+    }
+
+    /**
+     * @return the number of requests that were sent on an already open connection.
+     */
+    public long getReusedConnections() {
+        return reused.get();
+    }
+
+    /**
+     * @return the number of connections closed because they were idle for too long.
+     */
+    public long getEvictedConnections() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the number of connections closed for any reason.
+     */
+    public long getClosedConnections() {
+        return closed.get();
+    }
+
+    /**
+     * Closes all idle connections and makes sure leased connections are closed when they are returned.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        synchronized (this) {
+            for (final HttpConnection connection : idle) {
+                close(connection);
+            }
+            idle.clear();
+        }
+    }
+
+    private HttpConnection.Response execute(final HttpConnection connection, final String method, final String target,
+                                            final byte[] headers, final byte[] body, final int length,
+                                            final OutputStream sink) throws IOException {
+        boolean ok = false;
+        try {
+            final HttpConnection.Response response = connection.execute(method, target, headers, body, length, sink);
+            ok = true;
+            return response;
+        } finally {
+            if (ok && connection.isReusable() && !shutdown) {
+                release(connection);
+            } else {
+                close(connection);
+            }
+        }
+    }
+
+    private void acquire() throws IOException {
+        try {
+            final long timeout = connectTimeoutMillis > 0 ? connectTimeoutMillis : Long.MAX_VALUE;
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new PoolExhaustedException("Timed out waiting for one of " + maxConnections + " connections to " + getEndpoint());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + getEndpoint(), e);
+        }
+    }
+
+    private HttpConnection poll() throws IOException {
+        synchronized (this) {
+            evictIdle(System.currentTimeMillis());
+            final HttpConnection connection = idle.pollFirst();
+            if (connection != null) {
+                reused.incrementAndGet();
+                return connection;
+            }
+        }
+        return connect();
+    }
+
+    private synchronized void release(final HttpConnection connection) {
+        evictIdle(System.currentTimeMillis());
+        idle.addFirst(connection);
+    }
+
+    private void evictIdle(final long now) {
+        final Iterator<HttpConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            final HttpConnection connection = oldestFirst.next();
+            if (now - connection.getLastUsedMillis() < idleTimeoutMillis && connection.isReusable()) {
+                return;
+            }
+            oldestFirst.remove();
+            evicted.incrementAndGet();
+            close(connection);
+        }
+    }
+
+    private void close(final HttpConnection connection) {
+        closed.incrementAndGet();
+        connection.close();
+    }
+
+    private HttpConnection connect() throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), Math.max(0, connectTimeoutMillis));
+            socket.setSoTimeout(Math.max(0, readTimeoutMillis));
+            final Socket connected;
+            if (sslSocketFactory != null) {
+                final SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                if (verifyHostname) {
+                    final SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(parameters);
+                }
+                sslSocket.startHandshake();
+                connected = sslSocket;
+            } else {
+                connected = socket;
+            }
+            created.incrementAndGet();
+            return new HttpConnection(connected, hostHeader);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -24,86 +24,216 @@ import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.ConfigurationException;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
-import org.apache.logging.log4j.core.util.IOUtils;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
 import tech.raaf.logelastic.log4j.config.Header;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.xml.ws.http.HTTPException;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class HttpManager extends AbstractManager {
 
-    private static int counter = 0;
-    private static Date when = new Date();
-
     private static final Charset CHARSET = Charset.forName("US-ASCII");
-    private static final int[] SECONDS = new int[] { 0, 1, 10, 30, 60, 120, 180, 240, 300, 600, 900, 1200 };
+    private static final String BULK_CONTENT_TYPE = "application/x-ndjson";
+    // Elasticsearch only sends what is read: the status of every bulk item, which keeps the items in request order,
+    // the errors, and the outcome of a single event.
+    private static final String BULK_FILTER_PATH = "filter_path=errors,items.*.error,items.*.status";
+    private static final String DOC_FILTER_PATH = "filter_path=result";
+    private static final int MAX_BUFFER_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_POOLED_BYTES = 32L * 1024 * 1024;
+    private static final int RESPONSE_BYTES = 4096;
+    private static final byte[] INDEX_FIELD = "\"_index\":\"".getBytes(StandardCharsets.UTF_8);
 
-    private final Configuration configuration;
     private final URL indexUrl;
     private final URL postUrl;
+    private final String postTarget;
+    private final String bulkTarget;
     private final int connectTimeoutMillis;
     private final int readTimeoutMillis;
-    private final Header[] headers;
     private final Property[] properties;
-    private final SslConfiguration sslConfiguration;
-    private final boolean verifyHostname;
+    private final NodeSelector nodeSelector;
+    private final ScheduledExecutorService sniffer;
+    private final RequestCompressor compressor;
+    private final ElasticMetrics metrics = new ElasticMetrics();
+    private final BufferPool bufferPool = new BufferPool(MAX_BUFFER_BYTES, MAX_POOLED_BYTES);
+    private final RequestHeaders requestHeaders;
+    private final RequestHeaders.Template bulkHeaders;
+    private final RequestHeaders.Template indexHeaders;
+    private final RequestHeaders.Template sniffHeaders;
+    private final boolean async;
+    private volatile RequestHeaders.Template eventHeaders;
+    private volatile byte[] indexMapping;
+    private volatile IndexBootstrap bootstrap;
+    // Resolved once, messages are also written from I/O threads, which must not wait for a name lookup.
+    private final String hostname = localHostName();
 
     public HttpManager(
             final Configuration configuration,
             final String name,
             final URL indexUrl,
             final URL postUrl,
+            final URL bulkUrl,
             final int connectTimeoutMillis,
             final int readTimeoutMillis,
             final Header[] headers,
             final Property[] properties,
             final SslConfiguration sslConfiguration,
-            final boolean verifyHostname) throws MalformedURLException {
+            final boolean verifyHostname,
+            final int maxConnections,
+            final long connectionIdleTimeoutMillis,
+            final List<URL> nodes,
+            final LoadBalancing loadBalancing,
+            final boolean sniff,
+            final long sniffIntervalMillis,
+            final RequestCompressor compressor,
+            final TransportType transportType) throws MalformedURLException {
 
         super(configuration.getLoggerContext(), name);
-        this.configuration = Objects.requireNonNull(configuration);
         this.indexUrl = indexUrl;
         this.postUrl = postUrl;
+        this.postTarget = withParameter(toTarget(postUrl), DOC_FILTER_PATH);
+        this.bulkTarget = withParameter(toTarget(bulkUrl), BULK_FILTER_PATH);
         this.connectTimeoutMillis = connectTimeoutMillis;
         this.readTimeoutMillis = readTimeoutMillis;
-        this.headers = headers != null ? headers : new Header[0];
         this.properties = properties != null ? properties : new Property[0];
-        this.sslConfiguration = sslConfiguration;
-        this.verifyHostname = verifyHostname;
+        this.compressor = compressor;
+        this.metrics.bind(bufferPool);
+
+        // Compile the headers once, so a request only writes prebuilt bytes.
+        final String contentEncoding = compressor != null ? compressor.getEncoding().getContentEncoding() : null;
+        this.requestHeaders = new RequestHeaders(configuration.getStrSubstitutor(), headers != null ? headers : new Header[0]);
+        this.bulkHeaders = requestHeaders.template(BULK_CONTENT_TYPE, contentEncoding);
+        this.indexHeaders = requestHeaders.template("application/json", contentEncoding);
+        this.sniffHeaders = requestHeaders.template(null, null);
+
+        // Validate the endpoints once, every request reuses the resulting connection settings.
+        if (!(postUrl.getProtocol().equalsIgnoreCase("http") || postUrl.getProtocol().equalsIgnoreCase("https"))) {
+            throw new ConfigurationException("URL must have scheme http or https");
+        }
+
+        final List<URL> nodeUrls = new ArrayList<>();
+        nodeUrls.add(new URL(postUrl.getProtocol(), postUrl.getHost(), postUrl.getPort(), ""));
+        if (nodes != null) {
+            for (final URL node : nodes) {
+                if (!node.getProtocol().equalsIgnoreCase(postUrl.getProtocol())) {
+                    throw new ConfigurationException("All nodes must have URL scheme " + postUrl.getProtocol());
+                }
+                final URL nodeUrl = new URL(node.getProtocol(), node.getHost(), node.getPort(), "");
+                if (!nodeUrls.get(0).toExternalForm().equals(nodeUrl.toExternalForm())) {
+                    nodeUrls.add(nodeUrl);
+                }
+            }
+        }
+
+        boolean isHttps = postUrl.getProtocol().equalsIgnoreCase("https");
+
+        if (sslConfiguration != null && !isHttps) {
+            throw new ConfigurationException("SSL configuration can only be specified with URL scheme https");
+        }
+        if (transportType == TransportType.ASYNC && isHttps) {
+            throw new ConfigurationException("The async transport can only be used with URL scheme http");
+        }
+        this.async = transportType == TransportType.ASYNC;
+
+        SSLSocketFactory sslSocketFactory = null;
+        if (isHttps) {
+            sslSocketFactory = sslConfiguration != null
+                    ? sslConfiguration.getSslSocketFactory()
+                    : (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+
+        final SSLSocketFactory nodeSslSocketFactory = sslSocketFactory;
+        this.nodeSelector = new NodeSelector(loadBalancing, nodeUrls, url -> new ElasticNode(url, async
+                ? new NioHttpTransport(url, connectTimeoutMillis, readTimeoutMillis, maxConnections, connectionIdleTimeoutMillis)
+                : new HttpConnectionPool(url, nodeSslSocketFactory, verifyHostname, connectTimeoutMillis,
+                        readTimeoutMillis, maxConnections, connectionIdleTimeoutMillis)));
+
+        if (sniff) {
+            this.sniffer = Executors.newSingleThreadScheduledExecutor(
+                    Log4jThreadFactory.createDaemonThreadFactory("ElasticSniffer-" + name));
+            if (sniffIntervalMillis > 0) {
+                this.sniffer.scheduleWithFixedDelay(this::sniff, 0, sniffIntervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                this.sniffer.execute(this::sniff);
+            }
+        } else {
+            this.sniffer = null;
+        }
     }
 
-    private Configuration getConfiguration() {
-        return configuration;
+    /**
+     * Posts a single event.
+     *
+     * @param layout the layout to serialize the event with.
+     * @param event the event.
+     * @return false if the event was not delivered because no node could be reached.
+     * @throws IOException when the request failed for another reason.
+     */
+    boolean send(final Layout<?> layout, final LogEvent event) throws IOException {
+        final byte[] body = layout.toByteArray(event);
+        return send(layout, event, body, body.length);
     }
 
-    void send(final Layout<?> layout, final LogEvent event) throws IOException {
+    /**
+     * Posts a single event that is already serialized.
+     *
+     * @param layout the layout the event was serialized with.
+     * @param event the event.
+     * @param body the buffer holding the serialized event.
+     * @param length the length of the serialized event.
+     * @return false if the event was not delivered because no node could be reached.
+     * @throws IOException when the request failed for another reason.
+     */
+    boolean send(final Layout<?> layout, final LogEvent event, final byte[] body, final int length) throws IOException {
+        return post(layout, event, postTarget, indexUrl.getPath(), body, length);
+    }
 
-        // Create a client header set  and add a Content-type header.
-        Set<Header> clientHeaders = new HashSet<>();
-        if (layout.getContentType() != null) {
-            clientHeaders.add(Header.createHeader(
-                    "Content-Type",
-                    layout.getContentType()));
-        }
+    /**
+     * Posts a single event that is already serialized to the given index.
+     *
+     * @param layout the layout the event was serialized with.
+     * @param event the event.
+     * @param indexPath the path of the index, such as {@code /logs-20190501}.
+     * @param body the buffer holding the serialized event.
+     * @param length the length of the serialized event.
+     * @return false if the event was not delivered because no node could be reached.
+     * @throws IOException when the request failed for another reason.
+     */
+    boolean send(final Layout<?> layout, final LogEvent event, final String indexPath, final byte[] body,
+                 final int length) throws IOException {
+        return post(layout, event, indexPath + "/_doc?" + DOC_FILTER_PATH, indexPath, body, length);
+    }
+
+    private boolean post(final Layout<?> layout, final LogEvent event, final String target, final String indexPath,
+                         final byte[] body, final int length) throws IOException {
 
-        // Add headers passed in the configuration.
-        for (final Header header : headers) {
-            clientHeaders.add(Header.createHeader(
-                    header.getName(),
-                    header.isValueNeedsLookup() ? getConfiguration().getStrSubstitutor().replace(event, header.getValue()) : header.getValue()));
+        // The layout decides the Content-Type, it is the same for every event unless the layout is swapped.
+        final String contentType = layout.getContentType();
+        RequestHeaders.Template clientHeaders = eventHeaders;
+        if (clientHeaders == null || !Objects.equals(clientHeaders.getContentType(), contentType)) {
+            clientHeaders = requestHeaders.template(contentType, compressor != null ? compressor.getEncoding().getContentEncoding() : null);
+            eventHeaders = clientHeaders;
         }
 
         // TODO: Create an enriched Object from LogEvent, LogEvent.getMessage() and Property[].
@@ -121,138 +251,557 @@ public class HttpManager extends AbstractManager {
 
 
         // Send the logevent over HTTP, handle conditional connect.
-        Date now = new Date();
-        if (when.equals(now) || when.before(now)) {
-            try {
-                if (counter != 0) {
-                    fakeLogMessage("WARN", getClass().getSimpleName(), "Ah, it's around " + new SimpleDateFormat("HH:mm:ss").format(when) + ", attempting to resume logging..  ");
-                }
-                conditionalConnect("POST", postUrl, clientHeaders, layout.toByteArray(event));
-                counter = 0;
-                when.setTime(now.getTime());
-
-            } catch (ConnectException|SocketTimeoutException|UnknownHostException e) {
-                if ( counter <= SECONDS.length ) {
-                    counter++;
-                } else {
-                    counter = 0;
+        if (!hasLiveNode()) {
+            return false;
+        }
+        try {
+            conditionalConnect("POST", target, clientHeaders, event, body, length, null);
+
+        } catch (ConnectException|SocketTimeoutException|UnknownHostException e) {
+            // The node has been marked dead.
+            return false;
+
+        } catch (PoolExhaustedException e) {
+            // Not delivered, the appender spills the event when it can.
+            return false;
+
+        } catch (HttpStatusException e) {
+            if (e.getStatus() == 404 ) {
+                final IndexBootstrap indexBootstrap = bootstrap;
+                if (indexBootstrap != null) {
+                    // Not delivered, the bootstrap creates the index on its own thread.
+                    indexBootstrap.missing(Collections.singleton(indexPath));
+                    return false;
                 }
+                createIndex(indexPath, event);
+                conditionalConnect("POST", target, clientHeaders, event, body, length, null);
+            } else if (isThrottled(e)) {
+                // Not delivered, the appender spills the event when it can.
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        return true;
+    }
 
-                when.setTime(now.getTime() + (SECONDS[counter] * 1000));
-                fakeLogMessage("WARN", e.getClass().getSimpleName(), "Skipping log shipping to Elasticsearch for  " + SECONDS[counter] + " seconds.. Resuming somewhere around " + new SimpleDateFormat("HH:mm:ss").format(when));
-
-            } catch (HTTPException e) {
-                if (e.getStatusCode() == 404 ) {
-                    fakeLogMessage("WARN", e.getClass().getSimpleName(), "Index does not exist, (re)creating..");
-                    byte[] body= toByteArray(this.getClass().getResourceAsStream("/index_mapping.json"));
-                    conditionalConnect("PUT", indexUrl, clientHeaders, body);
-                    conditionalConnect("POST", postUrl, clientHeaders, layout.toByteArray(event));
-                } else {
-                    fakeLogMessage("WARN", e.getClass().getSimpleName(), "Got an HTTP status code that I don't handle: " + e.getStatusCode());
-                }
+    /**
+     * Posts an NDJSON body to the bulk endpoint and returns the raw bulk response.
+     *
+     * @param body the buffer holding the NDJSON body.
+     * @param length the number of valid bytes in the buffer.
+     * @return the response body.
+     * @throws IOException when the request could not be completed, a {@link ConnectException} when all nodes are
+     *                     marked dead.
+     * @throws HttpStatusException when Elasticsearch rejected the whole request, such as with status 429 or 503 when
+     *                             it is overloaded, or with status 404 when an index is missing and the bootstrap was
+     *                             asked to create it.
+     */
+    byte[] sendBulk(final byte[] body, final int length) throws IOException {
+        final PooledOutputStream response = postBulk(body, length);
+        try {
+            return response.toByteArray();
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Posts an NDJSON body to the bulk endpoint and reports the raw bulk response to a callback.
+     * <p>
+     * With the async transport the request is only queued, and once the response arrived the I/O thread of the node
+     * hands it to the given executor, which runs the callback, so a single thread can keep many bulk requests in
+     * flight and the I/O thread never blocks. With the blocking transport the callback runs before this method
+     * returns. Should the executor reject the response because it was shut down, the callback doesn't run at all.
+     * </p>
+     * <p>
+     * The response is read into a pooled buffer, which goes back to the pool once the callback returns.
+     * </p>
+     *
+     * @param body the buffer holding the NDJSON body, which must not change until the callback ran.
+     * @param length the number of valid bytes in the buffer.
+     * @param executor runs the callback and any other work on a response of the async transport.
+     * @param callback receives the response body, or the {@link IOException} that {@link #sendBulk(byte[], int)}
+     *                 would have thrown.
+     */
+    void sendBulk(final byte[] body, final int length, final Executor executor,
+                  final BiConsumer<PooledOutputStream, Exception> callback) {
+        final ElasticNode node = async ? acquireNode(null) : null;
+        if (node == null) {
+            sendBulkBlocking(body, length, callback);
+            return;
+        }
+        final RequestCompressor.Compressed compressed = compressor != null ? compressor.compress(body, length) : null;
+        final PooledOutputStream response = new PooledOutputStream(bufferPool, RESPONSE_BYTES);
+        final HttpTransport.Callback completion = new HttpTransport.Callback() {
+            @Override
+            public void completed(final HttpConnection.Response result) {
+                release(compressed);
+                handOff(executor, response, () -> handleBulkResponse(body, length, result, response, callback));
+            }
+
+            @Override
+            public void failed(final IOException e) {
+                release(compressed);
+                handOff(executor, response, () -> {
+                    response.release();
+                    callback.accept(null, e);
+                });
             }
+        };
+        if (compressed == null) {
+            executeAsync(node, "POST", bulkTarget, bulkHeaders.render(null, false), body, length, response, completion);
+        } else {
+            executeAsync(node, "POST", bulkTarget, bulkHeaders.render(null, true), compressed.array(), compressed.size(), response, completion);
         }
     }
 
-    private void conditionalConnect(String method, URL url, Set<Header> headers, byte[] body) throws IOException {
-        final HttpURLConnection httpConnection = (HttpURLConnection)url.openConnection();
-        httpConnection.setAllowUserInteraction(false);
-        httpConnection.setDoOutput(true);
-        httpConnection.setDoInput(true);
-        httpConnection.setRequestMethod(method);
+    private static void handOff(final Executor executor, final PooledOutputStream response, final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The caller stopped, and took care of the request when it did.
+            response.release();
+        }
+    }
 
-        if (connectTimeoutMillis > 0) {
-            httpConnection.setConnectTimeout(connectTimeoutMillis);
+    private void handleBulkResponse(final byte[] body, final int length, final HttpConnection.Response result,
+                                    final PooledOutputStream response, final BiConsumer<PooledOutputStream, Exception> callback) {
+        if (result.isSuccess()) {
+            try {
+                callback.accept(response, null);
+            } finally {
+                response.release();
+            }
+            return;
         }
-        if (readTimeoutMillis > 0) {
-            httpConnection.setReadTimeout(readTimeoutMillis);
+        response.release();
+        metrics.requestFailed(result.getStatus());
+        final IndexBootstrap indexBootstrap = bootstrap;
+        if (result.getStatus() == 404 && indexBootstrap != null) {
+            indexBootstrap.missing(indexPaths(body, length));
+            callback.accept(null, new HttpStatusException(404));
+        } else if (result.getStatus() == 404) {
+            // Creates the indices and repeats the request.
+            sendBulkBlocking(body, length, callback);
+        } else {
+            callback.accept(null, new HttpStatusException(result.getStatus(), describe(result)));
         }
+    }
 
-        for (final Header header : headers) {
-            httpConnection.setRequestProperty(
-                    header.getName(),
-                    header.getValue());
+    private void sendBulkBlocking(final byte[] body, final int length, final BiConsumer<PooledOutputStream, Exception> callback) {
+        final PooledOutputStream response;
+        try {
+            response = postBulk(body, length);
+        } catch (IOException e) {
+            callback.accept(null, e);
+            return;
+        }
+        try {
+            callback.accept(response, null);
+        } finally {
+            response.release();
         }
+    }
 
-        if (!(url.getProtocol().equalsIgnoreCase("http") || url.getProtocol().equalsIgnoreCase("https"))) {
-            throw new ConfigurationException("URL must have scheme http or https");
+    /**
+     * Posts an NDJSON body to the bulk endpoint, reading the response into a pooled buffer the caller releases.
+     *
+     * @return the response.
+     */
+    private PooledOutputStream postBulk(final byte[] body, final int length) throws IOException {
+        if (!hasLiveNode()) {
+            throw new ConnectException("All Elasticsearch nodes are marked dead");
         }
 
-        boolean isHttps = url.getProtocol().equalsIgnoreCase("https");
+        final PooledOutputStream response = new PooledOutputStream(bufferPool, RESPONSE_BYTES);
+        boolean returned = false;
+        try {
+            // Bulk bodies are shared by many events, so lookups are resolved without an event.
+            conditionalConnect("POST", bulkTarget, bulkHeaders, null, body, length, response);
+            returned = true;
+            return response;
+
+        } catch (HttpStatusException e) {
+            if (e.getStatus() == 404 ) {
+                final Set<String> indices = indexPaths(body, length);
+                final IndexBootstrap indexBootstrap = bootstrap;
+                if (indexBootstrap != null) {
+                    // The caller retries or spills the batch, the bootstrap creates the indices on its own thread.
+                    indexBootstrap.missing(indices);
+                    throw e;
+                }
+                for (final String index : indices) {
+                    createIndex(index, null);
+                }
+                response.reset();
+                conditionalConnect("POST", bulkTarget, bulkHeaders, null, body, length, response);
+                returned = true;
+                return response;
+            }
+            throw e;
+        } finally {
+            if (!returned) {
+                response.release();
+            }
+        }
+    }
 
-        if (this.sslConfiguration != null && !isHttps) {
-            throw new ConfigurationException("SSL configuration can only be specified with URL scheme https");
+    /**
+     * Collects the paths of the indices a bulk body writes to, from the {@code _index} of its action lines, or the
+     * index URL for action lines without one.
+     */
+    private Set<String> indexPaths(final byte[] body, final int length) {
+        final Set<String> paths = new LinkedHashSet<>();
+        final String basePath = indexUrl.getPath().endsWith("/")
+                ? indexUrl.getPath().substring(0, indexUrl.getPath().length() - 1) : indexUrl.getPath();
+        final String parent = basePath.substring(0, basePath.lastIndexOf('/') + 1);
+        boolean action = true;
+        for (int start = 0; start < length; action = !action) {
+            int end = start;
+            while (end < length && body[end] != '\n') {
+                end++;
+            }
+            if (action) {
+                final String name = indexName(body, start, end);
+                paths.add(name != null ? parent + name : basePath);
+            }
+            start = end + 1;
         }
+        return paths;
+    }
 
-        if (isHttps && !verifyHostname) {
-            ((HttpsURLConnection)httpConnection).setHostnameVerifier(LaxHostnameVerifier.INSTANCE);
+    private static String indexName(final byte[] body, final int start, final int end) {
+        final int from = indexOf(body, start, end, INDEX_FIELD);
+        if (from < 0) {
+            return null;
+        }
+        int to = from;
+        while (to < end && body[to] != '"') {
+            to++;
         }
+        return new String(body, from, to - from, StandardCharsets.UTF_8);
+    }
 
-        if (sslConfiguration != null) {
-            ((HttpsURLConnection)httpConnection).setSSLSocketFactory(sslConfiguration.getSslSocketFactory());
+    /**
+     * @return the offset right after the first occurrence of the pattern, or -1.
+     */
+    private static int indexOf(final byte[] body, final int start, final int end, final byte[] pattern) {
+        outer:
+        for (int i = start; i <= end - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (body[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i + pattern.length;
         }
+        return -1;
+    }
 
-        httpConnection.setFixedLengthStreamingMode(body.length);
+    private static void release(final RequestCompressor.Compressed compressed) {
+        if (compressed != null) {
+            compressed.release();
+        }
+    }
 
+    /**
+     * @return true if bulk requests are sent with the async transport.
+     */
+    boolean isAsync() {
+        return async;
+    }
 
+    private static boolean isThrottled(final HttpStatusException e) {
+        return e.getStatus() == 429 || e.getStatus() == 503;
+    }
 
+    boolean hasLiveNode() {
+        return nodeSelector.select(null) != null;
+    }
 
-        httpConnection.connect();
+    /**
+     * Hands the indices that requests find missing to a bootstrap, which creates them on its own thread, instead of
+     * creating them on the thread that sent the request before repeating it.
+     *
+     * @param bootstrap the bootstrap of the appender, or null to create missing indices before repeating a request.
+     */
+    void setIndexBootstrap(final IndexBootstrap bootstrap) {
+        this.bootstrap = bootstrap;
+    }
 
-        try (OutputStream os = httpConnection.getOutputStream()) {
-            os.write(body);
+    private void createIndex(final String indexPath, final LogEvent event) throws IOException {
+        fakeLogMessage("WARN", HttpStatusException.class.getSimpleName(), "Index " + indexPath + " does not exist, (re)creating..");
+        byte[] body = getIndexMapping();
+        conditionalConnect("PUT", indexPath, indexHeaders, event, body, body.length, null);
+    }
+
+    /**
+     * Returns the mapping indices are created with, read from {@code /index_mapping.json} on the classpath once.
+     *
+     * @return the mapping, which must not be changed.
+     * @throws IOException when the mapping could not be read.
+     */
+    byte[] getIndexMapping() throws IOException {
+        byte[] mapping = indexMapping;
+        if (mapping == null) {
+            try (InputStream in = getClass().getResourceAsStream("/index_mapping.json")) {
+                if (in == null) {
+                    throw new IOException("No /index_mapping.json on the classpath");
+                }
+                mapping = toByteArray(in);
+            }
+            indexMapping = mapping;
         }
+        return mapping;
+    }
 
-        final byte[] buffer = new byte[1024];
+    /**
+     * Sends a PUT request with a JSON body, such as to create an index or install an index template, and returns the
+     * response whatever its status, so the caller can tell an index that already exists from a failure.
+     *
+     * @param target the path of the request.
+     * @param body the JSON body.
+     * @return the response.
+     * @throws IOException when no node could be reached.
+     */
+    HttpConnection.Response put(final String target, final byte[] body) throws IOException {
+        return execute("PUT", target, indexHeaders.render(null, false), body, body.length, null);
+    }
+
+    private static String toTarget(final URL url) {
+        return url.getQuery() != null ? url.getPath() + '?' + url.getQuery() : url.getPath();
+    }
+
+    private static String withParameter(final String target, final String parameter) {
+        return target + (target.indexOf('?') >= 0 ? '&' : '?') + parameter;
+    }
 
-        try (InputStream is = httpConnection.getInputStream()) {
-            while (IOUtils.EOF != is.read(buffer)) {
+    private void conditionalConnect(String method, String target, RequestHeaders.Template headers, LogEvent event, byte[] body, int length, OutputStream response) throws IOException {
+        final RequestCompressor.Compressed compressed = compressor != null ? compressor.compress(body, length) : null;
+        final HttpConnection.Response result;
+        if (compressed == null) {
+            result = execute(method, target.isEmpty() ? "/" : target, headers.render(event, false), body, length, response);
+        } else {
+            try {
+                result = execute(method, target.isEmpty() ? "/" : target, headers.render(event, true), compressed.array(), compressed.size(), response);
+            } finally {
+                compressed.release();
             }
-        } catch (IOException e) {
-            final StringBuilder errorMessage = new StringBuilder();
+        }
 
-            try (InputStream es = httpConnection.getErrorStream()) {
-                errorMessage.append(httpConnection.getResponseCode());
+        if (!result.isSuccess()) {
+            metrics.requestFailed(result.getStatus());
+            // The caller decides whether to create an index, back off and retry, or give up.
+            throw new HttpStatusException(result.getStatus(), describe(result));
+        }
+    }
+
+    private static String describe(final HttpConnection.Response result) {
+        final StringBuilder errorMessage = new StringBuilder();
+        errorMessage.append(result.getStatus());
+
+        if (!result.getReason().isEmpty()) {
+            errorMessage.append(' ').append(result.getReason());
+        }
+
+        if (result.getErrorBody() != null && !result.getErrorBody().isEmpty()) {
+            errorMessage.append(" - ").append(result.getErrorBody());
+        }
+        return errorMessage.toString();
+    }
 
-                if (httpConnection.getResponseMessage() != null) {
-                    errorMessage.append(' ').append(httpConnection.getResponseMessage());
+    /**
+     * Sends a request to a live node. A node that can't be reached is marked dead, and when the request
+     * certainly didn't reach it, the request is sent to the next live node. Running out of pooled connections
+     * leaves the node alone.
+     */
+    private HttpConnection.Response execute(String method, String target, byte[] headers, byte[] body, int length, OutputStream response) throws IOException {
+        ElasticNode node = acquireNode(null);
+        if (node == null) {
+            throw new ConnectException("All Elasticsearch nodes are marked dead");
+        }
+        while (true) {
+            final ElasticNode current = node;
+            current.begin();
+            final long startNanos = System.nanoTime();
+            try {
+                final HttpConnection.Response result = node.getTransport().execute(method, target, headers, body, length, response);
+                answered(node, startNanos);
+                return result;
+
+            } catch (PoolExhaustedException e) {
+                // The node is fine, the appender has more requests going than the pool allows.
+                throw e;
+
+            } catch (IOException e) {
+                failed(node, e);
+                final ElasticNode next = acquireNode(node);
+                if (next == null || !isUnreachable(e)) {
+                    throw e;
                 }
+                node = next;
+                metrics.retried(1);
+
+            } finally {
+                current.end();
+            }
+        }
+    }
+
+    /**
+     * Sends a request to a node without waiting for the response. Like {@link #execute}, a node that can't be reached
+     * is marked dead, and the request goes to the next live node when it certainly didn't reach this one, while
+     * running out of pooled connections leaves the node alone.
+     */
+    private void executeAsync(final ElasticNode node, final String method, final String target, final byte[] headers,
+                              final byte[] body, final int length, final PooledOutputStream response,
+                              final HttpTransport.Callback callback) {
+        node.begin();
+        final long startNanos = System.nanoTime();
+        node.getTransport().execute(method, target, headers, body, length, response, new HttpTransport.Callback() {
+            @Override
+            public void completed(final HttpConnection.Response result) {
+                node.end();
+                answered(node, startNanos);
+                callback.completed(result);
+            }
 
-                if (es != null) {
-                    errorMessage.append(" - ");
-                    int n;
-                    while (IOUtils.EOF != (n = es.read(buffer))) {
-                        errorMessage.append(new String(buffer, 0, n, CHARSET));
-                    }
+            @Override
+            public void failed(final IOException e) {
+                node.end();
+                if (e instanceof PoolExhaustedException) {
+                    callback.failed(e);
+                    return;
                 }
+                HttpManager.this.failed(node, e);
+                final ElasticNode next = acquireNode(node);
+                if (next == null || !isUnreachable(e)) {
+                    callback.failed(e);
+                    return;
+                }
+                metrics.retried(1);
+                response.reset();
+                executeAsync(next, method, target, headers, body, length, response, callback);
             }
+        });
+    }
+
+    private void answered(final ElasticNode node, final long startNanos) {
+        metrics.requestCompleted(startNanos);
+        if (node.markAlive()) {
+            fakeLogMessage("WARN", getClass().getSimpleName(), "Ah, Elasticsearch node " + node + " is answering again, resuming logging to it..  ");
+        }
+    }
 
-            switch (httpConnection.getResponseCode()) {
-                case 404:
-                    throw new HTTPException(404);
-                default:
-                    if (httpConnection.getResponseCode() > -1) {
-                        throw new IOException(errorMessage.toString());
-                    } else {
-                        throw e;
-                    }
+    private void failed(final ElasticNode node, final IOException e) {
+        metrics.requestFailed(0);
+        final long millis = node.markDead();
+        if (millis >= 0) {
+            fakeLogMessage("WARN", e.getClass().getSimpleName(), "Skipping Elasticsearch node " + node + " for  " + (millis + 500) / 1000 + " seconds.. Resuming somewhere around " + new SimpleDateFormat("HH:mm:ss").format(new Date(node.getDeadUntilMillis())));
+        }
+    }
+
+    private static boolean isUnreachable(final IOException e) {
+        return e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+    }
+
+    /**
+     * Selects a live node and claims its circuit breaker, which only fails when another request just claimed the
+     * probe of a recovering node.
+     */
+    private ElasticNode acquireNode(final ElasticNode exclude) {
+        ElasticNode node = nodeSelector.select(exclude);
+        for (int attempt = 1; node != null && !node.getCircuitBreaker().tryAcquire(); attempt++) {
+            node = attempt < nodeSelector.getNodes().size() ? nodeSelector.select(node) : null;
+        }
+        return node;
+    }
+
+    private void sniff() {
+        final byte[] headers = sniffHeaders.render(null, false);
+        for (final ElasticNode node : nodeSelector.getNodes()) {
+            try {
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                final HttpConnection.Response result = node.getTransport().execute("GET", "/_nodes/http", headers, new byte[0], 0, response);
+                if (!result.isSuccess()) {
+                    continue;
+                }
+                final List<URL> sniffed = NodeSniffer.parse(response.toByteArray(), node.getUrl().getProtocol());
+                for (final ElasticNode removed : nodeSelector.update(sniffed)) {
+                    removed.getTransport().shutdown();
+                }
+                return;
+            } catch (IOException e) {
+                // Try the next node.
             }
         }
+        fakeLogMessage("WARN", getClass().getSimpleName(), "Unable to sniff the Elasticsearch nodes, keeping " + nodeSelector.getNodes());
+    }
 
+    /**
+     * Returns the Elasticsearch nodes requests are spread over.
+     *
+     * @return the nodes.
+     */
+    public List<ElasticNode> getNodes() {
+        return nodeSelector.getNodes();
     }
 
-    private void  fakeLogMessage(String level, String logger, String message) {
-        String hostname = "unknown";
+    /**
+     * Returns the metrics of the requests sent by this manager and of the appender using it.
+     *
+     * @return the metrics.
+     */
+    public ElasticMetrics getMetrics() {
+        return metrics;
+    }
 
-        try {
-            hostname = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            // empty
+    /**
+     * Returns the pool of the buffers that events are serialized into, batches assembled in and responses read into.
+     *
+     * @return the buffer pool.
+     */
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the compressor of request bodies.
+     *
+     * @return the compressor, or null when requests are not compressed.
+     */
+    public RequestCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+        if (sniffer != null) {
+            sniffer.shutdownNow();
+        }
+        if (compressor != null) {
+            compressor.shutdown();
         }
+        for (final ElasticNode node : nodeSelector.getNodes()) {
+            node.getTransport().shutdown();
+        }
+        return true;
+    }
 
+    void fakeLogMessage(String level, String logger, String message) {
         System.err.println("[" + level.toUpperCase() + "] [" +  getCurrentDateTime() + "] [" + hostname  +  "] " +  logger + ": " + message);
 
     }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+
     private String getCurrentDateTime() {
         return LocalDateTime.now()
                 .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS"));
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.IOException;
+
+/**
+ * Signals that Elasticsearch answered a request with a status other than 2xx, such as 404 for an index that doesn't
+ * exist, 429 and 503 for an overloaded cluster, or 400 and 413 for a request it will never accept.
+ */
+final class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    HttpStatusException(final int status) {
+        this(status, "HTTP status " + status);
+    }
+
+    /**
+     * @param status the HTTP status of the response.
+     * @param message the status, reason and error body of the response.
+     */
+    HttpStatusException(final int status, final String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return the HTTP status of the response.
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * A full write queue or a node in trouble goes away by itself, a request that is malformed or too large doesn't.
+     *
+     * @return true if sending the same request again later may succeed.
+     */
+    boolean isRetryable() {
+        return isRetryable(status);
+    }
+
+    /**
+     * @param status the HTTP status of a response.
+     * @return true if sending the same request again later may succeed.
+     */
+    static boolean isRetryable(final int status) {
+        return status == 429 || status >= 500;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends HTTP requests to one Elasticsearch endpoint.
+ * <p>
+ * A blocking transport, the {@link HttpConnectionPool}, completes a request on the calling thread, so a thread has
+ * at most one request in flight. An asynchronous transport, the {@link NioHttpTransport}, hands the request to its
+ * I/O thread and reports the response to a callback, so a single thread can keep many requests in flight.
+ * </p>
+ */
+interface HttpTransport {
+
+    /**
+     * Receives the outcome of an asynchronous request. The callback may run on the I/O thread of the transport, so it
+     * must not block or wait for other requests on the same transport.
+     */
+    interface Callback {
+
+        /**
+         * @param response the response, whatever its status.
+         */
+        void completed(HttpConnection.Response response);
+
+        /**
+         * @param e why no response was received.
+         */
+        void failed(IOException e);
+    }
+
+    /**
+     * Sends a request and waits for the complete response.
+     *
+     * @param method the request method.
+     * @param target the path and query of the request.
+     * @param headers the request header lines other than {@code Host} and {@code Content-Length}, each ended by CRLF.
+     * @param body the buffer holding the request body.
+     * @param length the number of valid bytes in the buffer.
+     * @param sink receives the body of a successful response, may be null to discard it.
+     * @return the response.
+     * @throws IOException when the request fails.
+     */
+    HttpConnection.Response execute(String method, String target, byte[] headers, byte[] body, int length,
+                                    OutputStream sink) throws IOException;
+
+    /**
+     * Sends a request and reports the response to a callback. The body must not change until the callback ran.
+     *
+     * @param method the request method.
+     * @param target the path and query of the request.
+     * @param headers the request header lines other than {@code Host} and {@code Content-Length}, each ended by CRLF.
+     * @param body the buffer holding the request body.
+     * @param length the number of valid bytes in the buffer.
+     * @param sink receives the body of a successful response, may be null to discard it.
+     * @param callback receives the outcome, exactly once.
+     */
+    void execute(String method, String target, byte[] headers, byte[] body, int length, OutputStream sink,
+                 Callback callback);
+
+    /**
+     * @return true if requests are completed by an I/O thread rather than by the calling thread.
+     */
+    boolean isAsync();
+
+    /**
+     * @return the host and port of the endpoint.
+     */
+    String getEndpoint();
+
+    /**
+     * Closes idle connections and makes sure the others are closed once their requests are done.
+     */
+    void shutdown();
+}
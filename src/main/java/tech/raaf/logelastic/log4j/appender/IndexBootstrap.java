@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets up the indices of an appender in the background, so events never wait for a 404 and the index it triggers.
+ * <p>
+ * At startup an index template is installed from {@code /index_mapping.json}, matching all indices of the appender,
+ * such as {@code logs-*} for daily indices. After that the index of the current period and the one of the next are
+ * created ahead of their first event, and remembered once they exist, so a round only sends requests when a new
+ * period comes in sight. Should Elasticsearch reject the template, indices are created with the mapping itself; a
+ * template that fails with status 429 or 5xx is tried again in the next round, with the mapping used until then.
+ * Rounds that can't reach a node are repeated at the next interval.
+ * </p>
+ * <p>
+ * Requests that find an index missing anyway, such as one deleted after it was created, don't create it themselves but
+ * report it with {@link #missing(Collection)}, and the index is created on the bootstrap thread.
+ * </p>
+ */
+final class IndexBootstrap {
+
+    private static final long INTERVAL_MILLIS = 30000;
+    private static final byte[] EMPTY_BODY = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpManager manager;
+    private final IndexRouter router;
+    private final String templateName;
+    private final Set<String> knownIndices = ConcurrentHashMap.newKeySet();
+    private final Set<String> missingIndices = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService executor;
+    private volatile boolean templateInstalled;
+    private volatile boolean templateRejected;
+
+    /**
+     * @param manager the manager to send the requests with.
+     * @param name the name of the appender.
+     * @param router the router that names the indices.
+     * @param templateName the name of the index template.
+     */
+    IndexBootstrap(final HttpManager manager, final String name, final IndexRouter router, final String templateName) {
+        this.manager = manager;
+        this.router = router;
+        this.templateName = templateName;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Log4jThreadFactory.createDaemonThreadFactory("ElasticBootstrap-" + name));
+        this.executor.scheduleWithFixedDelay(this::bootstrap, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops setting up indices.
+     *
+     * @param timeout the maximum time to wait for a round in progress.
+     * @param timeUnit the unit of the timeout.
+     * @return true if the bootstrap thread stopped in time.
+     */
+    boolean stop(final long timeout, final TimeUnit timeUnit) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Installs the template if that didn't happen yet and creates the current and the next index if they aren't
+     * known to exist.
+     */
+    void bootstrap() {
+        try {
+            if (!templateInstalled && !templateRejected) {
+                installTemplate();
+            }
+            final IndexRouter.Index current = router.route(System.currentTimeMillis());
+            final IndexRouter.Index next = router.next(current);
+            create(current.getPath());
+            create(next.getPath());
+            // Only the names in sight are kept, so the cache doesn't grow with every period.
+            knownIndices.retainAll(Arrays.asList(current.getPath(), next.getPath()));
+        } catch (IOException e) {
+            // No node could be reached, the next round tries again.
+        }
+    }
+
+    private void installTemplate() throws IOException {
+        final HttpConnection.Response response = manager.put("/_template/" + templateName, template());
+        if (response.isSuccess()) {
+            templateInstalled = true;
+        } else if (HttpStatusException.isRetryable(response.getStatus())) {
+            // An overloaded or failing cluster may take the template later, the indices get the mapping until then.
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Unable to install index template "
+                    + templateName + ", status " + response.getStatus() + ", trying again in the next round: "
+                    + response.getErrorBody());
+        } else {
+            templateRejected = true;
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Elasticsearch rejected index template "
+                    + templateName + " with status " + response.getStatus() + ", creating indices with the mapping instead: "
+                    + response.getErrorBody());
+        }
+    }
+
+    private byte[] template() throws IOException {
+        // The mapping is an object, the template is that object with the index pattern in front.
+        final byte[] mapping = manager.getIndexMapping();
+        int start = 0;
+        while (start < mapping.length && mapping[start] != '{') {
+            start++;
+        }
+        final ByteArrayOutputStream template = new ByteArrayOutputStream(mapping.length + 64);
+        final byte[] patterns = ("{\"index_patterns\":[\"" + router.getPattern() + "\"],").getBytes(StandardCharsets.UTF_8);
+        template.write(patterns, 0, patterns.length);
+        template.write(mapping, start + 1, mapping.length - start - 1);
+        return template.toByteArray();
+    }
+
+    /**
+     * Has indices that a request found missing created on the bootstrap thread. Returns right away, so it can be
+     * called by the threads that send events; an index that is reported again before it was created is only created
+     * once.
+     *
+     * @param indexPaths the paths of the indices, such as {@code /logs-20190501}.
+     */
+    void missing(final Collection<String> indexPaths) {
+        for (final String path : indexPaths) {
+            knownIndices.remove(path);
+            if (!missingIndices.add(path)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    missingIndices.remove(path);
+                    try {
+                        create(path);
+                    } catch (IOException e) {
+                        // No node could be reached, the next request that finds the index missing reports it again.
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Stopped.
+                missingIndices.remove(path);
+            }
+        }
+    }
+
+    private void create(final String path) throws IOException {
+        if (knownIndices.contains(path)) {
+            return;
+        }
+        // With the template in place, Elasticsearch applies the mapping itself.
+        final HttpConnection.Response response = manager.put(path, templateInstalled ? EMPTY_BODY : manager.getIndexMapping());
+        if (response.isSuccess() || isAlreadyExists(response)) {
+            knownIndices.add(path);
+        } else {
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Unable to create index " + path
+                    + ", status " + response.getStatus() + ": " + response.getErrorBody());
+        }
+    }
+
+    private static boolean isAlreadyExists(final HttpConnection.Response response) {
+        final String error = response.getErrorBody();
+        return response.getStatus() == 400 && error != null
+                && (error.contains("resource_already_exists_exception") || error.contains("index_already_exists_exception"));
+    }
+}
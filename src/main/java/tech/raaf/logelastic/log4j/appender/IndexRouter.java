@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Picks the index an event is written to from the time of the event, such as {@code logs-20190501} for daily indices.
+ * <p>
+ * The index of the current period is cached together with the bounds of the period, so routing an event costs a
+ * comparison of its time against those bounds, and the name is only formatted again once a boundary has passed.
+ * Suffixes are zero-padded, from {@code yyyy} for yearly up to {@code yyyyMMddHHmm} for indices per minute.
+ * </p>
+ */
+final class IndexRouter {
+
+    private final String basePath;
+    private final IndexFrequencyType frequency;
+    private final String delimiter;
+    private final ZoneId zone;
+    private volatile Index current;
+
+    /**
+     * @param basePath the path of the index URL without suffix, such as {@code /logs}.
+     * @param frequency how often to start a new index.
+     * @param delimiter the text between the index name and the time suffix.
+     * @param zone the time zone periods are counted in.
+     */
+    IndexRouter(final String basePath, final IndexFrequencyType frequency, final String delimiter, final ZoneId zone) {
+        this.basePath = basePath.endsWith("/") ? basePath.substring(0, basePath.length() - 1) : basePath;
+        this.frequency = frequency != null ? frequency : IndexFrequencyType.NONE;
+        this.delimiter = delimiter != null ? delimiter : "";
+        this.zone = zone;
+        if (this.frequency == IndexFrequencyType.NONE) {
+            this.current = new Index(Long.MIN_VALUE, Long.MAX_VALUE, this.basePath, BulkBatch.INDEX_ACTION);
+        } else {
+            // An empty period, so the first event fills the cache.
+            this.current = new Index(Long.MIN_VALUE, Long.MIN_VALUE, this.basePath, BulkBatch.INDEX_ACTION);
+        }
+    }
+
+    /**
+     * Returns the index of an event.
+     *
+     * @param timeMillis the time of the event.
+     * @return the index.
+     */
+    Index route(final long timeMillis) {
+        final Index index = current;
+        if (timeMillis >= index.startMillis && timeMillis < index.endMillis) {
+            return index;
+        }
+        final Index routed = newIndex(timeMillis);
+        // Late events of the previous period don't push the cache back.
+        if (timeMillis > index.startMillis) {
+            current = routed;
+        }
+        return routed;
+    }
+
+    /**
+     * Returns the index that follows an index, such as to create it before the first event arrives.
+     *
+     * @param index the index.
+     * @return the index of the next period, or the same index when indices don't roll.
+     */
+    Index next(final Index index) {
+        return index.endMillis == Long.MAX_VALUE ? index : newIndex(index.endMillis);
+    }
+
+    /**
+     * @return the pattern that matches the names of all indices of this router, such as {@code logs-*}.
+     */
+    String getPattern() {
+        final String name = basePath.substring(basePath.lastIndexOf('/') + 1);
+        return frequency == IndexFrequencyType.NONE ? name : name + delimiter + '*';
+    }
+
+    private Index newIndex(final long timeMillis) {
+        ZonedDateTime start = Instant.ofEpochMilli(timeMillis).atZone(zone);
+        final ChronoUnit unit;
+        switch (frequency) {
+            case MINUTE:
+                unit = ChronoUnit.MINUTES;
+                start = start.truncatedTo(unit);
+                break;
+            case HOUR:
+                unit = ChronoUnit.HOURS;
+                start = start.truncatedTo(unit);
+                break;
+            case DAY:
+                unit = ChronoUnit.DAYS;
+                start = start.truncatedTo(unit);
+                break;
+            case MONTH:
+                unit = ChronoUnit.MONTHS;
+                start = start.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                break;
+            default:
+                unit = ChronoUnit.YEARS;
+                start = start.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+                break;
+        }
+
+        final StringBuilder path = new StringBuilder(basePath.length() + delimiter.length() + 12)
+                .append(basePath).append(delimiter).append(start.getYear());
+        if (frequency != IndexFrequencyType.YEAR) {
+            pad(path, start.getMonthValue());
+        }
+        if (frequency == IndexFrequencyType.DAY || frequency == IndexFrequencyType.HOUR || frequency == IndexFrequencyType.MINUTE) {
+            pad(path, start.getDayOfMonth());
+        }
+        if (frequency == IndexFrequencyType.HOUR || frequency == IndexFrequencyType.MINUTE) {
+            pad(path, start.getHour());
+        }
+        if (frequency == IndexFrequencyType.MINUTE) {
+            pad(path, start.getMinute());
+        }
+        final String indexPath = path.toString();
+        final String name = indexPath.substring(indexPath.lastIndexOf('/') + 1);
+        final byte[] action = ("{\"index\":{\"_index\":\"" + name + "\"}}\n").getBytes(StandardCharsets.UTF_8);
+        return new Index(start.toInstant().toEpochMilli(), start.plus(1, unit).toInstant().toEpochMilli(), indexPath, action);
+    }
+
+    private static void pad(final StringBuilder builder, final int value) {
+        if (value < 10) {
+            builder.append('0');
+        }
+        builder.append(value);
+    }
+
+    /**
+     * An index and the period it holds the events of.
+     */
+    static final class Index {
+
+        private final long startMillis;
+        private final long endMillis;
+        private final String path;
+        private final byte[] action;
+
+        private Index(final long startMillis, final long endMillis, final String path, final byte[] action) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.path = path;
+            this.action = action;
+        }
+
+        /**
+         * @return the path of the index on a node, such as {@code /logs-20190501}.
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the bulk action line that writes a document to this index.
+         */
+        byte[] getAction() {
+            return action;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+/**
+ * How requests are spread over the Elasticsearch nodes.
+ */
+public enum LoadBalancing {
+
+    /**
+     * Every request goes to the next live node.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Every request goes to the live node with the fewest requests in progress.
+     */
+    LEAST_OUTSTANDING;
+
+    static LoadBalancing toLoadBalancing(final String name, final LoadBalancing defaultLoadBalancing) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultLoadBalancing;
+        }
+        for (final LoadBalancing loadBalancing : values()) {
+            if (loadBalancing.name().equalsIgnoreCase(name.trim())) {
+                return loadBalancing;
+            }
+        }
+        return defaultLoadBalancing;
+    }
+}
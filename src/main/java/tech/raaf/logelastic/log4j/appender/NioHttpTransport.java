@@ -0,0 +1,663 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An HTTP/1.1 transport to one Elasticsearch endpoint on non-blocking sockets, driven by a single I/O thread.
+ * <p>
+ * Requests are queued for the I/O thread, which sends each of them on an idle connection, or on a new one while
+ * there are fewer than {@code maxConnections}, and parses the responses as their bytes arrive. So the threads that
+ * send requests never wait for Elasticsearch, and as many requests as there are connections are in flight at the
+ * same time. Like the {@link HttpConnectionPool}, a request that fails on a reused connection before any of the
+ * response arrived is sent once more, and connections idle for longer than the idle timeout are closed.
+ * </p>
+ * <p>
+ * TLS is not supported, use the blocking transport for https.
+ * </p>
+ */
+final class NioHttpTransport implements HttpTransport {
+
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final long MAX_SELECT_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+
+    // Only used by the I/O thread.
+    private final Deque<Exchange> waiting = new ArrayDeque<>();
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a transport for the endpoint of a URL and starts its I/O thread.
+     *
+     * @param url any URL on the endpoint, only host and port are used.
+     * @param connectTimeoutMillis the connect timeout, also the longest a request waits for a connection, 0 for none.
+     * @param readTimeoutMillis the longest a request may take once it is sent, 0 for none.
+     * @param maxConnections the maximum number of connections, which is the maximum number of requests in flight.
+     * @param idleTimeoutMillis how long a connection may stay idle before it is closed.
+     */
+    NioHttpTransport(final URL url, final int connectTimeoutMillis, final int readTimeoutMillis,
+                     final int maxConnections, final long idleTimeoutMillis) {
+        this.host = url.getHost();
+        this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        this.hostHeader = url.getPort() != -1 ? host + ':' + port : host;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.ioThread = Log4jThreadFactory.createDaemonThreadFactory("ElasticTransport-" + getEndpoint()).newThread(this::run);
+        this.ioThread.start();
+    }
+
+    @Override
+    public HttpConnection.Response execute(final String method, final String target, final byte[] headers,
+                                           final byte[] body, final int length, final OutputStream sink) throws IOException {
+        if (Thread.currentThread() == ioThread) {
+            throw new IllegalStateException("A blocking request on the I/O thread would never complete");
+        }
+        final Blocking blocking = new Blocking();
+        execute(method, target, headers, body, length, sink, blocking);
+        return blocking.await();
+    }
+
+    @Override
+    public void execute(final String method, final String target, final byte[] headers, final byte[] body,
+                        final int length, final OutputStream sink, final Callback callback) {
+        final Exchange exchange = new Exchange(method, head(method, target, headers, length), body, length, sink, callback);
+        if (shutdown) {
+            callback.failed(new IOException("Transport to " + getEndpoint() + " is shut down"));
+            return;
+        }
+        submitted.add(exchange);
+        selector.wakeup();
+        if (shutdown && submitted.remove(exchange)) {
+            // The I/O thread may have stopped before the exchange was queued.
+            callback.failed(new IOException("Transport to " + getEndpoint() + " is shut down"));
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    @Override
+    public String getEndpoint() {
+        return host + ':' + port;
+    }
+
+    /**
+     * Stops taking requests. The I/O thread finishes the requests it has, then closes all connections.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    private byte[] head(final String method, final String target, final byte[] headers, final int length) {
+        final String line = method + ' ' + target + " HTTP/1.1\r\nHost: " + hostHeader + "\r\nContent-Length: " + length + "\r\n";
+        final byte[] head = new byte[line.length() + headers.length + 2];
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            head[i] = c <= 0xFF ? (byte) c : (byte) '?';
+        }
+        System.arraycopy(headers, 0, head, line.length(), headers.length);
+        head[head.length - 2] = '\r';
+        head[head.length - 1] = '\n';
+        return head;
+    }
+
+    private void run() {
+        try {
+            while (!shutdown || !submitted.isEmpty() || !waiting.isEmpty() || isBusy()) {
+                selector.select(selectMillis(System.currentTimeMillis()));
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    handle((Connection) key.attachment(), key);
+                }
+                Exchange exchange;
+                while ((exchange = submitted.poll()) != null) {
+                    exchange.queuedMillis = System.currentTimeMillis();
+                    waiting.add(exchange);
+                }
+                final long now = System.currentTimeMillis();
+                expire(now);
+                dispatch(now);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Fail whatever is left below.
+        } finally {
+            shutdown = true;
+            final IOException closed = new IOException("Transport to " + getEndpoint() + " is shut down");
+            for (final Connection connection : new ArrayList<>(connections)) {
+                if (connection.exchange != null) {
+                    complete(connection.exchange, null, closed);
+                }
+                close(connection);
+            }
+            Exchange exchange;
+            while ((exchange = waiting.poll()) != null || (exchange = submitted.poll()) != null) {
+                complete(exchange, null, closed);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to clean up.
+            }
+        }
+    }
+
+    private boolean isBusy() {
+        for (final Connection connection : connections) {
+            if (connection.exchange != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long selectMillis(final long now) {
+        long next = now + MAX_SELECT_MILLIS;
+        for (final Connection connection : connections) {
+            if (connection.exchange != null && connection.deadlineMillis > 0) {
+                next = Math.min(next, connection.deadlineMillis);
+            }
+        }
+        if (!waiting.isEmpty() && connectTimeoutMillis > 0) {
+            next = Math.min(next, waiting.peekFirst().queuedMillis + connectTimeoutMillis);
+        }
+        // Zero would block without a timeout.
+        return Math.max(1, next - now);
+    }
+
+    private void dispatch(final long now) {
+        while (!waiting.isEmpty()) {
+            Connection connection = null;
+            while (connection == null && !idle.isEmpty()) {
+                connection = idle.pollFirst();
+                if (now - connection.lastUsedMillis >= idleTimeoutMillis || !connection.channel.isOpen()) {
+                    close(connection);
+                    connection = null;
+                }
+            }
+            final Exchange exchange;
+            if (connection != null) {
+                exchange = waiting.pollFirst();
+            } else if (connections.size() < maxConnections) {
+                exchange = waiting.pollFirst();
+                try {
+                    connection = connect();
+                } catch (IOException e) {
+                    complete(exchange, null, e);
+                    continue;
+                }
+            } else {
+                return;
+            }
+            connection.start(exchange, now);
+        }
+    }
+
+    private void expire(final long now) {
+        for (final Connection connection : new ArrayList<>(connections)) {
+            if (connection.exchange != null && connection.deadlineMillis > 0 && now >= connection.deadlineMillis) {
+                fail(connection, new SocketTimeoutException((connection.channel.isConnected() ? "Read" : "Connect")
+                        + " timed out talking to " + getEndpoint()));
+            }
+        }
+        while (connectTimeoutMillis > 0 && !waiting.isEmpty()
+                && now - waiting.peekFirst().queuedMillis >= connectTimeoutMillis) {
+            complete(waiting.pollFirst(), null, new PoolExhaustedException(
+                    "Timed out waiting for one of " + maxConnections + " connections to " + getEndpoint()));
+        }
+        final Iterator<Connection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            final Connection connection = oldestFirst.next();
+            if (now - connection.lastUsedMillis < idleTimeoutMillis) {
+                break;
+            }
+            oldestFirst.remove();
+            close(connection);
+        }
+    }
+
+    private Connection connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.connect(new InetSocketAddress(host, port));
+            final Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, 0, connection);
+            connections.add(connection);
+            return connection;
+        } catch (UnresolvedAddressException e) {
+            channel.close();
+            throw new UnknownHostException(host);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void handle(final Connection connection, final SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable() && connection.channel.finishConnect()) {
+                connection.ready(System.currentTimeMillis());
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write(System.currentTimeMillis());
+            }
+            if (key.isValid() && key.isReadable()) {
+                read(connection);
+            }
+        } catch (IOException e) {
+            fail(connection, e);
+        }
+    }
+
+    private void read(final Connection connection) throws IOException {
+        final Exchange exchange = connection.exchange;
+        readBuffer.clear();
+        final int n = connection.channel.read(readBuffer);
+        if (n < 0) {
+            if (exchange == null || !exchange.parser.endOfStream()) {
+                throw new EOFException("Connection closed before the end of the response");
+            }
+        } else if (exchange == null) {
+            // Nothing was asked, the server is closing an idle connection or misbehaving.
+            close(connection);
+            return;
+        } else {
+            readBuffer.flip();
+            if (!exchange.parser.feed(readBuffer)) {
+                return;
+            }
+        }
+        connection.exchange = null;
+        connection.used = true;
+        connection.lastUsedMillis = System.currentTimeMillis();
+        if (n >= 0 && exchange.parser.isReusable() && !shutdown) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+            idle.addFirst(connection);
+        } else {
+            close(connection);
+        }
+        complete(exchange, exchange.parser.toResponse(), null);
+    }
+
+    private void fail(final Connection connection, final IOException e) {
+        final Exchange exchange = connection.exchange;
+        final boolean stale = connection.used;
+        connection.exchange = null;
+        close(connection);
+        if (exchange == null) {
+            return;
+        }
+        if (stale && !exchange.retried && !exchange.parser.isStarted() && !(e instanceof SocketTimeoutException)) {
+            // The server may have closed the idle connection in the meantime, try once more.
+            exchange.retried = true;
+            exchange.reset();
+            waiting.addFirst(exchange);
+            return;
+        }
+        complete(exchange, null, e);
+    }
+
+    private void close(final Connection connection) {
+        connections.remove(connection);
+        idle.remove(connection);
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing left to clean up.
+        }
+    }
+
+    private static void complete(final Exchange exchange, final HttpConnection.Response response, final IOException e) {
+        try {
+            if (e != null) {
+                exchange.callback.failed(e);
+            } else {
+                exchange.callback.completed(response);
+            }
+        } catch (RuntimeException ignored) {
+            // The callback reports its own errors, it must not stop the I/O thread.
+        }
+    }
+
+    /**
+     * A non-blocking connection, carrying at most one exchange at a time.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Exchange exchange;
+        private boolean used;
+        private long deadlineMillis;
+        private long lastUsedMillis = System.currentTimeMillis();
+
+        private Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void start(final Exchange next, final long now) {
+            exchange = next;
+            if (channel.isConnected()) {
+                ready(now);
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                deadlineMillis = connectTimeoutMillis > 0 ? now + connectTimeoutMillis : 0;
+            }
+        }
+
+        private void ready(final long now) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            deadlineMillis = readTimeoutMillis > 0 ? now + readTimeoutMillis : 0;
+        }
+
+        private void write(final long now) throws IOException {
+            channel.write(exchange.request);
+            if (!exchange.request[exchange.request.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+                deadlineMillis = readTimeoutMillis > 0 ? now + readTimeoutMillis : 0;
+            }
+        }
+    }
+
+    /**
+     * A request with the state of its response.
+     */
+    private static final class Exchange {
+
+        private final byte[] head;
+        private final byte[] body;
+        private final int length;
+        private final Callback callback;
+        private final ResponseParser parser;
+        private ByteBuffer[] request;
+        private long queuedMillis;
+        private boolean retried;
+
+        private Exchange(final String method, final byte[] head, final byte[] body, final int length,
+                         final OutputStream sink, final Callback callback) {
+            this.head = head;
+            this.body = body;
+            this.length = length;
+            this.callback = callback;
+            this.parser = new ResponseParser(method, sink);
+            reset();
+        }
+
+        private void reset() {
+            request = new ByteBuffer[]{ByteBuffer.wrap(head), ByteBuffer.wrap(body, 0, length)};
+        }
+    }
+
+    /**
+     * Parses a response incrementally, as its bytes arrive.
+     */
+    private static final class ResponseParser {
+
+        private enum State { STATUS, INTERIM, HEADERS, BODY, CHUNK_SIZE, CHUNK, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+        private final String method;
+        private final OutputStream sink;
+        private final StringBuilder line = new StringBuilder(128);
+        private State state = State.STATUS;
+        private boolean started;
+        private int status;
+        private String reason = "";
+        private long contentLength = -1;
+        private boolean chunked;
+        private boolean reusable = true;
+        private long remaining;
+        private OutputStream target;
+        private HttpConnection.ErrorBuffer error;
+
+        private ResponseParser(final String method, final OutputStream sink) {
+            this.method = method;
+            this.sink = sink;
+        }
+
+        /**
+         * @return true once the response is complete.
+         */
+        private boolean feed(final ByteBuffer bytes) throws IOException {
+            started = true;
+            while (bytes.hasRemaining() && state != State.DONE) {
+                if (state == State.BODY || state == State.CHUNK || state == State.UNTIL_CLOSE) {
+                    final int n = (int) Math.min(bytes.remaining(), remaining);
+                    if (target != null) {
+                        target.write(bytes.array(), bytes.arrayOffset() + bytes.position(), n);
+                    }
+                    bytes.position(bytes.position() + n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == State.CHUNK ? State.CHUNK_END : State.DONE;
+                    }
+                    continue;
+                }
+                final byte b = bytes.get();
+                if (b != '\n') {
+                    line.append((char) (b & 0xFF));
+                    continue;
+                }
+                final int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                onLine(line.toString());
+                line.setLength(0);
+            }
+            return state == State.DONE;
+        }
+
+        /**
+         * @return true if the end of the connection completes the response.
+         */
+        private boolean endOfStream() {
+            if (state == State.UNTIL_CLOSE) {
+                state = State.DONE;
+            }
+            return state == State.DONE;
+        }
+
+        private void onLine(final String text) throws IOException {
+            switch (state) {
+                case STATUS:
+                    status = HttpConnection.parseStatus(text);
+                    if (status == 100) {
+                        state = State.INTERIM;
+                        return;
+                    }
+                    final int reasonStart = text.indexOf(' ', text.indexOf(' ') + 1);
+                    reason = reasonStart > 0 ? text.substring(reasonStart + 1) : "";
+                    reusable = !text.startsWith("HTTP/1.0");
+                    state = State.HEADERS;
+                    return;
+                case INTERIM:
+                    if (text.isEmpty()) {
+                        state = State.STATUS;
+                    }
+                    return;
+                case HEADERS:
+                    if (text.isEmpty()) {
+                        startBody();
+                    } else {
+                        onHeader(text);
+                    }
+                    return;
+                case CHUNK_SIZE:
+                    final int extension = text.indexOf(';');
+                    remaining = Long.parseLong((extension >= 0 ? text.substring(0, extension) : text).trim(), 16);
+                    state = remaining == 0 ? State.TRAILERS : State.CHUNK;
+                    return;
+                case CHUNK_END:
+                    state = State.CHUNK_SIZE;
+                    return;
+                case TRAILERS:
+                    if (text.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    return;
+                default:
+                    throw new IllegalStateException(state.name());
+            }
+        }
+
+        private void onHeader(final String header) {
+            final int colon = header.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            final String name = header.substring(0, colon).trim();
+            final String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().contains("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                if (value.equalsIgnoreCase("close")) {
+                    reusable = false;
+                } else if (value.equalsIgnoreCase("keep-alive")) {
+                    reusable = true;
+                }
+            }
+        }
+
+        private void startBody() {
+            final boolean success = status >= 200 && status <= 299;
+            error = success ? null : new HttpConnection.ErrorBuffer();
+            target = success ? sink : error;
+            if (method.equals("HEAD") || status == 204 || status == 304 || !chunked && contentLength == 0) {
+                state = State.DONE;
+            } else if (chunked) {
+                state = State.CHUNK_SIZE;
+            } else if (contentLength > 0) {
+                remaining = contentLength;
+                state = State.BODY;
+            } else {
+                reusable = false;
+                remaining = Long.MAX_VALUE;
+                state = State.UNTIL_CLOSE;
+            }
+        }
+
+        private boolean isStarted() {
+            return started;
+        }
+
+        private boolean isReusable() {
+            return reusable;
+        }
+
+        private HttpConnection.Response toResponse() {
+            return new HttpConnection.Response(status, reason, error != null ? error.toString() : null);
+        }
+    }
+
+    /**
+     * Waits for the outcome of a request, for the blocking {@link #execute(String, String, byte[], byte[], int, OutputStream)}.
+     */
+    private static final class Blocking implements Callback {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private HttpConnection.Response response;
+        private IOException failure;
+
+        @Override
+        public void completed(final HttpConnection.Response result) {
+            response = result;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final IOException e) {
+            failure = e;
+            done.countDown();
+        }
+
+        private HttpConnection.Response await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a response");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Picks the node for the next request among the live Elasticsearch nodes.
+ * <p>
+ * The node list is replaced as a whole when it changes, so selecting a node never takes a lock.
+ * </p>
+ */
+final class NodeSelector {
+
+    private final LoadBalancing loadBalancing;
+    private final Function<URL, ElasticNode> nodeFactory;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile List<ElasticNode> nodes;
+
+    NodeSelector(final LoadBalancing loadBalancing, final List<URL> urls, final Function<URL, ElasticNode> nodeFactory) {
+        this.loadBalancing = loadBalancing;
+        this.nodeFactory = nodeFactory;
+        final List<ElasticNode> initial = new ArrayList<>(urls.size());
+        for (final URL url : urls) {
+            initial.add(nodeFactory.apply(url));
+        }
+        this.nodes = Collections.unmodifiableList(initial);
+    }
+
+    /**
+     * @return the current nodes.
+     */
+    List<ElasticNode> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Selects the node for the next request.
+     *
+     * @param exclude a node that must not be selected, may be null.
+     * @return a live node, or null if all nodes are dead.
+     */
+    ElasticNode select(final ElasticNode exclude) {
+        final List<ElasticNode> current = nodes;
+        final int size = current.size();
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        ElasticNode selected = null;
+        for (int i = 0; i < size; i++) {
+            final ElasticNode node = current.get((start + i) % size);
+            if (node == exclude || !node.isAlive()) {
+                continue;
+            }
+            if (loadBalancing == LoadBalancing.ROUND_ROBIN) {
+                return node;
+            }
+            if (selected == null || node.getOutstandingRequests() < selected.getOutstandingRequests()) {
+                selected = node;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Replaces the node list, keeping the connections and health of nodes that are still present.
+     *
+     * @param urls the base URLs of the nodes.
+     * @return the nodes that are no longer present.
+     */
+    synchronized List<ElasticNode> update(final List<URL> urls) {
+        final List<ElasticNode> updated = new ArrayList<>(urls.size());
+        final List<ElasticNode> removed = new ArrayList<>(nodes);
+        for (final URL url : urls) {
+            ElasticNode node = null;
+            for (final ElasticNode existing : removed) {
+                if (existing.getUrl().toExternalForm().equals(url.toExternalForm())) {
+                    node = existing;
+                    break;
+                }
+            }
+            if (node != null) {
+                removed.remove(node);
+            } else {
+                node = nodeFactory.apply(url);
+            }
+            updated.add(node);
+        }
+        if (!updated.isEmpty()) {
+            nodes = Collections.unmodifiableList(updated);
+            return removed;
+        }
+        return Collections.emptyList();
+    }
+}
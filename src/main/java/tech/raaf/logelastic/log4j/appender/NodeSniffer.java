@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the HTTP addresses of the nodes of a cluster from a {@code _nodes/http} response.
+ */
+final class NodeSniffer {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private NodeSniffer() {
+    }
+
+    /**
+     * Parses a {@code _nodes/http} response.
+     *
+     * @param body the response body.
+     * @param scheme the scheme to reach the nodes with.
+     * @return the base URLs of the nodes that publish an HTTP address.
+     * @throws IOException when the body is not a nodes response.
+     */
+    static List<URL> parse(final byte[] body, final String scheme) throws IOException {
+        final List<URL> urls = new ArrayList<>();
+        final Iterator<JsonNode> nodes = MAPPER.readTree(body).path("nodes").elements();
+        while (nodes.hasNext()) {
+            final String address = nodes.next().path("http").path("publish_address").asText(null);
+            if (address != null && !address.isEmpty()) {
+                urls.add(toUrl(address, scheme));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Converts a publish address to a URL. Addresses look like {@code 10.0.0.1:9200}, {@code host/10.0.0.1:9200}
+     * or, on old versions, {@code inet[/10.0.0.1:9200]}. A host name is preferred over an IP address so the name
+     * can be checked against the server certificate.
+     */
+    static URL toUrl(final String publishAddress, final String scheme) throws IOException {
+        String address = publishAddress;
+        if (address.startsWith("inet[") && address.endsWith("]")) {
+            address = address.substring(5, address.length() - 1);
+        }
+        final int slash = address.indexOf('/');
+        final int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Publish address without port: " + publishAddress);
+        }
+        final String host = slash > 0 ? address.substring(0, slash) : address.substring(slash + 1, colon);
+        final int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Publish address with invalid port: " + publishAddress);
+        }
+        return new URL(scheme, host, port, "");
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+/**
+ * What {@code append} does with an event when the ring buffer of the asynchronous pipeline is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait until a sender thread frees a slot.
+     */
+    BLOCK,
+
+    /**
+     * Discard the event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the event if it is less severe than the configured overflow level, wait otherwise.
+     */
+    DROP_BELOW_LEVEL,
+
+    /**
+     * Write the event to the spill log, to be shipped once the sender threads catch up.
+     */
+    SPILL;
+
+    static OverflowPolicy toOverflowPolicy(final String name, final OverflowPolicy defaultPolicy) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultPolicy;
+        }
+        for (final OverflowPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name.trim())) {
+                return policy;
+            }
+        }
+        return defaultPolicy;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+/**
+ * What decides the sender thread of an event in the asynchronous pipeline. Events with the same key are shipped by
+ * the same sender thread, in the order they were logged.
+ */
+public enum PartitionKey {
+
+    /**
+     * The thread that logged the event.
+     */
+    THREAD,
+
+    /**
+     * The name of the logger.
+     */
+    LOGGER,
+
+    /**
+     * The index the event is written to.
+     */
+    INDEX,
+
+    /**
+     * The value of a key in the context data, such as a tenant or request id.
+     */
+    ROUTING_KEY;
+
+    static PartitionKey toPartitionKey(final String name, final PartitionKey defaultKey) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultKey;
+        }
+        for (final PartitionKey key : values()) {
+            if (key.name().equalsIgnoreCase(name.trim())) {
+                return key;
+            }
+        }
+        return defaultKey;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.IOException;
+
+/**
+ * Signals that every connection to a node stayed in use while a request waited for one. That says the appender sends
+ * more than the pool allows, not that the node is in trouble, so the node isn't marked dead for it.
+ */
+final class PoolExhaustedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message the size of the pool and the node it connects to.
+     */
+    PoolExhaustedException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growing in-memory output stream, like {@link java.io.ByteArrayOutputStream}, whose array comes from and goes back
+ * to a {@link BufferPool}. It is used by one thread at a time and is not synchronized.
+ */
+final class PooledOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int size;
+
+    /**
+     * @param pool the pool to take arrays from.
+     * @param initialBytes the initial capacity.
+     */
+    PooledOutputStream(final BufferPool pool, final int initialBytes) {
+        this.pool = pool;
+        this.buffer = pool.acquire(initialBytes);
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    /**
+     * Discards what was written, keeping the array.
+     */
+    void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return the array holding what was written, which is only valid until the next write or {@link #release()}.
+     */
+    byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of what was written.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Hands the array back to the pool. The stream must not be used afterwards.
+     */
+    void release() {
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (size + extra > buffer.length) {
+            buffer = pool.grow(buffer, size, size + extra);
+        }
+    }
+}
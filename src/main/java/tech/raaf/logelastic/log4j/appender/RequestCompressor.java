@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with gzip or deflate.
+ * <p>
+ * A {@link Deflater} holds native memory and is expensive to set up, so deflaters are kept in a pool together with
+ * the buffer they compress into, and handed out for the duration of one request. Bodies smaller than the minimum
+ * size are sent as they are, since compressing them gains little.
+ * </p>
+ */
+public final class RequestCompressor {
+
+    /**
+     * The supported encodings.
+     */
+    public enum Encoding {
+
+        /**
+         * The gzip format, a deflate stream with a header and a CRC32 trailer.
+         */
+        GZIP("gzip"),
+
+        /**
+         * The zlib format.
+         */
+        DEFLATE("deflate");
+
+        private final String contentEncoding;
+
+        Encoding(final String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        static Encoding toEncoding(final String name) {
+            if (name == null || name.trim().isEmpty() || name.trim().equalsIgnoreCase("none")) {
+                return null;
+            }
+            for (final Encoding encoding : values()) {
+                if (encoding.name().equalsIgnoreCase(name.trim())) {
+                    return encoding;
+                }
+            }
+            throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_BYTES = 8;
+    private static final int MAX_REUSED_BYTES = 1024 * 1024;
+
+    private final Encoding encoding;
+    private final int level;
+    private final int minBytes;
+    private final BlockingQueue<Compressed> pool;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+
+    /**
+     * @param encoding the encoding to use.
+     * @param level the compression level, from 1 (fastest) to 9 (smallest), or -1 for the default.
+     * @param minBytes the size from which bodies are compressed.
+     * @param poolSize the maximum number of idle deflaters to keep.
+     */
+    RequestCompressor(final Encoding encoding, final int level, final int minBytes, final int poolSize) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.encoding = encoding;
+        this.level = level;
+        this.minBytes = Math.max(0, minBytes);
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the number of request bodies that were compressed.
+     */
+    public long getCompressedRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the size of the compressed request bodies before compression.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    /**
+     * @return the size of the compressed request bodies after compression.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return the uncompressed size divided by the compressed size of all compressed bodies, 1 when none were.
+     */
+    public double getCompressionRatio() {
+        final long compressed = compressedBytes.sum();
+        return compressed == 0 ? 1 : (double) uncompressedBytes.sum() / compressed;
+    }
+
+    /**
+     * Compresses a body, unless it is too small. The result must be released once the request is done.
+     *
+     * @param body the buffer holding the body.
+     * @param length the length of the body.
+     * @return the compressed body, or null if the body should be sent as it is.
+     */
+    Compressed compress(final byte[] body, final int length) {
+        if (length < minBytes) {
+            return null;
+        }
+        Compressed compressed = pool.poll();
+        if (compressed == null) {
+            compressed = new Compressed();
+        }
+        compressed.compress(body, length);
+        requests.increment();
+        uncompressedBytes.add(length);
+        compressedBytes.add(compressed.size);
+        return compressed;
+    }
+
+    /**
+     * Frees the deflaters that are not in use.
+     */
+    void shutdown() {
+        Compressed compressed;
+        while ((compressed = pool.poll()) != null) {
+            compressed.deflater.end();
+        }
+    }
+
+    /**
+     * A compressed body, and the deflater and buffer that produced it.
+     */
+    final class Compressed {
+
+        private final Deflater deflater = new Deflater(level, encoding == Encoding.GZIP);
+        private final CRC32 crc = new CRC32();
+        private byte[] buffer = new byte[8 * 1024];
+        private int size;
+
+        byte[] array() {
+            return buffer;
+        }
+
+        int size() {
+            return size;
+        }
+
+        String getContentEncoding() {
+            return encoding.getContentEncoding();
+        }
+
+        /**
+         * Hands the deflater back to the pool.
+         */
+        void release() {
+            if (buffer.length > MAX_REUSED_BYTES) {
+                buffer = new byte[8 * 1024];
+            }
+            if (!pool.offer(this)) {
+                deflater.end();
+            }
+        }
+
+        private void compress(final byte[] body, final int length) {
+            deflater.reset();
+            deflater.setInput(body, 0, length);
+            deflater.finish();
+            size = 0;
+            if (encoding == Encoding.GZIP) {
+                ensureCapacity(GZIP_HEADER.length);
+                System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+                size = GZIP_HEADER.length;
+            }
+            while (!deflater.finished()) {
+                if (size == buffer.length) {
+                    ensureCapacity(Math.max(1024, length / 4));
+                }
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            if (encoding == Encoding.GZIP) {
+                crc.reset();
+                crc.update(body, 0, length);
+                ensureCapacity(GZIP_TRAILER_BYTES);
+                writeIntLittleEndian((int) crc.getValue());
+                writeIntLittleEndian(length);
+            }
+        }
+
+        private void writeIntLittleEndian(final int value) {
+            buffer[size++] = (byte) value;
+            buffer[size++] = (byte) (value >> 8);
+            buffer[size++] = (byte) (value >> 16);
+            buffer[size++] = (byte) (value >> 24);
+        }
+
+        private void ensureCapacity(final int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import tech.raaf.logelastic.log4j.config.Header;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The configured request headers, compiled once into the bytes that are written after the request line.
+ * <p>
+ * Every header is classified by the lookups in its value. Headers without lookups, or with lookups that can't change
+ * while the appender runs, such as {@code ${sys:...}} or {@code ${env:...}}, are resolved when the manager starts.
+ * Headers with a {@code ${date:...}} lookup are resolved per request, and headers with a lookup of the event, such as
+ * {@code ${ctx:...}} or {@code ${map:...}}, per event. A lookup this class doesn't know is treated as one of the event.
+ * </p>
+ * <p>
+ * A template without dynamic headers hands out the same bytes for every request. A template with dynamic headers
+ * keeps the bytes of the last resolved values, so they are only encoded again when a value changes. CR and LF in
+ * names and values are written as spaces.
+ * </p>
+ */
+final class RequestHeaders {
+
+    /**
+     * How often the value of a header has to be resolved.
+     */
+    enum Scope {
+
+        /**
+         * Once, when the manager starts.
+         */
+        STATIC,
+
+        /**
+         * For every request, which carries a whole batch on the bulk endpoint.
+         */
+        BATCH,
+
+        /**
+         * For every event.
+         */
+        EVENT
+    }
+
+    private static final Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final Set<String> STATIC_LOOKUPS = new HashSet<>(Arrays.asList(
+            "sys", "env", "java", "jvmrunargs", "main", "bundle", "jndi", "log4j", "web"));
+    private static final Set<String> BATCH_LOOKUPS = new HashSet<>(Arrays.asList("date"));
+
+    private final StrSubstitutor substitutor;
+    private final byte[] staticHeaders;
+    private final Header[] dynamicHeaders;
+    private final Scope[] dynamicScopes;
+
+    /**
+     * @param substitutor resolves the lookups in header values.
+     * @param headers the configured headers.
+     */
+    RequestHeaders(final StrSubstitutor substitutor, final Header[] headers) {
+        this.substitutor = substitutor;
+        final StringBuilder lines = new StringBuilder();
+        final List<Header> dynamic = new ArrayList<>();
+        final List<Scope> scopes = new ArrayList<>();
+        for (final Header header : headers) {
+            if (header.getName() == null) {
+                continue;
+            }
+            final Scope scope = scopeOf(header);
+            if (scope == Scope.STATIC) {
+                final String value = header.isValueNeedsLookup() ? substitutor.replace(header.getValue()) : header.getValue();
+                appendLine(lines, header.getName(), value);
+            } else {
+                dynamic.add(header);
+                scopes.add(scope);
+            }
+        }
+        this.staticHeaders = lines.toString().getBytes(HEADER_CHARSET);
+        this.dynamicHeaders = dynamic.toArray(new Header[0]);
+        this.dynamicScopes = scopes.toArray(new Scope[0]);
+    }
+
+    /**
+     * Tells how often the value of a header has to be resolved, from the widest scope of the lookups in it.
+     *
+     * @param header the header.
+     * @return the scope.
+     */
+    static Scope scopeOf(final Header header) {
+        if (!header.isValueNeedsLookup()) {
+            return Scope.STATIC;
+        }
+        final String value = header.getValue();
+        Scope scope = Scope.STATIC;
+        for (int start = value.indexOf("${"); start >= 0; start = value.indexOf("${", start + 2)) {
+            int end = start + 2;
+            while (end < value.length() && value.charAt(end) != ':' && value.charAt(end) != '}'
+                    && value.charAt(end) != '$') {
+                end++;
+            }
+            if (end == value.length() || value.charAt(end) == '$') {
+                // A nested lookup, its result could be anything.
+                return Scope.EVENT;
+            }
+            if (value.charAt(end) == '}') {
+                // ${name} is a property of the configuration.
+                continue;
+            }
+            final String prefix = value.substring(start + 2, end).toLowerCase();
+            if (BATCH_LOOKUPS.contains(prefix)) {
+                scope = Scope.BATCH;
+            } else if (!STATIC_LOOKUPS.contains(prefix)) {
+                return Scope.EVENT;
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Builds the template of a kind of request.
+     *
+     * @param contentType the content type of the request body, may be null.
+     * @param contentEncoding the content encoding of compressed request bodies, may be null.
+     * @return the template.
+     */
+    Template template(final String contentType, final String contentEncoding) {
+        final StringBuilder fixed = new StringBuilder();
+        if (contentType != null) {
+            appendLine(fixed, "Content-Type", contentType);
+        }
+        final byte[] prefix = concat(fixed.toString().getBytes(HEADER_CHARSET), staticHeaders);
+        final byte[] encoding = contentEncoding != null
+                ? ("Content-Encoding: " + contentEncoding + "\r\n").getBytes(HEADER_CHARSET)
+                : new byte[0];
+        return new Template(contentType, prefix, encoding);
+    }
+
+    private static void appendLine(final StringBuilder lines, final String name, final String value) {
+        appendText(lines, name);
+        lines.append(": ");
+        appendText(lines, value);
+        lines.append("\r\n");
+    }
+
+    /**
+     * Appends the name or value of a header with line breaks turned into spaces, so a value from an event can't end
+     * the header and start another header, or another request on a kept-alive connection.
+     */
+    private static void appendText(final StringBuilder lines, final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            lines.append(c == '\r' || c == '\n' ? ' ' : c);
+        }
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        final byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * The headers of one kind of request, such as single events or bulk requests.
+     */
+    final class Template {
+
+        private final String contentType;
+        private final byte[] plain;
+        private final byte[] encoded;
+        private final byte[] encoding;
+        private volatile Rendered last;
+
+        private Template(final String contentType, final byte[] prefix, final byte[] encoding) {
+            this.contentType = contentType;
+            this.plain = prefix;
+            this.encoding = encoding;
+            this.encoded = concat(prefix, encoding);
+        }
+
+        /**
+         * @return the content type of the request body, may be null.
+         */
+        String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the header lines of a request.
+         *
+         * @param event the event of the request, or null when the request carries more than one event.
+         * @param compressed true if the body is compressed.
+         * @return the header lines, each ended by CRLF. The caller must not modify them.
+         */
+        byte[] render(final LogEvent event, final boolean compressed) {
+            if (dynamicHeaders.length == 0) {
+                return compressed ? encoded : plain;
+            }
+            final String[] values = new String[dynamicHeaders.length];
+            for (int i = 0; i < values.length; i++) {
+                final String value = dynamicHeaders[i].getValue();
+                // Batches hold many events, so event lookups are resolved without one.
+                values[i] = event != null && dynamicScopes[i] == Scope.EVENT
+                        ? substitutor.replace(event, value)
+                        : substitutor.replace(value);
+            }
+            Rendered rendered = last;
+            if (rendered == null || !Arrays.equals(rendered.values, values)) {
+                final ByteArrayOutputStream lines = new ByteArrayOutputStream(plain.length + 64 * values.length);
+                lines.write(plain, 0, plain.length);
+                final StringBuilder line = new StringBuilder();
+                for (int i = 0; i < values.length; i++) {
+                    appendLine(line, dynamicHeaders[i].getName(), values[i]);
+                }
+                final byte[] dynamic = line.toString().getBytes(HEADER_CHARSET);
+                lines.write(dynamic, 0, dynamic.length);
+                final byte[] renderedPlain = lines.toByteArray();
+                rendered = new Rendered(values, renderedPlain, concat(renderedPlain, encoding));
+                last = rendered;
+            }
+            return compressed ? rendered.encoded : rendered.plain;
+        }
+    }
+
+    private static final class Rendered {
+
+        private final String[] values;
+        private final byte[] plain;
+        private final byte[] encoded;
+
+        private Rendered(final String[] values, final byte[] plain, final byte[] encoded) {
+            this.values = values;
+            this.plain = plain;
+            this.encoded = encoded;
+        }
+    }
+}
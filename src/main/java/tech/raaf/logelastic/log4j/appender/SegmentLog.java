@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A durable FIFO of bulk items, stored in memory-mapped segment files of a fixed size.
+ * <p>
+ * Every segment starts with a header holding a magic number and the offset of the first record that was not yet
+ * replayed. Records are a length, a CRC32 of the payload and the payload. The length is written last, so a record
+ * that was cut short by a crash is recognized on recovery and everything after it is ignored. Because the pages
+ * belong to the operating system, records survive the JVM going down without an explicit flush.
+ * </p>
+ * <p>
+ * When the segments would take more than the maximum number of bytes, the oldest segment is deleted, records that
+ * were not replayed included. Segments recovered from an earlier run keep the size they were created with.
+ * </p>
+ * <p>
+ * The directory is locked while the log is open, so no other process can use it. Within one JVM a log is opened per
+ * appender with {@link #open(File, int, long, String)}, which hands the open log of an appender to the appender of the
+ * same name that replaces it on a reconfiguration, and turns away other appenders.
+ * </p>
+ */
+final class SegmentLog {
+
+    private static final int MAGIC = 0x4c45534c;
+    private static final int HEADER_BYTES = 16;
+    private static final int READ_OFFSET_POSITION = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final String LOCK_FILE = "spill.lock";
+    private static final Map<File, SegmentLog> OPEN = new HashMap<>();
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final FileChannel lockChannel;
+
+    // Guarded by OPEN.
+    private String owner;
+    private int references = 1;
+
+    private long pendingRecords;
+    private long evictedRecords;
+    private boolean closed;
+    private long peekSegmentId = -1;
+    private int peekEndPosition;
+    private int peekRecords;
+    private Thread peekThread;
+
+    /**
+     * Opens the log of an appender, or shares the log its predecessor of the same name still has open.
+     *
+     * @param directory the directory holding the segment files.
+     * @param segmentBytes the size of a new segment file.
+     * @param maxBytes the maximum total size of the segment files.
+     * @param owner the name of the appender.
+     * @return the log, to be closed by the appender once it stopped.
+     * @throws IOException when the directory is used by another appender or process, or can't be opened.
+     */
+    static SegmentLog open(final File directory, final int segmentBytes, final long maxBytes, final String owner)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        final File key = directory.getCanonicalFile();
+        synchronized (OPEN) {
+            final SegmentLog open = OPEN.get(key);
+            if (open != null) {
+                if (!open.owner.equals(owner)) {
+                    throw new IOException("Directory " + directory + " is used by appender " + open.owner);
+                }
+                open.references++;
+                return open;
+            }
+            final SegmentLog log = new SegmentLog(key, segmentBytes, maxBytes);
+            log.owner = owner;
+            OPEN.put(key, log);
+            return log;
+        }
+    }
+
+    /**
+     * Opens the log in a directory, recovering the segments that are already there.
+     *
+     * @param directory the directory holding the segment files.
+     * @param segmentBytes the size of a segment file.
+     * @param maxBytes the maximum total size of the segment files.
+     * @throws IOException when the directory is locked by another log, or the directory or the segments can't be
+     *                     opened.
+     */
+    SegmentLog(final File directory, final int segmentBytes, final long maxBytes) throws IOException {
+        if (segmentBytes <= HEADER_BYTES + RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        this.lockChannel = lock(directory);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            for (final Segment segment : segments) {
+                segment.close();
+            }
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel lock(final File directory) throws IOException {
+        final FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            // The lock goes away with the channel, also when the process dies.
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Directory " + directory + " is used by another process");
+            }
+            return channel;
+        } catch (OverlappingFileLockException e) {
+            channel.close();
+            throw new IOException("Directory " + directory + " is used by another spill log");
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param bytes the buffer holding the record.
+     * @param offset the start of the record in the buffer.
+     * @param length the length of the record.
+     * @return false if the record is larger than a segment or the log is closed, and the record was not stored.
+     * @throws IOException when a new segment can't be created.
+     */
+    synchronized boolean append(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (closed || length <= 0 || RECORD_HEADER_BYTES + length > segmentBytes - HEADER_BYTES) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        // A recovered tail may be larger or smaller than new segments.
+        if (tail == null || tail.buffer.capacity() - tail.writePosition < RECORD_HEADER_BYTES + length) {
+            tail = roll();
+        }
+        crc.reset();
+        crc.update(bytes, offset, length);
+        final MappedByteBuffer buffer = tail.buffer;
+        final int position = tail.writePosition;
+        buffer.position(position + RECORD_HEADER_BYTES);
+        buffer.put(bytes, offset, length);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+        tail.writePosition = position + RECORD_HEADER_BYTES + length;
+        tail.records++;
+        pendingRecords++;
+        return true;
+    }
+
+    /**
+     * Adds the oldest records to a batch, without removing them from the log. Records are only taken from one
+     * segment at a time. Call {@link #commit()} once they are shipped.
+     *
+     * @param batch the batch to add the records to.
+     * @param maxRecords the maximum number of records to add.
+     * @param maxBytes the maximum number of bytes to add, at least one record is added.
+     * @return the number of records added.
+     */
+    synchronized int peek(final BulkBatch batch, final int maxRecords, final int maxBytes) {
+        peekSegmentId = -1;
+        dropConsumedSegments();
+        final Segment head = segments.peekFirst();
+        if (head == null || head.readPosition >= head.writePosition) {
+            return 0;
+        }
+        final byte[] scratch = new byte[Math.min(segmentBytes, Math.max(maxBytes, 1024))];
+        int position = head.readPosition;
+        int records = 0;
+        int bytes = 0;
+        while (position < head.writePosition && records < maxRecords) {
+            final int length = head.buffer.getInt(position);
+            if (records > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            final byte[] target = length <= scratch.length ? scratch : new byte[length];
+            head.buffer.position(position + RECORD_HEADER_BYTES);
+            head.buffer.get(target, 0, length);
+            batch.addItem(target, 0, length);
+            position += RECORD_HEADER_BYTES + length;
+            bytes += length;
+            records++;
+        }
+        peekSegmentId = head.id;
+        peekEndPosition = position;
+        peekRecords = records;
+        peekThread = Thread.currentThread();
+        return records;
+    }
+
+    /**
+     * Removes the records returned by the last {@link #peek(BulkBatch, int, int)} from the log. Nothing is removed
+     * when another thread peeked since, such as the replayer of the appender that replaced this one, which then
+     * sends the records again.
+     */
+    synchronized void commit() {
+        if (peekThread != Thread.currentThread()) {
+            return;
+        }
+        final Segment head = segments.peekFirst();
+        if (head == null || head.id != peekSegmentId) {
+            // The segment was evicted in the meantime.
+            peekSegmentId = -1;
+            return;
+        }
+        head.readPosition = peekEndPosition;
+        head.buffer.putLong(READ_OFFSET_POSITION, peekEndPosition);
+        head.consumed += peekRecords;
+        pendingRecords -= peekRecords;
+        peekSegmentId = -1;
+        dropConsumedSegments();
+    }
+
+    /**
+     * @return true if there are no records waiting to be replayed.
+     */
+    synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    /**
+     * @return the number of records waiting to be replayed.
+     */
+    synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return the number of records deleted without being replayed because the log was full.
+     */
+    synchronized long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    /**
+     * @return the number of bytes taken by the segment files.
+     */
+    synchronized long getDiskBytes() {
+        return diskBytes();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes all segments to disk and closes them, unless the log is still shared with another appender.
+     */
+    void close() {
+        synchronized (OPEN) {
+            if (--references > 0) {
+                return;
+            }
+            if (OPEN.get(directory) == this) {
+                OPEN.remove(directory);
+            }
+        }
+        synchronized (this) {
+            for (final Segment segment : segments) {
+                segment.buffer.force();
+                segment.close();
+            }
+            segments.clear();
+            closed = true;
+            try {
+                lockChannel.close();
+            } catch (IOException e) {
+                // The lock is gone either way.
+            }
+        }
+    }
+
+    private long diskBytes() {
+        long bytes = 0;
+        for (final Segment segment : segments) {
+            bytes += segment.buffer.capacity();
+        }
+        return bytes;
+    }
+
+    private void dropConsumedSegments() {
+        while (segments.size() > 1) {
+            final Segment head = segments.peekFirst();
+            if (head.readPosition < head.writePosition) {
+                return;
+            }
+            segments.pollFirst();
+            head.delete();
+        }
+    }
+
+    private Segment roll() throws IOException {
+        final Segment tail = segments.peekLast();
+        if (tail != null) {
+            tail.buffer.force();
+        }
+        final Segment segment = Segment.create(directory, tail != null ? tail.id + 1 : 0, segmentBytes);
+        segments.addLast(segment);
+        while (diskBytes() > maxBytes && segments.size() > 1) {
+            final Segment oldest = segments.pollFirst();
+            final long lost = oldest.records - oldest.consumed;
+            evictedRecords += lost;
+            pendingRecords -= lost;
+            oldest.delete();
+        }
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Unable to list directory " + directory);
+        }
+        final List<Long> ids = new ArrayList<>();
+        for (final File file : files) {
+            try {
+                ids.add(Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not one of ours.
+            }
+        }
+        Collections.sort(ids);
+        for (final long id : ids) {
+            final Segment segment = Segment.open(directory, id);
+            if (segment == null) {
+                continue;
+            }
+            segment.scan(crc);
+            segments.addLast(segment);
+            pendingRecords += segment.records - segment.consumed;
+        }
+        dropConsumedSegments();
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+
+        private int writePosition = HEADER_BYTES;
+        private int readPosition = HEADER_BYTES;
+        private long records;
+        private long consumed;
+
+        private Segment(final long id, final File file, final RandomAccessFile raf, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment create(final File directory, final long id, final int size) throws IOException {
+            final File file = new File(directory, String.format("%s%020d%s", PREFIX, id, SUFFIX));
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putLong(READ_OFFSET_POSITION, HEADER_BYTES);
+                buffer.putInt(0, MAGIC);
+                return new Segment(id, file, raf, buffer);
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        static Segment open(final File directory, final long id) throws IOException {
+            final File file = new File(directory, String.format("%s%020d%s", PREFIX, id, SUFFIX));
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                final long size = raf.length();
+                if (size <= HEADER_BYTES || size > Integer.MAX_VALUE) {
+                    raf.close();
+                    return null;
+                }
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) != MAGIC) {
+                    raf.close();
+                    return null;
+                }
+                return new Segment(id, file, raf, buffer);
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Finds the end of the valid records and counts the records before and after the read offset.
+         */
+        void scan(final CRC32 crc) {
+            final long readOffset = buffer.getLong(READ_OFFSET_POSITION);
+            final int capacity = buffer.capacity();
+            byte[] scratch = new byte[1024];
+            int position = HEADER_BYTES;
+            while (position + RECORD_HEADER_BYTES <= capacity) {
+                final int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_BYTES + length > capacity) {
+                    break;
+                }
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                buffer.position(position + RECORD_HEADER_BYTES);
+                buffer.get(scratch, 0, length);
+                crc.reset();
+                crc.update(scratch, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                if (position < readOffset) {
+                    consumed++;
+                }
+                records++;
+                position += RECORD_HEADER_BYTES + length;
+            }
+            writePosition = position;
+            readPosition = (int) Math.max(HEADER_BYTES, Math.min(readOffset, position));
+            // Anything after a torn record is garbage, make sure it isn't mistaken for records later on.
+            if (position + 4 <= capacity) {
+                buffer.putInt(position, 0);
+            }
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // The mapping stays valid until it is garbage collected.
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import com.lmax.disruptor.EventPoller;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Hands events from the logging threads to dedicated sender threads.
+ * <p>
+ * Every sender thread owns a ring buffer of preallocated {@link MutableLogEvent} slots. Publishing an event only
+ * copies it into a free slot, so the logging thread never waits for Elasticsearch. Events of one partition always go
+ * to the same sender thread, which keeps them in order. Partitions are the logging threads, unless a partitioner
+ * hashes events by something else, such as their logger or index, so events of different threads that belong
+ * together stay in order as well, while unrelated events are shipped by all sender threads at once.
+ * </p>
+ * <p>
+ * With a priority level, every sender thread also owns a priority lane: a second ring buffer for the events at that
+ * level or more severe, with its own overflow policy. The sender thread drains up to {@code priorityWeight} times as
+ * many events from the priority lane as from the normal lane per round, so errors are shipped within a bounded time
+ * even while a backlog of debug events waits or is shed. Events keep their order within a lane, but an error may be
+ * shipped before a less severe event that was logged just before it.
+ * </p>
+ */
+final class SenderPipeline {
+
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_PUBLISH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DRAIN_BATCH = 32;
+    private static final long LEFTOVER_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final Worker[] workers;
+    private final OverflowPolicy overflowPolicy;
+    private final Level overflowLevel;
+    private final Level priorityLevel;
+    private final OverflowPolicy priorityOverflowPolicy;
+    private final int priorityBudget;
+    private final ToIntFunction<LogEvent> partitioner;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Consumer<LogEvent> overflow;
+    private volatile Consumer<LogEvent> leftover;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a pipeline, allocating the ring buffers.
+     *
+     * @param name the appender name, used to name the sender threads.
+     * @param senderThreads the number of sender threads.
+     * @param ringBufferSize the number of slots per sender thread, rounded up to a power of two.
+     * @param overflowPolicy what to do with events when a ring buffer is full.
+     * @param overflowLevel the least severe level that is never dropped by {@link OverflowPolicy#DROP_BELOW_LEVEL}.
+     */
+    SenderPipeline(final String name, final int senderThreads, final int ringBufferSize,
+                   final OverflowPolicy overflowPolicy, final Level overflowLevel) {
+        this(name, senderThreads, ringBufferSize, overflowPolicy, overflowLevel, null, 0, null, 1);
+    }
+
+    /**
+     * Creates a pipeline with priority lanes, allocating the ring buffers.
+     *
+     * @param name the appender name, used to name the sender threads.
+     * @param senderThreads the number of sender threads.
+     * @param ringBufferSize the number of slots of the normal lane per sender thread, rounded up to a power of two.
+     * @param overflowPolicy what to do with events when a ring buffer of the normal lane is full.
+     * @param overflowLevel the least severe level that is never dropped by {@link OverflowPolicy#DROP_BELOW_LEVEL}.
+     * @param priorityLevel the least severe level that goes to the priority lane, null for no priority lane.
+     * @param priorityRingBufferSize the number of slots of the priority lane per sender thread.
+     * @param priorityOverflowPolicy what to do with events when a ring buffer of the priority lane is full.
+     * @param priorityWeight how many priority events are drained per normal event.
+     */
+    SenderPipeline(final String name, final int senderThreads, final int ringBufferSize,
+                   final OverflowPolicy overflowPolicy, final Level overflowLevel, final Level priorityLevel,
+                   final int priorityRingBufferSize, final OverflowPolicy priorityOverflowPolicy,
+                   final int priorityWeight) {
+        this(name, senderThreads, ringBufferSize, overflowPolicy, overflowLevel, priorityLevel, priorityRingBufferSize,
+                priorityOverflowPolicy, priorityWeight, null);
+    }
+
+    /**
+     * Creates a partitioned pipeline, allocating the ring buffers.
+     *
+     * @param name the appender name, used to name the sender threads.
+     * @param senderThreads the number of sender threads.
+     * @param ringBufferSize the number of slots of the normal lane per sender thread, rounded up to a power of two.
+     * @param overflowPolicy what to do with events when a ring buffer of the normal lane is full.
+     * @param overflowLevel the least severe level that is never dropped by {@link OverflowPolicy#DROP_BELOW_LEVEL}.
+     * @param priorityLevel the least severe level that goes to the priority lane, null for no priority lane.
+     * @param priorityRingBufferSize the number of slots of the priority lane per sender thread.
+     * @param priorityOverflowPolicy what to do with events when a ring buffer of the priority lane is full.
+     * @param priorityWeight how many priority events are drained per normal event.
+     * @param partitioner hashes an event to its partition, called on the logging thread, null to partition by
+     *                    logging thread.
+     */
+    SenderPipeline(final String name, final int senderThreads, final int ringBufferSize,
+                   final OverflowPolicy overflowPolicy, final Level overflowLevel, final Level priorityLevel,
+                   final int priorityRingBufferSize, final OverflowPolicy priorityOverflowPolicy,
+                   final int priorityWeight, final ToIntFunction<LogEvent> partitioner) {
+        this.name = name;
+        this.partitioner = partitioner;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowLevel = overflowLevel;
+        this.priorityLevel = priorityLevel;
+        this.priorityOverflowPolicy = priorityOverflowPolicy != null ? priorityOverflowPolicy : OverflowPolicy.BLOCK;
+        this.priorityBudget = DRAIN_BATCH * Math.max(1, priorityWeight);
+        this.workers = new Worker[senderThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(ceilingPowerOfTwo(ringBufferSize),
+                    priorityLevel != null ? ceilingPowerOfTwo(priorityRingBufferSize) : 0);
+        }
+    }
+
+    /**
+     * Starts the sender threads.
+     *
+     * @param sink ships events, called from the sender threads.
+     * @param overflow receives the events that overflow with {@link OverflowPolicy#SPILL}.
+     */
+    void start(final Consumer<LogEvent> sink, final Consumer<LogEvent> overflow) {
+        this.overflow = overflow;
+        final ThreadFactory threadFactory = Log4jThreadFactory.createDaemonThreadFactory("ElasticSender-" + name);
+        for (final Worker worker : workers) {
+            worker.sink = sink;
+            worker.thread = threadFactory.newThread(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Copies an event into a free slot, applying the overflow policy when there is none. An event that would wait
+     * for a slot after the pipeline stopped goes to the consumer of leftover events, or is dropped.
+     *
+     * @param event the event to ship.
+     * @return false if the event was dropped.
+     */
+    boolean publish(final LogEvent event) {
+        final Worker worker = workers[partition(event)];
+        final boolean priority = worker.priority != null && event.getLevel().isMoreSpecificThan(priorityLevel);
+        final RingBuffer<MutableLogEvent> ringBuffer = priority ? worker.priority.ringBuffer : worker.normal.ringBuffer;
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            switch (priority ? priorityOverflowPolicy : overflowPolicy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return false;
+                case DROP_BELOW_LEVEL:
+                    if (!event.getLevel().isMoreSpecificThan(overflowLevel)) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    sequence = awaitSlot(ringBuffer);
+                    break;
+                case SPILL:
+                    overflow.accept(event);
+                    return true;
+                default:
+                    sequence = awaitSlot(ringBuffer);
+            }
+            if (sequence < 0) {
+                return abandon(event);
+            }
+        }
+        try {
+            ringBuffer.get(sequence).initFrom(event);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a sender thread to free a slot, and gives up once the pipeline stops, as the sender threads may
+     * never free one then.
+     *
+     * @return the claimed sequence, or -1 if the pipeline stopped.
+     */
+    private long awaitSlot(final RingBuffer<MutableLogEvent> ringBuffer) {
+        long parkNanos = 0;
+        while (running) {
+            try {
+                return ringBuffer.tryNext();
+            } catch (InsufficientCapacityException e) {
+                parkNanos = Math.min(MAX_PUBLISH_PARK_NANOS, Math.max(1000, parkNanos * 2));
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+        return -1;
+    }
+
+    private boolean abandon(final LogEvent event) {
+        final Consumer<LogEvent> handler = leftover;
+        if (handler != null) {
+            handler.accept(event);
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private int partition(final LogEvent event) {
+        if (partitioner == null) {
+            return (int) (Thread.currentThread().getId() % workers.length);
+        }
+        // Spread the bits, hashes such as those of strings differing in the last character are close together.
+        final int hash = partitioner.applyAsInt(event) * 0x9E3779B9;
+        return Math.floorMod(hash ^ hash >>> 16, workers.length);
+    }
+
+    /**
+     * @return the number of events waiting in the ring buffers.
+     */
+    long getQueueDepth() {
+        long depth = 0;
+        for (final Worker worker : workers) {
+            depth += worker.normal.depth() + (worker.priority != null ? worker.priority.depth() : 0);
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of events dropped because a ring buffer was full.
+     */
+    long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    /**
+     * Lets the sender threads ship what is queued and waits for them to finish.
+     *
+     * @param timeout the maximum time to wait.
+     * @param timeUnit the unit of the timeout.
+     * @return true if all queued events were handled in time.
+     */
+    boolean stop(final long timeout, final TimeUnit timeUnit) {
+        return stop(timeout, timeUnit, null);
+    }
+
+    /**
+     * Lets the sender threads ship what is queued until the timeout, and then hands what is still queued to a
+     * consumer, such as one that spills the events. The sender threads get another second for that, which is enough
+     * unless one of them is stuck shipping an event.
+     *
+     * @param timeout the maximum time to wait for the events to be shipped.
+     * @param timeUnit the unit of the timeout.
+     * @param leftover receives the events still queued at the timeout, called from the sender threads, null to leave
+     *                 them queued.
+     * @return true if all queued events were shipped in time.
+     */
+    boolean stop(final long timeout, final TimeUnit timeUnit, final Consumer<LogEvent> leftover) {
+        running = false;
+        final boolean stopped = join(System.nanoTime() + timeUnit.toNanos(timeout));
+        if (!stopped && leftover != null) {
+            this.leftover = leftover;
+            join(System.nanoTime() + LEFTOVER_GRACE_NANOS);
+        }
+        return stopped;
+    }
+
+    private boolean join(final long deadline) {
+        boolean stopped = true;
+        for (final Worker worker : workers) {
+            if (worker.thread == null) {
+                continue;
+            }
+            LockSupport.unpark(worker.thread);
+            try {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                worker.thread.join(Math.max(1, remaining));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped &= !worker.thread.isAlive();
+        }
+        return stopped;
+    }
+
+    private static int ceilingPowerOfTwo(final int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * A ring buffer with the poller of its sender thread.
+     */
+    private static final class Lane {
+
+        private final RingBuffer<MutableLogEvent> ringBuffer;
+        private final EventPoller<MutableLogEvent> poller;
+
+        Lane(final int size) {
+            this.ringBuffer = RingBuffer.createMultiProducer(MutableLogEvent::new, size, new YieldingWaitStrategy());
+            this.poller = ringBuffer.newPoller();
+            this.ringBuffer.addGatingSequences(poller.getSequence());
+        }
+
+        long depth() {
+            return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+        }
+    }
+
+    private final class Worker implements Runnable, EventPoller.Handler<MutableLogEvent> {
+
+        private final Lane normal;
+        private final Lane priority;
+        private Consumer<LogEvent> sink;
+        private Thread thread;
+        private int budget;
+
+        Worker(final int size, final int prioritySize) {
+            this.normal = new Lane(size);
+            this.priority = prioritySize > 0 ? new Lane(prioritySize) : null;
+        }
+
+        @Override
+        public boolean onEvent(final MutableLogEvent event, final long sequence, final boolean endOfBatch) {
+            try {
+                final Consumer<LogEvent> target = leftover;
+                (target != null ? target : sink).accept(event);
+            } catch (RuntimeException e) {
+                // The sink reports its own errors, an event that fails must not be polled again.
+            } finally {
+                event.clear();
+            }
+            return --budget > 0;
+        }
+
+        @Override
+        public void run() {
+            long parkNanos = 0;
+            while (true) {
+                boolean processing = false;
+                try {
+                    if (priority != null) {
+                        budget = priorityBudget;
+                        processing = priority.poller.poll(this) == EventPoller.PollState.PROCESSING;
+                        budget = DRAIN_BATCH;
+                    } else {
+                        budget = Integer.MAX_VALUE;
+                    }
+                    processing |= normal.poller.poll(this) == EventPoller.PollState.PROCESSING;
+                } catch (Exception e) {
+                    continue;
+                }
+                if (processing) {
+                    parkNanos = 0;
+                } else if (!running) {
+                    return;
+                } else {
+                    parkNanos = Math.min(MAX_IDLE_PARK_NANOS, Math.max(1000, parkNanos * 2));
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+            }
+        }
+    }
+}
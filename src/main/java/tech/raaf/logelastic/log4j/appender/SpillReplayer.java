@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships the events in a spill log to Elasticsearch with bulk requests, oldest first, whenever a node is live.
+ * <p>
+ * Records are only removed from the log once Elasticsearch answered the bulk request. Items it rejects with a
+ * transient status are appended to the log again, items it rejects for good are dropped. Records that Elasticsearch
+ * will never take as a whole, because it rejects the request with a 4xx status other than 429 or keeps answering it
+ * with errors but without items, are dropped as well, so they don't hold up the log for good.
+ * </p>
+ */
+final class SpillReplayer {
+
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final int MAX_INCOMPLETE_RESPONSES = 3;
+
+    private final HttpManager manager;
+    private final SegmentLog spillLog;
+    private final int maxBytes;
+    private final int maxEvents;
+    private final ScheduledExecutorService executor;
+    // Only used by the replay thread.
+    private int incompleteResponses;
+
+    SpillReplayer(final HttpManager manager, final String name, final SegmentLog spillLog, final int maxBytes,
+                  final int maxEvents) {
+        this.manager = manager;
+        this.spillLog = spillLog;
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                Log4jThreadFactory.createDaemonThreadFactory("ElasticSpill-" + name));
+        this.executor.scheduleWithFixedDelay(this::replay, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops replaying. Records that were not replayed stay in the log.
+     *
+     * @param timeout the maximum time to wait for a replay in progress.
+     * @param timeUnit the unit of the timeout.
+     * @return true if the replay thread stopped in time.
+     */
+    boolean stop(final long timeout, final TimeUnit timeUnit) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void replay() {
+        while (!spillLog.isEmpty() && manager.hasLiveNode() && !executor.isShutdown()) {
+            final BulkBatch batch = new BulkBatch(Math.min(maxBytes, 64 * 1024), manager.getBufferPool());
+            try {
+                if (!replay(batch)) {
+                    return;
+                }
+            } finally {
+                batch.release();
+            }
+        }
+    }
+
+    /**
+     * Ships the oldest records of the log in the given batch.
+     *
+     * @return true if the next batch may follow right away.
+     */
+    private boolean replay(final BulkBatch batch) {
+        if (spillLog.peek(batch, maxEvents, maxBytes) == 0) {
+            return false;
+        }
+        final ElasticMetrics metrics = manager.getMetrics();
+        final BulkResponse result;
+        try {
+            metrics.bulkSent(batch.size(), batch.byteSize());
+            final byte[] response = manager.sendBulk(batch.array(), batch.byteSize());
+            result = BulkResponse.parse(response);
+        } catch (HttpStatusException e) {
+            if (e.getStatus() == 404 || e.isRetryable()) {
+                // Try again later, the records stay in the log.
+                return false;
+            }
+            discard(batch, "Elasticsearch rejected a bulk request of " + batch.size() + " spilled events, dropping them: " + e.getMessage());
+            return true;
+        } catch (IOException e) {
+            // Try again later, the records stay in the log.
+            return false;
+        }
+        if (result.isIncomplete()) {
+            // It is unknown which records went through, so all of them are sent again later, a few times.
+            if (++incompleteResponses < MAX_INCOMPLETE_RESPONSES) {
+                return false;
+            }
+            discard(batch, "Elasticsearch reported errors without items " + incompleteResponses + " times, dropping " + batch.size() + " spilled events..");
+            return true;
+        }
+        incompleteResponses = 0;
+        spillLog.commit();
+
+        BulkResponse.Failure rejected = null;
+        int rejections = 0;
+        metrics.eventsShipped(batch.size() - result.getFailures().size());
+        for (final BulkResponse.Failure failure : result.getFailures()) {
+            metrics.itemFailed(failure.getStatus());
+            boolean kept = false;
+            if (failure.isRetryable()) {
+                try {
+                    kept = spillLog.append(batch.array(), batch.itemOffset(failure.getItem()), batch.itemLength(failure.getItem()));
+                } catch (IOException e) {
+                    kept = false;
+                }
+            }
+            if (kept) {
+                metrics.retried(1);
+            } else {
+                metrics.eventRejected();
+                rejected = failure;
+                rejections++;
+            }
+        }
+        if (rejected != null) {
+            manager.fakeLogMessage("WARN", getClass().getSimpleName(), "Elasticsearch rejected " + rejections + " spilled events, last one with status " + rejected.getStatus() + " (" + rejected.getReason() + ")");
+        }
+        if (result.getFailures().size() == batch.size()) {
+            // Nothing got through, give the cluster some time.
+            return false;
+        }
+        return true;
+    }
+
+    private void discard(final BulkBatch batch, final String message) {
+        spillLog.commit();
+        incompleteResponses = 0;
+        manager.getMetrics().eventsRejected(batch.size());
+        manager.fakeLogMessage("WARN", getClass().getSimpleName(), message);
+    }
+}
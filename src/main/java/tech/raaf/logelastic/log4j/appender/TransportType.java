@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.appender;
+
+/**
+ * How requests are sent to an Elasticsearch node.
+ */
+public enum TransportType {
+
+    /**
+     * A pool of blocking connections, every request occupies the sending thread until its response arrived.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking connections driven by one I/O thread per node, so one sending thread can keep many bulk requests
+     * in flight. Only plain HTTP is supported.
+     */
+    ASYNC;
+
+    static TransportType toTransportType(final String name, final TransportType defaultTransportType) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultTransportType;
+        }
+        for (final TransportType transportType : values()) {
+            if (transportType.name().equalsIgnoreCase(name.trim())) {
+                return transportType;
+            }
+        }
+        return defaultTransportType;
+    }
+}
@@ -0,0 +1,140 @@
+package tech.raaf.logelastic.log4j.config;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * Limits how many events of a logger, and the loggers below it, are admitted per second, and which share of them.
+ * <p>
+ * The rule applies to events at {@code level} or less severe, every level when no level is given. Each logger and
+ * level gets its own token bucket, so one noisy logger doesn't use up the budget of its neighbours.
+ * </p>
+ */
+@Plugin(name = "RateLimit", category = Node.CATEGORY, printObject = true)
+public final class RateLimit {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final String logger;
+    private final Level level;
+    private final double eventsPerSecond;
+    private final int burst;
+    private final double sampling;
+
+    private RateLimit(final String logger, final Level level, final double eventsPerSecond, final int burst,
+                      final double sampling) {
+        this.logger = logger;
+        this.level = level;
+        this.eventsPerSecond = eventsPerSecond;
+        this.burst = burst;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Returns the name of the logger the rule applies to, an empty string for all loggers.
+     * @return the logger name.
+     */
+    public String getLogger() {
+        return logger;
+    }
+
+    /**
+     * Returns the most severe level the rule applies to.
+     * @return the level, null for all levels.
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the number of events admitted per second, 0 for no limit.
+     * @return the rate.
+     */
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    /**
+     * Returns the number of events admitted at once after a quiet period.
+     * @return the burst.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Returns the share of the events that is admitted, before the rate limit is applied.
+     * @return the share, from 0 to 1.
+     */
+    public double getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Tells whether the rule applies to a logger.
+     *
+     * @param loggerName the name of the logger.
+     * @return true if the logger is the logger of the rule or below it.
+     */
+    public boolean appliesTo(final String loggerName) {
+        return logger.isEmpty() || loggerName.equals(logger)
+                || loggerName.startsWith(logger) && loggerName.charAt(logger.length()) == '.';
+    }
+
+    /**
+     * Tells whether the rule applies to a level.
+     *
+     * @param eventLevel the level of an event.
+     * @return true if the level is as or less severe than the level of the rule.
+     */
+    public boolean appliesTo(final Level eventLevel) {
+        return level == null || eventLevel.isLessSpecificThan(level);
+    }
+
+    /**
+     * Creates a RateLimit.
+     *
+     * @param logger The logger, empty for all loggers.
+     * @param level The most severe level to limit, all levels when absent.
+     * @param eventsPerSecond The number of events admitted per second, 0 for no limit.
+     * @param burst The number of events admitted at once, defaults to one second worth of events.
+     * @param sampling The share of events admitted, 1 for all of them.
+     * @return A RateLimit, or null when the settings are invalid.
+     */
+    @PluginFactory
+    public static RateLimit createRateLimit(
+            @PluginAttribute("logger") final String logger,
+            @PluginAttribute("level") final String level,
+            @PluginAttribute("eventsPerSecond") final double eventsPerSecond,
+            @PluginAttribute(value = "burst", defaultInt = 0) final int burst,
+            @PluginAttribute(value = "sampling", defaultDouble = 1) final double sampling) {
+        if (eventsPerSecond < 0 || burst < 0) {
+            LOGGER.error("Rate and burst of a RateLimit must not be negative");
+            return null;
+        }
+        if (sampling < 0 || sampling > 1) {
+            LOGGER.error("Sampling of a RateLimit must be from 0 to 1, not {}", sampling);
+            return null;
+        }
+        final Level parsedLevel = Strings.isBlank(level) ? null : Level.toLevel(level.trim(), null);
+        if (!Strings.isBlank(level) && parsedLevel == null) {
+            LOGGER.error("Unknown level {} of a RateLimit", level);
+            return null;
+        }
+        return new RateLimit(logger != null ? logger.trim() : Strings.EMPTY, parsedLevel, eventsPerSecond,
+                burst > 0 ? burst : Math.max(1, (int) Math.ceil(eventsPerSecond)), sampling);
+    }
+
+    @Override
+    public String toString() {
+        return (logger.isEmpty() ? "root" : logger) + (level != null ? " up to " + level : "")
+                + (eventsPerSecond > 0 ? ", " + eventsPerSecond + "/s burst " + burst : "")
+                + (sampling < 1 ? ", sampling " + sampling : "");
+    }
+}
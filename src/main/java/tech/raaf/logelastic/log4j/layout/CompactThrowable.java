@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.layout;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Encodes a throwable as a stable stack hash and a short text trace, instead of an object per stack frame.
+ * <p>
+ * The trace reads like {@link Throwable#printStackTrace()}, with at most {@code maxFrames} frames per throwable, the
+ * frames a cause shares with the throwable it caused elided as {@code ... n more}, and runs of frames in filtered
+ * packages, such as reflection and proxies, collapsed into one line. The hash covers the class names of the causes and
+ * the class and method of every frame outside the filtered packages, leaving out messages and line numbers, so the
+ * same failure gets the same hash across hosts, restarts and small code changes.
+ * </p>
+ * <p>
+ * The encoded form of the last throwables is cached by identity, so an exception that is logged again, say once where
+ * it is caught and once where it is rethrown, is only encoded once. The cache holds its throwables weakly.
+ * </p>
+ */
+final class CompactThrowable {
+
+    private static final int CACHE_SLOTS = 64;
+    private static final int MAX_DEPTH = 16;
+
+    private final int maxFrames;
+    private final String[] filteredPackages;
+    private final AtomicReferenceArray<Encoded> cache = new AtomicReferenceArray<>(CACHE_SLOTS);
+
+    /**
+     * @param maxFrames the maximum number of frames written per throwable.
+     * @param filteredPackages the prefixes of the classes whose frames are collapsed, may be empty.
+     */
+    CompactThrowable(final int maxFrames, final String[] filteredPackages) {
+        this.maxFrames = maxFrames;
+        this.filteredPackages = filteredPackages.clone();
+    }
+
+    /**
+     * Parses a comma separated list of package prefixes.
+     *
+     * @param packages the list, may be null.
+     * @return the prefixes.
+     */
+    static String[] toPackages(final String packages) {
+        if (packages == null || packages.trim().isEmpty()) {
+            return new String[0];
+        }
+        return Arrays.stream(packages.split(","))
+                .map(String::trim)
+                .filter(prefix -> !prefix.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Returns the encoded form of a throwable, from the cache if it was encoded before.
+     *
+     * @param thrown the throwable.
+     * @return the encoded form.
+     */
+    Encoded encode(final Throwable thrown) {
+        final int slot = System.identityHashCode(thrown) & CACHE_SLOTS - 1;
+        final Encoded cached = cache.get(slot);
+        if (cached != null && cached.get() == thrown) {
+            return cached;
+        }
+        final StringBuilder trace = new StringBuilder(1024);
+        final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final long hash = write(trace, thrown, null, "", "", seen, 0, 1125899906842597L);
+        trace.setLength(trace.length() - 1);
+        final Encoded encoded = new Encoded(thrown, toHex(hash), trace.toString());
+        cache.set(slot, encoded);
+        return encoded;
+    }
+
+    private long write(final StringBuilder trace, final Throwable thrown, final StackTraceElement[] enclosing,
+                       final String caption, final String indent, final Set<Throwable> seen, final int depth,
+                       final long hash) {
+        if (!seen.add(thrown)) {
+            trace.append(indent).append(caption).append("[CIRCULAR REFERENCE: ").append(thrown).append("]\n");
+            return hash;
+        }
+        if (depth > MAX_DEPTH) {
+            trace.append(indent).append(caption).append("...\n");
+            return hash;
+        }
+        trace.append(indent).append(caption).append(thrown).append('\n');
+        long result = mix(hash, thrown.getClass().getName());
+
+        final StackTraceElement[] frames = thrown.getStackTrace();
+        // Frames at the bottom that the enclosing trace already shows.
+        int unique = frames.length;
+        if (enclosing != null) {
+            for (int e = enclosing.length - 1; unique > 0 && e >= 0 && frames[unique - 1].equals(enclosing[e]); e--) {
+                unique--;
+            }
+        }
+        int written = 0;
+        int filtered = 0;
+        int omitted = 0;
+        for (int i = 0; i < unique; i++) {
+            final StackTraceElement frame = frames[i];
+            final boolean filter = isFiltered(frame.getClassName());
+            if (!filter) {
+                result = mix(mix(result, frame.getClassName()), frame.getMethodName());
+            }
+            if (written >= maxFrames) {
+                omitted++;
+            } else if (filter) {
+                filtered++;
+            } else {
+                if (filtered > 0) {
+                    trace.append(indent).append("\t... ").append(filtered).append(" filtered\n");
+                    filtered = 0;
+                }
+                trace.append(indent).append("\tat ").append(frame).append('\n');
+                written++;
+            }
+        }
+        if (filtered > 0) {
+            trace.append(indent).append("\t... ").append(filtered).append(" filtered\n");
+        }
+        if (omitted > 0) {
+            trace.append(indent).append("\t... ").append(omitted).append(" frames omitted\n");
+        }
+        if (unique < frames.length) {
+            trace.append(indent).append("\t... ").append(frames.length - unique).append(" more\n");
+        }
+
+        for (final Throwable suppressed : thrown.getSuppressed()) {
+            write(trace, suppressed, frames, "Suppressed: ", indent + '\t', seen, depth + 1, 0);
+        }
+        final Throwable cause = thrown.getCause();
+        if (cause != null) {
+            result = write(trace, cause, frames, "Caused by: ", indent, seen, depth + 1, result);
+        }
+        return result;
+    }
+
+    private boolean isFiltered(final String className) {
+        for (final String prefix : filteredPackages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long mix(final long hash, final String value) {
+        // String.hashCode is specified, so the hash is the same on every JVM.
+        final long mixed = (hash ^ value.hashCode()) * 0x9E3779B97F4A7C15L;
+        return mixed ^ mixed >>> 29;
+    }
+
+    private static String toHex(final long hash) {
+        final String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * The encoded form of a throwable.
+     */
+    static final class Encoded extends WeakReference<Throwable> {
+
+        private final String hash;
+        private final String trace;
+
+        private Encoded(final Throwable thrown, final String hash, final String trace) {
+            super(thrown);
+            this.hash = hash;
+            this.trace = trace;
+        }
+
+        /**
+         * @return the stack hash as 16 hexadecimal digits.
+         */
+        String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the text trace, without a trailing line break.
+         */
+        String getTrace() {
+            return trace;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.layout;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.core.util.StringBuilderWriter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Writes log events as Elastic Common Schema documents into a reusable per-thread byte buffer.
+ * <p>
+ * Field names are encoded once, strings are escaped directly into the buffer, the timestamp is formatted from the
+ * epoch milliseconds with the date part cached per day, and messages that implement {@link StringBuilderFormattable}
+ * are formatted into a reused builder. Only events with an exception or a non-string context value allocate.
+ * </p>
+ */
+final class EcsEncoder {
+
+    static final String ECS_VERSION = "1.2.0";
+
+    private static final int MAX_REUSED_BYTES = 512 * 1024;
+    private static final int MAX_REUSED_CHARS = 128 * 1024;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final byte[] TIMESTAMP = JsonByteBuffer.fieldName("@timestamp");
+    private static final byte[] LOG_LEVEL = JsonByteBuffer.fieldName("log.level");
+    private static final byte[] MESSAGE = JsonByteBuffer.fieldName("message");
+    private static final byte[] ECS_VERSION_FIELD = JsonByteBuffer.fieldName("ecs.version");
+    private static final byte[] SERVICE_NAME = JsonByteBuffer.fieldName("service.name");
+    private static final byte[] THREAD_NAME = JsonByteBuffer.fieldName("process.thread.name");
+    private static final byte[] THREAD_ID = JsonByteBuffer.fieldName("process.thread.id");
+    private static final byte[] LOGGER = JsonByteBuffer.fieldName("log.logger");
+    private static final byte[] ORIGIN = JsonByteBuffer.fieldName("log.origin");
+    private static final byte[] FILE = JsonByteBuffer.fieldName("file");
+    private static final byte[] NAME = JsonByteBuffer.fieldName("name");
+    private static final byte[] LINE = JsonByteBuffer.fieldName("line");
+    private static final byte[] FUNCTION = JsonByteBuffer.fieldName("function");
+    private static final byte[] LABELS = JsonByteBuffer.fieldName("labels");
+    private static final byte[] TAGS = JsonByteBuffer.fieldName("tags");
+    private static final byte[] ERROR_TYPE = JsonByteBuffer.fieldName("error.type");
+    private static final byte[] ERROR_MESSAGE = JsonByteBuffer.fieldName("error.message");
+    private static final byte[] ERROR_STACK_TRACE = JsonByteBuffer.fieldName("error.stack_trace");
+
+    private static final TriConsumer<String, Object, Output> WRITE_LABEL = (key, value, output) -> {
+        final JsonByteBuffer buffer = output.buffer;
+        if (output.first) {
+            output.first = false;
+        } else {
+            buffer.writeByte(',');
+        }
+        buffer.writeString(key).writeByte(':');
+        if (value instanceof CharSequence) {
+            buffer.writeString((CharSequence) value);
+        } else {
+            buffer.writeString(String.valueOf(value));
+        }
+    };
+
+    private final byte[] serviceName;
+    private final boolean locationInfo;
+    private final boolean properties;
+    private final boolean includeStacktrace;
+    private final ThreadLocal<Output> outputs = new ThreadLocal<>();
+
+    EcsEncoder(final String serviceName, final boolean locationInfo, final boolean properties,
+               final boolean includeStacktrace) {
+        if (serviceName != null && !serviceName.isEmpty()) {
+            final JsonByteBuffer encoded = new JsonByteBuffer(64, 64);
+            encoded.writeString(serviceName);
+            this.serviceName = Arrays.copyOf(encoded.array(), encoded.size());
+        } else {
+            this.serviceName = null;
+        }
+        this.locationInfo = locationInfo;
+        this.properties = properties;
+        this.includeStacktrace = includeStacktrace;
+    }
+
+    /**
+     * Encodes an event, followed by a line feed. The returned buffer belongs to the calling thread and is
+     * overwritten by the next call.
+     *
+     * @param event the event.
+     * @return the buffer holding the document.
+     */
+    JsonByteBuffer encode(final LogEvent event) {
+        Output output = Constants.ENABLE_THREADLOCALS ? outputs.get() : null;
+        if (output == null) {
+            output = new Output();
+            if (Constants.ENABLE_THREADLOCALS) {
+                outputs.set(output);
+            }
+        }
+        final JsonByteBuffer buffer = output.buffer;
+        buffer.reset();
+
+        buffer.writeByte('{').writeRaw(TIMESTAMP);
+        writeTimestamp(output, event.getTimeMillis());
+        final Level level = event.getLevel();
+        if (level != null) {
+            buffer.writeByte(',').writeRaw(LOG_LEVEL).writeString(level.name());
+        }
+        final Message message = event.getMessage();
+        if (message != null) {
+            buffer.writeByte(',').writeRaw(MESSAGE);
+            writeMessage(output, message);
+        }
+        buffer.writeByte(',').writeRaw(ECS_VERSION_FIELD).writeString(ECS_VERSION);
+        if (serviceName != null) {
+            buffer.writeByte(',').writeRaw(SERVICE_NAME).writeRaw(serviceName);
+        }
+        writeField(buffer, THREAD_NAME, event.getThreadName());
+        buffer.writeByte(',').writeRaw(THREAD_ID).writeNumber(event.getThreadId());
+        writeField(buffer, LOGGER, event.getLoggerName());
+        final StackTraceElement source = locationInfo ? event.getSource() : null;
+        if (source != null) {
+            buffer.writeByte(',').writeRaw(ORIGIN).writeByte('{')
+                    .writeRaw(FILE).writeByte('{');
+            if (source.getFileName() != null) {
+                buffer.writeRaw(NAME).writeString(source.getFileName()).writeByte(',');
+            }
+            buffer.writeRaw(LINE).writeNumber(source.getLineNumber()).writeByte('}')
+                    .writeByte(',').writeRaw(FUNCTION).writeString(source.getMethodName())
+                    .writeByte('}');
+        }
+        final ReadOnlyStringMap contextData = properties ? event.getContextData() : null;
+        if (contextData != null && !contextData.isEmpty()) {
+            buffer.writeByte(',').writeRaw(LABELS).writeByte('{');
+            output.first = true;
+            contextData.forEach(WRITE_LABEL, output);
+            buffer.writeByte('}');
+        }
+        final Marker marker = event.getMarker();
+        if (marker != null) {
+            buffer.writeByte(',').writeRaw(TAGS).writeByte('[');
+            writeMarker(buffer, marker, true);
+            buffer.writeByte(']');
+        }
+        final Throwable thrown = event.getThrown();
+        if (thrown != null) {
+            writeField(buffer, ERROR_TYPE, thrown.getClass().getName());
+            writeField(buffer, ERROR_MESSAGE, thrown.getMessage());
+            if (includeStacktrace) {
+                buffer.writeByte(',').writeRaw(ERROR_STACK_TRACE);
+                writeStackTrace(output, thrown);
+            }
+        }
+        buffer.writeByte('}').writeByte('\n');
+        return buffer;
+    }
+
+    /**
+     * Writes the time as {@code yyyy-MM-ddTHH:mm:ss.SSSZ} in UTC.
+     */
+    private static void writeTimestamp(final Output output, final long timeMillis) {
+        final long day = Math.floorDiv(timeMillis, MILLIS_PER_DAY);
+        if (day != output.cachedDay || output.cachedDate == null) {
+            final LocalDate date = LocalDate.ofEpochDay(day);
+            final JsonByteBuffer prefix = new JsonByteBuffer(16, 16);
+            prefix.writeByte('"').writePadded(date.getYear(), 4).writeByte('-')
+                    .writePadded(date.getMonthValue(), 2).writeByte('-')
+                    .writePadded(date.getDayOfMonth(), 2).writeByte('T');
+            output.cachedDate = Arrays.copyOf(prefix.array(), prefix.size());
+            output.cachedDay = day;
+        }
+        int millisOfDay = (int) Math.floorMod(timeMillis, MILLIS_PER_DAY);
+        final int millis = millisOfDay % 1000;
+        millisOfDay /= 1000;
+        final int seconds = millisOfDay % 60;
+        millisOfDay /= 60;
+        final int minutes = millisOfDay % 60;
+        final int hours = millisOfDay / 60;
+        output.buffer.writeRaw(output.cachedDate)
+                .writePadded(hours, 2).writeByte(':')
+                .writePadded(minutes, 2).writeByte(':')
+                .writePadded(seconds, 2).writeByte('.')
+                .writePadded(millis, 3).writeByte('Z').writeByte('"');
+    }
+
+    private static void writeMessage(final Output output, final Message message) {
+        if (!(message instanceof StringBuilderFormattable)) {
+            output.buffer.writeString(message.getFormattedMessage());
+            return;
+        }
+        final StringBuilder text = output.text;
+        text.setLength(0);
+        ((StringBuilderFormattable) message).formatTo(text);
+        output.buffer.writeString(text);
+        trim(text);
+    }
+
+    private static void writeStackTrace(final Output output, final Throwable thrown) {
+        final StringBuilder text = output.text;
+        text.setLength(0);
+        thrown.printStackTrace(new PrintWriter(new StringBuilderWriter(text)));
+        int end = text.length();
+        while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        text.setLength(end);
+        output.buffer.writeString(text);
+        trim(text);
+    }
+
+    private static void writeMarker(final JsonByteBuffer buffer, final Marker marker, final boolean first) {
+        if (!first) {
+            buffer.writeByte(',');
+        }
+        buffer.writeString(marker.getName());
+        final Marker[] parents = marker.getParents();
+        if (parents != null) {
+            for (final Marker parent : parents) {
+                writeMarker(buffer, parent, false);
+            }
+        }
+    }
+
+    private static void writeField(final JsonByteBuffer buffer, final byte[] name, final String value) {
+        if (value != null && !value.isEmpty()) {
+            buffer.writeByte(',').writeRaw(name).writeString(value);
+        }
+    }
+
+    private static void trim(final StringBuilder text) {
+        if (text.capacity() > MAX_REUSED_CHARS) {
+            text.setLength(MAX_REUSED_CHARS);
+            text.trimToSize();
+        }
+    }
+
+    private static final class Output {
+
+        private final JsonByteBuffer buffer = new JsonByteBuffer(1024, MAX_REUSED_BYTES);
+        private final StringBuilder text = new StringBuilder(256);
+        private long cachedDay;
+        private byte[] cachedDate;
+        private boolean first;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.layout;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lays out events as single-line Elastic Common Schema documents, such as
+ * {@code {"@timestamp":"2019-05-01T10:15:30.123Z","log.level":"INFO","message":"Hello","ecs.version":"1.2.0",...}}.
+ * <p>
+ * The documents are written by a purpose-built encoder instead of the Jackson object mapper, and are much smaller
+ * than the log4j JSON shape. The charset is always UTF-8.
+ * </p>
+ */
+@Plugin(name = "EcsLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class EcsLayout extends AbstractStringLayout {
+
+    static final String CONTENT_TYPE = "application/json";
+
+    public static class Builder<B extends Builder<B>> extends AbstractStringLayout.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<EcsLayout> {
+
+        @PluginBuilderAttribute
+        private String serviceName;
+
+        @PluginBuilderAttribute
+        private boolean locationInfo;
+
+        @PluginBuilderAttribute
+        private boolean properties;
+
+        @PluginBuilderAttribute
+        private boolean includeStacktrace = true;
+
+        public Builder() {
+            super();
+            setCharset(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public EcsLayout build() {
+            return new EcsLayout(serviceName, locationInfo, properties, includeStacktrace);
+        }
+
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        public boolean isLocationInfo() {
+            return locationInfo;
+        }
+
+        /**
+         * If "true", includes the context data as {@code labels}, defaults to "false".
+         * @return If "true", includes the context data.
+         */
+        public boolean isProperties() {
+            return properties;
+        }
+
+        /**
+         * If "true", includes the stacktrace of any Throwable as {@code error.stack_trace}, defaults to "true".
+         * @return If "true", includes the stacktrace of any Throwable.
+         */
+        public boolean isIncludeStacktrace() {
+            return includeStacktrace;
+        }
+
+        public B setServiceName(final String serviceName) {
+            this.serviceName = serviceName;
+            return asBuilder();
+        }
+
+        public B setLocationInfo(final boolean locationInfo) {
+            this.locationInfo = locationInfo;
+            return asBuilder();
+        }
+
+        public B setProperties(final boolean properties) {
+            this.properties = properties;
+            return asBuilder();
+        }
+
+        public B setIncludeStacktrace(final boolean includeStacktrace) {
+            this.includeStacktrace = includeStacktrace;
+            return asBuilder();
+        }
+    }
+
+    private final EcsEncoder encoder;
+
+    private EcsLayout(final String serviceName, final boolean locationInfo, final boolean properties,
+                      final boolean includeStacktrace) {
+        super(StandardCharsets.UTF_8);
+        this.encoder = new EcsEncoder(serviceName, locationInfo, properties, includeStacktrace);
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    @Override
+    public String toSerializable(final LogEvent event) {
+        final JsonByteBuffer buffer = encoder.encode(event);
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] toByteArray(final LogEvent event) {
+        final JsonByteBuffer buffer = encoder.encode(event);
+        return Arrays.copyOf(buffer.array(), buffer.size());
+    }
+
+    /**
+     * Writes the event to the destination without creating intermediate strings or byte arrays.
+     *
+     * @param event the event.
+     * @param destination the destination.
+     */
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        final JsonByteBuffer buffer = encoder.encode(event);
+        writeTo(buffer.array(), 0, buffer.size(), destination);
+    }
+
+    @Override
+    public Map<String, String> getContentFormat() {
+        final Map<String, String> result = new HashMap<>();
+        result.put("version", EcsEncoder.ECS_VERSION);
+        return result;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE + "; charset=" + this.getCharset();
+    }
+}
@@ -22,12 +22,15 @@ import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.DefaultConfiguration;
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.plugins.*;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.util.Strings;
 
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -40,6 +43,10 @@ public final class ElasticLayout extends AbstractJacksonLayout {
 
     static final String CONTENT_TYPE = "application/json";
 
+    private static final byte[] EVENT_SEPARATOR = ", ".getBytes(StandardCharsets.UTF_8);
+
+    static final String DEFAULT_STACKTRACE_FILTER = "sun.reflect.,jdk.internal.reflect.,java.lang.reflect.,com.sun.proxy.";
+
     public static class Builder<B extends Builder<B>> extends AbstractJacksonLayout.Builder<B>
             implements org.apache.logging.log4j.core.util.Builder<ElasticLayout> {
 
@@ -55,6 +62,27 @@ public final class ElasticLayout extends AbstractJacksonLayout {
         @PluginBuilderAttribute
         private boolean includeStacktrace = true;
 
+        @PluginBuilderAttribute
+        private boolean streaming = true;
+
+        @PluginBuilderAttribute
+        private boolean compactStacktrace;
+
+        @PluginBuilderAttribute
+        private int maxStackFrames = 30;
+
+        @PluginBuilderAttribute
+        private String stacktraceFilter = DEFAULT_STACKTRACE_FILTER;
+
+        @PluginBuilderAttribute
+        private int maxMessageLength;
+
+        @PluginBuilderAttribute
+        private int maxValueLength;
+
+        @PluginBuilderAttribute
+        private int maxDocumentBytes;
+
         public Builder() {
             super();
             setCharset(StandardCharsets.UTF_8);
@@ -65,8 +93,24 @@ public final class ElasticLayout extends AbstractJacksonLayout {
             final boolean encodeThreadContextAsList = properties && propertiesAsList;
             final String headerPattern = toStringOrNull(getHeader());
             final String footerPattern = toStringOrNull(getFooter());
+            if (compactStacktrace && maxStackFrames < 0) {
+                LOGGER.error("Maximum number of stack frames of ElasticLayout must not be negative");
+                return null;
+            }
+            if (maxMessageLength < 0 || maxValueLength < 0) {
+                LOGGER.error("Maximum message and value lengths of ElasticLayout must not be negative");
+                return null;
+            }
+            if (maxDocumentBytes != 0 && maxDocumentBytes < StreamingJsonEncoder.MIN_DOCUMENT_BYTES) {
+                LOGGER.error("Maximum document size of ElasticLayout must be 0 or at least {} bytes", StreamingJsonEncoder.MIN_DOCUMENT_BYTES);
+                return null;
+            }
+            final CompactThrowable compactThrowable = compactStacktrace
+                    ? new CompactThrowable(maxStackFrames, CompactThrowable.toPackages(stacktraceFilter))
+                    : null;
             return new ElasticLayout(getConfiguration(), locationInfo, properties, encodeThreadContextAsList, isComplete(),
-                    isCompact(), getEventEol(), headerPattern, footerPattern, getCharset(), includeStacktrace);
+                    isCompact(), getEventEol(), headerPattern, footerPattern, getCharset(), includeStacktrace, streaming,
+                    compactThrowable, maxMessageLength, maxValueLength, maxDocumentBytes);
         }
 
         private String toStringOrNull(final byte[] header) {
@@ -93,6 +137,68 @@ public final class ElasticLayout extends AbstractJacksonLayout {
             return includeStacktrace;
         }
 
+        /**
+         * If "true", events are written straight to bytes instead of through the Jackson object mapper, defaults to
+         * "true". Only applies to the UTF-8 charset.
+         * @return If "true", events are written straight to bytes.
+         */
+        public boolean isStreaming() {
+            return streaming;
+        }
+
+        /**
+         * If "true", throwables are written as a stack hash and a short text trace instead of an object per frame,
+         * defaults to "false". Only applies to the streaming encoder.
+         * @return If "true", throwables are written in compact form.
+         */
+        public boolean isCompactStacktrace() {
+            return compactStacktrace;
+        }
+
+        /**
+         * The maximum number of frames per throwable in a compact stack trace, defaults to 30.
+         * @return the maximum number of frames.
+         */
+        public int getMaxStackFrames() {
+            return maxStackFrames;
+        }
+
+        /**
+         * Comma separated prefixes of the classes whose frames are collapsed in a compact stack trace and left out of
+         * the stack hash, defaults to the reflection and proxy packages.
+         * @return the class name prefixes.
+         */
+        public String getStacktraceFilter() {
+            return stacktraceFilter;
+        }
+
+        /**
+         * The maximum number of characters of the message and of throwable messages, defaults to 0 for no limit. Only
+         * applies to the streaming encoder.
+         * @return the maximum message length.
+         */
+        public int getMaxMessageLength() {
+            return maxMessageLength;
+        }
+
+        /**
+         * The maximum number of characters of a thread context map or stack value, defaults to 0 for no limit. Only
+         * applies to the streaming encoder.
+         * @return the maximum value length.
+         */
+        public int getMaxValueLength() {
+            return maxValueLength;
+        }
+
+        /**
+         * The maximum size of an event in bytes, at least 4096, defaults to 0 for no limit. Values that don't fit are
+         * cut and stack frames and context entries left out. Only applies to the streaming encoder.
+         * @return the maximum document size.
+         */
+        public int getMaxDocumentBytes() {
+            return maxDocumentBytes;
+        }
+
         public B setLocationInfo(boolean locationInfo) {
             this.locationInfo = locationInfo;
             return asBuilder();
@@ -117,17 +223,111 @@ public final class ElasticLayout extends AbstractJacksonLayout {
             this.includeStacktrace = includeStacktrace;
             return asBuilder();
         }
+
+        /**
+         * If "true", events are written straight to bytes instead of through the Jackson object mapper, defaults to
+         * "true". Only applies to the UTF-8 charset.
+         * @param streaming If "true", events are written straight to bytes.
+         * @return this builder
+         */
+        public B setStreaming(boolean streaming) {
+            this.streaming = streaming;
+            return asBuilder();
+        }
+
+        /**
+         * If "true", throwables are written as a stack hash and a short text trace instead of an object per frame.
+         * @param compactStacktrace If "true", throwables are written in compact form.
+         * @return this builder
+         */
+        public B setCompactStacktrace(boolean compactStacktrace) {
+            this.compactStacktrace = compactStacktrace;
+            return asBuilder();
+        }
+
+        /**
+         * The maximum number of frames per throwable in a compact stack trace.
+         * @param maxStackFrames the maximum number of frames.
+         * @return this builder
+         */
+        public B setMaxStackFrames(int maxStackFrames) {
+            this.maxStackFrames = maxStackFrames;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated prefixes of the classes whose frames are collapsed in a compact stack trace.
+         * @param stacktraceFilter the class name prefixes.
+         * @return this builder
+         */
+        public B setStacktraceFilter(String stacktraceFilter) {
+            this.stacktraceFilter = stacktraceFilter;
+            return asBuilder();
+        }
+
+        /**
+         * The maximum number of characters of the message and of throwable messages, 0 for no limit.
+         * @param maxMessageLength the maximum message length.
+         * @return this builder
+         */
+        public B setMaxMessageLength(int maxMessageLength) {
+            this.maxMessageLength = maxMessageLength;
+            return asBuilder();
+        }
+
+        /**
+         * The maximum number of characters of a thread context map or stack value, 0 for no limit.
+         * @param maxValueLength the maximum value length.
+         * @return this builder
+         */
+        public B setMaxValueLength(int maxValueLength) {
+            this.maxValueLength = maxValueLength;
+            return asBuilder();
+        }
+
+        /**
+         * The maximum size of an event in bytes, at least 4096, or 0 for no limit.
+         * @param maxDocumentBytes the maximum document size.
+         * @return this builder
+         */
+        public B setMaxDocumentBytes(int maxDocumentBytes) {
+            this.maxDocumentBytes = maxDocumentBytes;
+            return asBuilder();
+        }
     }
 
+    private final StreamingJsonEncoder encoder;
+
     protected ElasticLayout(final Configuration config, final boolean locationInfo, final boolean properties,
                             final boolean encodeThreadContextAsList,
                             final boolean complete, final boolean compact, final boolean eventEol, final String headerPattern,
-                            final String footerPattern, final Charset charset, final boolean includeStacktrace) {
+                            final String footerPattern, final Charset charset, final boolean includeStacktrace,
+                            final boolean streaming) {
+        this(config, locationInfo, properties, encodeThreadContextAsList, complete, compact, eventEol, headerPattern,
+                footerPattern, charset, includeStacktrace, streaming, null, 0, 0, 0);
+    }
+
+    private ElasticLayout(final Configuration config, final boolean locationInfo, final boolean properties,
+                          final boolean encodeThreadContextAsList,
+                          final boolean complete, final boolean compact, final boolean eventEol, final String headerPattern,
+                          final String footerPattern, final Charset charset, final boolean includeStacktrace,
+                          final boolean streaming, final CompactThrowable compactThrowable, final int maxMessageLength,
+                          final int maxValueLength, final int maxDocumentBytes) {
         super(config, new JacksonFactory.JSON(encodeThreadContextAsList, includeStacktrace).newWriter(
                     locationInfo, properties, compact),
                 charset, compact, complete, eventEol,
                 PatternLayout.newSerializerBuilder().setConfiguration(config).setPattern(headerPattern).setDefaultPattern(DEFAULT_HEADER).build(),
                 PatternLayout.newSerializerBuilder().setConfiguration(config).setPattern(footerPattern).setDefaultPattern(DEFAULT_FOOTER).build());
+        this.encoder = streaming && StandardCharsets.UTF_8.equals(getCharset())
+                ? new StreamingJsonEncoder(locationInfo, properties, encodeThreadContextAsList, includeStacktrace, compact, eol,
+                        compactThrowable, maxMessageLength, maxValueLength, maxDocumentBytes)
+                : null;
+        if (compactThrowable != null && this.encoder == null) {
+            LOGGER.warn("Compact stack traces need the streaming encoder and UTF-8, writing full stack traces");
+        }
+        if ((maxMessageLength > 0 || maxValueLength > 0 || maxDocumentBytes > 0) && this.encoder == null) {
+            LOGGER.warn("Field and document size limits need the streaming encoder and UTF-8, writing events in full");
+        }
     }
 
     /**
@@ -232,7 +432,7 @@ public final class ElasticLayout extends AbstractJacksonLayout {
     ) {
         final boolean encodeThreadContextAsList = properties && propertiesAsList;
         return new ElasticLayout(config, locationInfo, properties, encodeThreadContextAsList, complete, compact, eventEol,
-                headerPattern, footerPattern, charset, includeStacktrace);
+                headerPattern, footerPattern, charset, includeStacktrace, true);
     }
 
     @PluginBuilderFactory
@@ -247,7 +447,61 @@ public final class ElasticLayout extends AbstractJacksonLayout {
      */
     public static ElasticLayout createDefaultLayout() {
         return new ElasticLayout(new DefaultConfiguration(), false, false, false, false, false, false,
-                DEFAULT_HEADER, DEFAULT_FOOTER, StandardCharsets.UTF_8, true);
+                DEFAULT_HEADER, DEFAULT_FOOTER, StandardCharsets.UTF_8, true, true);
+    }
+
+    /**
+     * @return true if events are written straight to bytes instead of through the Jackson object mapper.
+     */
+    public boolean isStreaming() {
+        return encoder != null;
+    }
+
+    @Override
+    public byte[] toByteArray(final LogEvent event) {
+        if (encoder == null) {
+            return super.toByteArray(event);
+        }
+        final StreamingJsonEncoder.Output output = encodeStreaming(event);
+        return output != null ? Arrays.copyOf(output.buffer(), output.size()) : new byte[0];
+    }
+
+    @Override
+    public String toSerializable(final LogEvent event) {
+        if (encoder == null) {
+            return super.toSerializable(event);
+        }
+        final StreamingJsonEncoder.Output output = encodeStreaming(event);
+        return output != null ? new String(output.buffer(), 0, output.size(), StandardCharsets.UTF_8) : Strings.EMPTY;
+    }
+
+    /**
+     * Writes the event to the destination without creating intermediate strings or byte arrays.
+     *
+     * @param event the event.
+     * @param destination the destination.
+     */
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        if (encoder == null) {
+            super.encode(event, destination);
+            return;
+        }
+        final StreamingJsonEncoder.Output output = encodeStreaming(event);
+        if (output != null) {
+            writeTo(output.buffer(), 0, output.size(), destination);
+        }
+    }
+
+    private StreamingJsonEncoder.Output encodeStreaming(final LogEvent event) {
+        try {
+            final StreamingJsonEncoder.Output output = encoder.encode(event, complete && eventCount > 0 ? EVENT_SEPARATOR : null);
+            markEvent();
+            return output;
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.error(e);
+            return null;
+        }
     }
 
     @Override
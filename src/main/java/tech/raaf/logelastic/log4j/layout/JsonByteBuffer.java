@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.layout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that JSON is written into as UTF-8, escaping strings on the fly.
+ */
+final class JsonByteBuffer {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final int initialBytes;
+    private final int maxReusedBytes;
+    private byte[] bytes;
+    private int size;
+
+    JsonByteBuffer(final int initialBytes, final int maxReusedBytes) {
+        this.initialBytes = initialBytes;
+        this.maxReusedBytes = maxReusedBytes;
+        this.bytes = new byte[initialBytes];
+    }
+
+    /**
+     * Pre-encodes a field name, including the quotes and the colon.
+     *
+     * @param name the field name, which must not need escaping.
+     * @return the encoded name.
+     */
+    static byte[] fieldName(final String name) {
+        return ('"' + name + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    void reset() {
+        if (bytes.length > maxReusedBytes) {
+            bytes = new byte[initialBytes];
+        }
+        size = 0;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    JsonByteBuffer writeByte(final int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+        return this;
+    }
+
+    JsonByteBuffer writeRaw(final byte[] raw) {
+        ensureCapacity(raw.length);
+        System.arraycopy(raw, 0, bytes, size, raw.length);
+        size += raw.length;
+        return this;
+    }
+
+    /**
+     * Writes a number without creating a string for it.
+     */
+    JsonByteBuffer writeNumber(final long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeRaw(MIN_LONG);
+        }
+        ensureCapacity(20);
+        long remaining = value;
+        if (remaining < 0) {
+            bytes[size++] = '-';
+            remaining = -remaining;
+        }
+        final int start = size;
+        do {
+            bytes[size++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            final byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a number with leading zeros up to a fixed width.
+     */
+    JsonByteBuffer writePadded(final int value, final int width) {
+        ensureCapacity(width);
+        int remaining = value;
+        for (int i = width - 1; i >= 0; i--) {
+            bytes[size + i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        size += width;
+        return this;
+    }
+
+    /**
+     * Writes a quoted and escaped string.
+     */
+    JsonByteBuffer writeString(final CharSequence value) {
+        writeByte('"');
+        writeEscaped(value);
+        return writeByte('"');
+    }
+
+    /**
+     * Writes the contents of a string, escaped but without quotes.
+     */
+    JsonByteBuffer writeEscaped(final CharSequence value) {
+        final int length = value.length();
+        // Most characters take a single byte, so this usually covers the whole string.
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                if (size == bytes.length) {
+                    ensureCapacity(length - i);
+                }
+                bytes[size++] = (byte) c;
+            } else if (c < 0x80) {
+                writeEscapedAscii(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                bytes[size++] = (byte) (0xc0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensureCapacity(4);
+                bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate can't be encoded as UTF-8.
+                writeByte('?');
+            } else {
+                ensureCapacity(3);
+                bytes[size++] = (byte) (0xe0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    private void writeEscapedAscii(final char c) {
+        ensureCapacity(6);
+        bytes[size++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                bytes[size++] = (byte) c;
+                break;
+            case '\n':
+                bytes[size++] = 'n';
+                break;
+            case '\r':
+                bytes[size++] = 'r';
+                break;
+            case '\t':
+                bytes[size++] = 't';
+                break;
+            case '\b':
+                bytes[size++] = 'b';
+                break;
+            case '\f':
+                bytes[size++] = 'f';
+                break;
+            default:
+                bytes[size++] = 'u';
+                bytes[size++] = '0';
+                bytes[size++] = '0';
+                bytes[size++] = HEX[c >> 4];
+                bytes[size++] = HEX[c & 0xf];
+        }
+    }
+
+    private void ensureCapacity(final int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+package tech.raaf.logelastic.log4j.layout;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes log events as UTF-8 JSON straight into a reusable byte buffer, producing the same document as the Jackson
+ * object mapper of log4j.
+ * <p>
+ * Fields are read from the event itself, so mutable events don't need to be copied into a memento first, and the
+ * message is formatted into a reusable builder when it supports that. Every thread gets its own buffer and
+ * generator, unless thread locals are disabled in log4j, so encoding an event doesn't allocate in the steady state.
+ * Like the object mapper, fields that are null or empty are left out.
+ * </p>
+ * <p>
+ * The message, the values of the context map and stack and the messages of throwables can be limited to a number of
+ * characters, and the whole document to a number of bytes. Values are cut while they are written, from the position
+ * the generator has reached, so a document never holds more than its limit apart from a small reserve for the fields
+ * written last; stack frames and context map entries that don't fit anymore are left out. A document that was cut
+ * gets {@code "truncated":true}.
+ * </p>
+ */
+final class StreamingJsonEncoder {
+
+    private static final int MAX_REUSED_BYTES = 512 * 1024;
+    private static final int MAX_REUSED_CHARS = 128 * 1024;
+    // Room for the fixed fields after the limited ones, such as the source location and the truncated flag.
+    private static final int RESERVED_BYTES = 1024;
+
+    /**
+     * The smallest document size limit, which leaves room for the fields that are never cut.
+     */
+    static final int MIN_DOCUMENT_BYTES = 4 * RESERVED_BYTES;
+
+    private static final SerializedString TIME_MILLIS = new SerializedString("timeMillis");
+    private static final SerializedString THREAD = new SerializedString("thread");
+    private static final SerializedString LEVEL = new SerializedString("level");
+    private static final SerializedString LOGGER_NAME = new SerializedString("loggerName");
+    private static final SerializedString MARKER = new SerializedString("marker");
+    private static final SerializedString NAME = new SerializedString("name");
+    private static final SerializedString PARENTS = new SerializedString("parents");
+    private static final SerializedString MESSAGE = new SerializedString("message");
+    private static final SerializedString THROWN = new SerializedString("thrown");
+    private static final SerializedString COMMON_ELEMENT_COUNT = new SerializedString("commonElementCount");
+    private static final SerializedString LOCALIZED_MESSAGE = new SerializedString("localizedMessage");
+    private static final SerializedString CAUSE = new SerializedString("cause");
+    private static final SerializedString EXTENDED_STACK_TRACE = new SerializedString("extendedStackTrace");
+    private static final SerializedString SUPPRESSED = new SerializedString("suppressed");
+    private static final SerializedString CLASS = new SerializedString("class");
+    private static final SerializedString METHOD = new SerializedString("method");
+    private static final SerializedString FILE = new SerializedString("file");
+    private static final SerializedString LINE = new SerializedString("line");
+    private static final SerializedString EXACT = new SerializedString("exact");
+    private static final SerializedString LOCATION = new SerializedString("location");
+    private static final SerializedString VERSION = new SerializedString("version");
+    private static final SerializedString CONTEXT_STACK = new SerializedString("contextStack");
+    private static final SerializedString END_OF_BATCH = new SerializedString("endOfBatch");
+    private static final SerializedString LOGGER_FQCN = new SerializedString("loggerFqcn");
+    private static final SerializedString CONTEXT_MAP = new SerializedString("contextMap");
+    private static final SerializedString KEY = new SerializedString("key");
+    private static final SerializedString VALUE = new SerializedString("value");
+    private static final SerializedString THREAD_ID = new SerializedString("threadId");
+    private static final SerializedString THREAD_PRIORITY = new SerializedString("threadPriority");
+    private static final SerializedString SOURCE = new SerializedString("source");
+    private static final SerializedString STACK_HASH = new SerializedString("stackHash");
+    private static final SerializedString STACK_TRACE = new SerializedString("stackTrace");
+    private static final SerializedString TRUNCATED = new SerializedString("truncated");
+
+    private static final TriConsumer<String, Object, Output> WRITE_FIELD = (key, value, output) -> {
+        try {
+            if (output.isFull()) {
+                output.truncated = true;
+                return;
+            }
+            output.generator.writeFieldName(key);
+            output.writeString(String.valueOf(value), output.maxValueChars);
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem with key " + key, e);
+        }
+    };
+
+    private static final TriConsumer<String, Object, Output> WRITE_ENTRY = (key, value, output) -> {
+        try {
+            if (output.isFull()) {
+                output.truncated = true;
+                return;
+            }
+            final String text = String.valueOf(value);
+            output.generator.writeStartObject();
+            writeString(output.generator, KEY, key);
+            writeString(output, VALUE, text, output.maxValueChars);
+            output.generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem with key " + key, e);
+        }
+    };
+
+    private final JsonFactory factory = new JsonFactory();
+    private final boolean locationInfo;
+    private final boolean properties;
+    private final boolean propertiesAsList;
+    private final boolean includeStacktrace;
+    private final boolean compact;
+    private final byte[] eol;
+    private final CompactThrowable compactThrowable;
+    private final int maxMessageChars;
+    private final int maxValueChars;
+    private final int maxDocumentBytes;
+    private final ThreadLocal<Output> outputs = new ThreadLocal<>();
+
+    /**
+     * @param maxMessageLength the maximum number of characters of the message and of throwable messages, 0 for no
+     *                         limit.
+     * @param maxValueLength the maximum number of characters of a context map or stack value, 0 for no limit.
+     * @param maxDocumentBytes the maximum size of a document, at least {@link #MIN_DOCUMENT_BYTES}, or 0 for no limit.
+     */
+    StreamingJsonEncoder(final boolean locationInfo, final boolean properties, final boolean propertiesAsList,
+                         final boolean includeStacktrace, final boolean compact, final String eol,
+                         final CompactThrowable compactThrowable, final int maxMessageLength,
+                         final int maxValueLength, final int maxDocumentBytes) {
+        this.locationInfo = locationInfo;
+        this.properties = properties;
+        this.propertiesAsList = propertiesAsList;
+        this.includeStacktrace = includeStacktrace;
+        this.compact = compact;
+        this.eol = eol.getBytes(StandardCharsets.UTF_8);
+        this.compactThrowable = compactThrowable;
+        this.maxMessageChars = maxMessageLength > 0 ? maxMessageLength : Integer.MAX_VALUE;
+        this.maxValueChars = maxValueLength > 0 ? maxValueLength : Integer.MAX_VALUE;
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    /**
+     * Encodes an event. The returned buffer belongs to the calling thread and is overwritten by the next call.
+     *
+     * @param event the event.
+     * @param prefix bytes to write before the event, may be null.
+     * @return the buffer holding the encoded event followed by the end of line.
+     * @throws IOException when the event can't be encoded.
+     */
+    Output encode(final LogEvent event, final byte[] prefix) throws IOException {
+        Output output = Constants.ENABLE_THREADLOCALS ? outputs.get() : null;
+        if (output == null) {
+            output = new Output(factory, compact, maxValueChars);
+            if (Constants.ENABLE_THREADLOCALS) {
+                outputs.set(output);
+            }
+        }
+        output.reset();
+        if (prefix != null) {
+            output.write(prefix, 0, prefix.length);
+        }
+        output.limit = maxDocumentBytes > 0 ? output.size() + maxDocumentBytes - RESERVED_BYTES : Integer.MAX_VALUE;
+        try {
+            writeEvent(event, output.generator, output);
+            output.generator.flush();
+        } catch (IOException | RuntimeException e) {
+            // The generator is stuck halfway a document, start over with a new one.
+            outputs.remove();
+            throw e;
+        }
+        output.write(eol, 0, eol.length);
+        return output;
+    }
+
+    private void writeEvent(final LogEvent event, final JsonGenerator generator, final Output output) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName(TIME_MILLIS);
+        generator.writeNumber(event.getTimeMillis());
+        writeString(generator, THREAD, event.getThreadName());
+        final Level level = event.getLevel();
+        if (level != null) {
+            generator.writeFieldName(LEVEL);
+            generator.writeString(level.name());
+        }
+        writeString(generator, LOGGER_NAME, event.getLoggerName());
+        final Marker marker = event.getMarker();
+        if (marker != null) {
+            generator.writeFieldName(MARKER);
+            writeMarker(generator, marker);
+        }
+        final Message message = event.getMessage();
+        if (message != null) {
+            generator.writeFieldName(MESSAGE);
+            writeMessage(message, output);
+        }
+        // The compact form is written from the throwable itself, without building a proxy of every frame.
+        final Throwable throwable = compactThrowable != null ? event.getThrown() : null;
+        final ThrowableProxy thrown = throwable == null ? event.getThrownProxy() : null;
+        if (throwable != null) {
+            generator.writeFieldName(THROWN);
+            writeCompactThrowable(output, throwable);
+        } else if (thrown != null) {
+            generator.writeFieldName(THROWN);
+            writeThrowable(output, thrown);
+        }
+        final ThreadContext.ContextStack contextStack = event.getContextStack();
+        if (contextStack != null && contextStack.getDepth() > 0) {
+            generator.writeFieldName(CONTEXT_STACK);
+            generator.writeStartArray();
+            for (final String item : contextStack) {
+                if (output.isFull()) {
+                    output.truncated = true;
+                    break;
+                }
+                output.writeString(item, maxValueChars);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeFieldName(END_OF_BATCH);
+        generator.writeBoolean(event.isEndOfBatch());
+        writeString(generator, LOGGER_FQCN, event.getLoggerFqcn());
+        final ReadOnlyStringMap contextData = properties ? event.getContextData() : null;
+        if (contextData != null) {
+            generator.writeFieldName(CONTEXT_MAP);
+            if (propertiesAsList) {
+                generator.writeStartArray();
+                contextData.forEach(WRITE_ENTRY, output);
+                generator.writeEndArray();
+            } else {
+                generator.writeStartObject();
+                contextData.forEach(WRITE_FIELD, output);
+                generator.writeEndObject();
+            }
+        }
+        generator.writeFieldName(THREAD_ID);
+        generator.writeNumber(event.getThreadId());
+        generator.writeFieldName(THREAD_PRIORITY);
+        generator.writeNumber(event.getThreadPriority());
+        final StackTraceElement source = locationInfo ? event.getSource() : null;
+        if (source != null) {
+            generator.writeFieldName(SOURCE);
+            generator.writeStartObject();
+            writeString(generator, CLASS, source.getClassName());
+            writeString(generator, METHOD, source.getMethodName());
+            writeString(generator, FILE, source.getFileName());
+            generator.writeFieldName(LINE);
+            generator.writeNumber(source.getLineNumber());
+            generator.writeEndObject();
+        }
+        if (output.truncated) {
+            generator.writeFieldName(TRUNCATED);
+            generator.writeBoolean(true);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeMarker(final JsonGenerator generator, final Marker marker) throws IOException {
+        generator.writeStartObject();
+        writeString(generator, NAME, marker.getName());
+        final Marker[] parents = marker.getParents();
+        if (parents != null && parents.length > 0) {
+            generator.writeFieldName(PARENTS);
+            generator.writeStartArray();
+            for (final Marker parent : parents) {
+                writeMarker(generator, parent);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeMessage(final Message message, final Output output) throws IOException {
+        if (!(message instanceof StringBuilderFormattable)) {
+            output.writeString(message.getFormattedMessage(), maxMessageChars);
+            return;
+        }
+        final StringBuilder text = output.text;
+        text.setLength(0);
+        ((StringBuilderFormattable) message).formatTo(text);
+        final int length = text.length();
+        // Only what can be written is copied.
+        final int copied = output.writable(length, maxMessageChars);
+        if (output.chars.length < copied) {
+            output.chars = new char[Math.max(copied, output.chars.length * 2)];
+        }
+        text.getChars(0, copied, output.chars, 0);
+        output.writeChars(output.chars, copied, length);
+        if (text.capacity() > MAX_REUSED_CHARS) {
+            text.setLength(MAX_REUSED_CHARS);
+            text.trimToSize();
+        }
+        if (output.chars.length > MAX_REUSED_CHARS) {
+            output.chars = new char[MAX_REUSED_CHARS];
+        }
+    }
+
+    private void writeThrowable(final Output output, final ThrowableProxy thrown) throws IOException {
+        final JsonGenerator generator = output.generator;
+        generator.writeStartObject();
+        generator.writeFieldName(COMMON_ELEMENT_COUNT);
+        generator.writeNumber(thrown.getCommonElementCount());
+        writeString(output, LOCALIZED_MESSAGE, thrown.getLocalizedMessage(), maxMessageChars);
+        writeString(output, MESSAGE, thrown.getMessage(), maxMessageChars);
+        writeString(generator, NAME, thrown.getName());
+        if (thrown.getCauseProxy() != null) {
+            generator.writeFieldName(CAUSE);
+            writeThrowable(output, thrown.getCauseProxy());
+        }
+        final ExtendedStackTraceElement[] stackTrace = includeStacktrace ? thrown.getExtendedStackTrace() : null;
+        if (stackTrace != null && stackTrace.length > 0) {
+            generator.writeFieldName(EXTENDED_STACK_TRACE);
+            generator.writeStartArray();
+            for (final ExtendedStackTraceElement element : stackTrace) {
+                if (output.isFull()) {
+                    output.truncated = true;
+                    break;
+                }
+                generator.writeStartObject();
+                writeString(generator, CLASS, element.getClassName());
+                writeString(generator, METHOD, element.getMethodName());
+                writeString(generator, FILE, element.getFileName());
+                generator.writeFieldName(LINE);
+                generator.writeNumber(element.getLineNumber());
+                generator.writeFieldName(EXACT);
+                generator.writeBoolean(element.getExact());
+                writeString(generator, LOCATION, element.getLocation());
+                writeString(generator, VERSION, element.getVersion());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+        final ThrowableProxy[] suppressed = thrown.getSuppressedProxies();
+        if (suppressed != null && suppressed.length > 0) {
+            generator.writeFieldName(SUPPRESSED);
+            generator.writeStartArray();
+            for (final ThrowableProxy proxy : suppressed) {
+                writeThrowable(output, proxy);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeCompactThrowable(final Output output, final Throwable thrown) throws IOException {
+        final JsonGenerator generator = output.generator;
+        final CompactThrowable.Encoded encoded = compactThrowable.encode(thrown);
+        generator.writeStartObject();
+        writeString(output, MESSAGE, thrown.getMessage(), maxMessageChars);
+        writeString(generator, NAME, thrown.getClass().getName());
+        writeString(generator, STACK_HASH, encoded.getHash());
+        if (includeStacktrace) {
+            writeString(output, STACK_TRACE, encoded.getTrace(), Integer.MAX_VALUE);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeString(final Output output, final SerializableString name, final String value,
+                                    final int maxChars) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            output.generator.writeFieldName(name);
+            output.writeString(value, maxChars);
+        }
+    }
+
+    private static void writeString(final JsonGenerator generator, final SerializableString name, final String value) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            generator.writeFieldName(name);
+            generator.writeString(value);
+        }
+    }
+
+    /**
+     * A reusable buffer with a generator writing into it.
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        private final JsonGenerator generator;
+        private final StringBuilder text = new StringBuilder(256);
+        private final int maxValueChars;
+        private char[] chars = new char[256];
+        private int limit = Integer.MAX_VALUE;
+        private boolean truncated;
+
+        private Output(final JsonFactory factory, final boolean compact, final int maxValueChars) throws IOException {
+            super(1024);
+            this.maxValueChars = maxValueChars;
+            this.generator = factory.createGenerator(this, JsonEncoding.UTF8);
+            // The generator outlives a single document, so no separator must be written between documents.
+            this.generator.setPrettyPrinter(compact
+                    ? new MinimalPrettyPrinter((String) null)
+                    : new DefaultPrettyPrinter((SerializableString) null));
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        @Override
+        public void reset() {
+            if (buf.length > MAX_REUSED_BYTES) {
+                buf = new byte[1024];
+            }
+            super.reset();
+            truncated = false;
+        }
+
+        /**
+         * @return the number of bytes of the document so far, including what the generator still buffers.
+         */
+        private int position() {
+            return count + generator.getOutputBuffered();
+        }
+
+        private boolean isFull() {
+            return position() >= limit;
+        }
+
+        /**
+         * @return how many characters of a value of the given length can possibly be written, at most one per byte
+         *         left before the limit.
+         */
+        private int writable(final int length, final int maxChars) {
+            return Math.min(length, Math.min(maxChars, Math.max(0, limit - position())));
+        }
+
+        /**
+         * Writes a string value, cut to the given number of characters and to what fits before the limit.
+         */
+        private void writeString(final String value, final int maxChars) throws IOException {
+            final int length = value.length();
+            // A character takes at most 6 bytes in JSON, so most values are written without looking at them.
+            if (length <= maxChars && (long) length * 6 <= limit - position()) {
+                generator.writeString(value);
+                return;
+            }
+            final int copied = writable(length, maxChars);
+            if (chars.length < copied) {
+                chars = new char[Math.max(copied, chars.length * 2)];
+            }
+            value.getChars(0, copied, chars, 0);
+            writeChars(chars, copied, length);
+        }
+
+        /**
+         * Writes the start of a value that holds {@code length} characters, as much of the first {@code available}
+         * characters as fits before the limit, and marks the document as truncated when the value is cut.
+         */
+        private void writeChars(final char[] source, final int available, final int length) throws IOException {
+            int end = fit(source, available, limit - position());
+            if (end < length) {
+                truncated = true;
+                if (end > 0 && Character.isHighSurrogate(source[end - 1])) {
+                    end--;
+                }
+            }
+            generator.writeString(source, 0, end);
+        }
+
+        private static int fit(final char[] source, final int end, final long budget) {
+            if ((long) end * 6 <= budget) {
+                return end;
+            }
+            // An upper bound of the escaped UTF-8 size.
+            long bytes = 0;
+            for (int i = 0; i < end; i++) {
+                final char c = source[i];
+                bytes += c < 0x20 ? 6 : c == '"' || c == '\\' ? 2 : c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+                if (bytes > budget) {
+                    return i;
+                }
+            }
+            return end;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BackpressureControllerTest {
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        final BackpressureController controller = new BackpressureController(4, 64, 0);
+        assertEquals(1, controller.getConcurrency());
+        assertEquals(64, controller.getBatchEvents());
+
+        for (int i = 0; i < 10; i++) {
+            controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), false);
+        }
+        assertEquals(4, controller.getConcurrency());
+        assertEquals(64, controller.getBatchEvents());
+
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), true);
+        assertEquals(2, controller.getConcurrency());
+        assertEquals(32, controller.getBatchEvents());
+
+        // The requests that were in flight with the throttled one don't halve the limits again.
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), true);
+        assertEquals(2, controller.getConcurrency());
+        assertEquals(32, controller.getBatchEvents());
+
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), false);
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), false);
+        assertEquals(3, controller.getConcurrency());
+        assertEquals(36, controller.getBatchEvents());
+    }
+
+    @Test
+    public void testSlowResponsesLimitRequestsInFlight() throws Exception {
+        final BackpressureController controller = new BackpressureController(2, 64, 100);
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(200), false);
+        assertEquals(1, controller.getConcurrency());
+        assertEquals(32, controller.getBatchEvents());
+
+        controller.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread second = new Thread(() -> {
+            try {
+                controller.acquire();
+                acquired.countDown();
+                controller.release();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        second.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        controller.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        second.join();
+    }
+}
@@ -0,0 +1,63 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testArraysAreReusedBySizeClass() {
+        final BufferPool pool = new BufferPool(64 * 1024, 8 * 1024);
+        final byte[] small = pool.acquire(100);
+        assertEquals(1024, small.length);
+        final byte[] medium = pool.acquire(3000);
+        assertEquals(4096, medium.length);
+        assertEquals(2, pool.getMisses());
+
+        pool.release(small);
+        pool.release(medium);
+        assertEquals(5120, pool.getPooledBytes());
+        assertSame(small, pool.acquire(1024));
+        assertSame(medium, pool.acquire(2049));
+        assertEquals(2, pool.getHits());
+        assertEquals(0, pool.getPooledBytes());
+
+        // Larger than the largest class, odd sizes and beyond the pool limit are left to the collector.
+        assertEquals(100_000, pool.acquire(100_000).length);
+        pool.release(new byte[100_000]);
+        pool.release(new byte[1000]);
+        pool.release(new byte[4096]);
+        pool.release(new byte[4096]);
+        pool.release(new byte[4096]);
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testStreamsAndBatchesGrowWithinThePool() {
+        final BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+        final PooledOutputStream stream = new PooledOutputStream(pool, 16);
+        final byte[] chunk = new byte[700];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        stream.write(chunk, 0, chunk.length);
+        stream.write(chunk, 0, chunk.length);
+        assertEquals(1400, stream.size());
+        assertArrayEquals(chunk, Arrays.copyOfRange(stream.array(), 700, 1400));
+        stream.release();
+        // The 1 KB array went back when the stream grew, and the 2 KB one on release.
+        assertEquals(3072, pool.getPooledBytes());
+
+        final BulkBatch batch = new BulkBatch(256, pool);
+        batch.add("{\"n\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, pool.getHits());
+        batch.release();
+        assertEquals(3072, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,180 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BulkProcessorTest {
+
+    private StubElasticsearch elasticsearch;
+    private HttpManager manager;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        elasticsearch = new StubElasticsearch();
+        final String index = elasticsearch.url() + "/logs";
+        manager = new HttpManager(new DefaultConfiguration(), "test", new URL(index), new URL(index + "/_doc"),
+                new URL(index + "/_bulk"), 1000, 0, null, null, null, true, 2, 30000,
+                null, LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        elasticsearch.close();
+    }
+
+    @Test
+    public void testFlushOnEventCountRetriesOnlyFailedItems() throws Exception {
+        elasticsearch.respond(request -> elasticsearch.history().size() == 1
+                ? new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":true,\"items\":["
+                        + "{\"index\":{\"status\":201}},"
+                        + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"full\"}}},"
+                        + "{\"index\":{\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"bad\"}}}]}")
+                : new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}"));
+
+        final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 3, 60000, 2, null);
+        processor.add(bytes("{\"n\":0}"));
+        processor.add(bytes("{\r\n  \"n\" : 1\r\n}\r\n"));
+        processor.add(bytes("{\"n\":2}"));
+
+        final StubElasticsearch.Request first = elasticsearch.take();
+        assertNotNull(first);
+        assertEquals("POST", first.method);
+        assertEquals("/logs/_bulk?filter_path=errors,items.*.error,items.*.status", first.path);
+        assertEquals("application/x-ndjson", first.headers.get("Content-type").get(0));
+        assertEquals("{\"index\":{}}\n{\"n\":0}\n{\"index\":{}}\n{    \"n\" : 1  }\n{\"index\":{}}\n{\"n\":2}\n",
+                first.bodyAsString());
+
+        final StubElasticsearch.Request retry = elasticsearch.take();
+        assertNotNull(retry);
+        assertEquals("{\"index\":{}}\n{    \"n\" : 1  }\n", retry.bodyAsString());
+
+        assertTrue(processor.stop(5, TimeUnit.SECONDS));
+        assertEquals(2, elasticsearch.history().size());
+
+        final ElasticMetrics metrics = manager.getMetrics();
+        assertEquals(2, metrics.getEventsShipped());
+        assertEquals(1, metrics.getEventsRejected());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(1L, (long) metrics.getFailedItemsByStatus().get(429));
+        assertEquals(1L, (long) metrics.getFailedItemsByStatus().get(400));
+        assertEquals(2, metrics.getBulkEvents().getCount());
+        assertEquals(3, metrics.getBulkEvents().getMax());
+        assertEquals(2, metrics.getRequests());
+    }
+
+    @Test
+    public void testFlushOnLingerAndStop() throws Exception {
+        final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 100, 50, 0, null);
+        processor.add(bytes("{\"n\":0}"));
+        final StubElasticsearch.Request lingered = elasticsearch.take();
+        assertNotNull(lingered);
+        assertArrayEquals(bytes("{\"index\":{}}\n{\"n\":0}\n"), lingered.body);
+
+        processor.add(bytes("{\"n\":1}"));
+        assertTrue(processor.stop(5, TimeUnit.SECONDS));
+        assertEquals(2, elasticsearch.history().size());
+    }
+
+    @Test
+    public void testThrottledRequestIsRetriedWithBackoff() throws Exception {
+        elasticsearch.respond(request -> elasticsearch.history().size() == 1
+                ? new StubElasticsearch.Response(429, "{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":429}")
+                : new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}"));
+
+        final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 2, 60000, 1, null, 4, 0);
+        processor.add(bytes("{\"n\":0}"));
+        processor.add(bytes("{\"n\":1}"));
+
+        final StubElasticsearch.Request first = elasticsearch.take();
+        final StubElasticsearch.Request retry = elasticsearch.take();
+        assertNotNull(retry);
+        assertEquals(first.bodyAsString(), retry.bodyAsString());
+
+        assertTrue(processor.stop(5, TimeUnit.SECONDS));
+        final ElasticMetrics metrics = manager.getMetrics();
+        assertEquals(2, metrics.getEventsShipped());
+        assertEquals(2, metrics.getRetries());
+        assertEquals(1L, (long) metrics.getFailedRequestsByStatus().get(429));
+    }
+
+    @Test
+    public void testRejectedRequestIsNotRetried() throws Exception {
+        elasticsearch.respond(request -> new StubElasticsearch.Response(413, "{\"error\":\"request too large\"}"));
+
+        final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 2, 60000, 3, null);
+        processor.add(bytes("{\"n\":0}"));
+        processor.add(bytes("{\"n\":1}"));
+        assertTrue(processor.stop(5, TimeUnit.SECONDS));
+
+        assertEquals(1, elasticsearch.history().size());
+        final ElasticMetrics metrics = manager.getMetrics();
+        assertEquals(2, metrics.getEventsRejected());
+        assertEquals(0, metrics.getRetries());
+        assertEquals(0, metrics.getEventsDropped());
+    }
+
+    @Test
+    public void testStopSpillsWhatMissesTheDeadline() throws Exception {
+        elasticsearch.respond(request -> {
+            try {
+                Thread.sleep(1500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}");
+        });
+        final File directory = Files.createTempDirectory("bulk-spill").toFile();
+        try {
+            final SegmentLog spillLog = new SegmentLog(directory, 4096, 65536);
+            final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 5, 60000, 0, spillLog, 1, 0);
+            for (int i = 0; i < 20; i++) {
+                processor.add(bytes("{\"n\":" + i + "}"));
+            }
+            // The first batch is being answered slowly, the other three wait for it.
+            final long received = System.currentTimeMillis() + 5000;
+            while (elasticsearch.history().isEmpty() && System.currentTimeMillis() < received) {
+                Thread.sleep(1);
+            }
+
+            final long start = System.nanoTime();
+            assertFalse(processor.stop(200, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+            // The batch in flight is spilled along with the three that weren't sent.
+            assertEquals(20, spillLog.getPendingRecords());
+            assertEquals(20, manager.getMetrics().getEventsSpilled());
+            assertEquals(0, manager.getMetrics().getEventsDropped());
+
+            // The late response doesn't count the batch again.
+            Thread.sleep(1500);
+            assertEquals(0, manager.getMetrics().getEventsShipped());
+            assertEquals(0, manager.getMetrics().getEventsDropped());
+            spillLog.close();
+        } finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BulkResponseTest {
+
+    @Test
+    public void testSuccessStopsAtTheErrorsFlag() throws Exception {
+        // Nothing after the flag is read, not even the rest of the document.
+        assertSame(BulkResponse.SUCCESS, parse("{\"took\":3,\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"ind"));
+        assertSame(BulkResponse.SUCCESS, parse(""));
+        assertSame(BulkResponse.SUCCESS, parse("{}"));
+    }
+
+    @Test
+    public void testFailuresKeepTheirPosition() throws Exception {
+        final BulkResponse response = parse("{\"errors\":true,\"items\":["
+                + "{\"index\":{\"status\":201}},"
+                + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\",\"caused_by\":{\"type\":\"x\"}}}},"
+                + "{\"index\":{\"_index\":\"logs\",\"status\":201}},"
+                + "{\"create\":{\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"},\"status\":400}}]}");
+        assertEquals(2, response.getFailures().size());
+        final BulkResponse.Failure throttled = response.getFailures().get(0);
+        assertEquals(1, throttled.getItem());
+        assertEquals(429, throttled.getStatus());
+        assertEquals("es_rejected_execution_exception: queue full", throttled.getReason());
+        assertTrue(throttled.isRetryable());
+        final BulkResponse.Failure rejected = response.getFailures().get(1);
+        assertEquals(3, rejected.getItem());
+        assertEquals(400, rejected.getStatus());
+        assertEquals("mapper_parsing_exception: failed to parse", rejected.getReason());
+        assertFalse(rejected.isRetryable());
+    }
+
+    @Test
+    public void testErrorsWithoutItemsFailTheWholeBatch() throws Exception {
+        final BulkResponse response = parse("{\"took\":3,\"errors\":true}");
+        assertTrue(response.isIncomplete());
+        assertFalse(parse("{\"errors\":true,\"items\":[{\"index\":{\"status\":201}}]}").isIncomplete());
+        assertFalse(parse("{\"errors\":false}").isIncomplete());
+    }
+
+    private static BulkResponse parse(final String body) throws Exception {
+        final byte[] padded = (body + "   garbage").getBytes(StandardCharsets.UTF_8);
+        return BulkResponse.parse(padded, body.getBytes(StandardCharsets.UTF_8).length);
+    }
+}
@@ -0,0 +1,75 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensHalfOpensAndCloses() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(50, 1000, 10000);
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.onSuccess());
+
+        final long first = breaker.onFailure();
+        assertTrue(first >= 40 && first <= 60);
+        assertEquals(-1, breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+        assertFalse(breaker.isCallPermitted());
+        assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(first + 10);
+        assertTrue(breaker.isCallPermitted());
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        final long second = breaker.onFailure();
+        assertTrue(second >= 80 && second <= 120);
+        assertEquals(2, breaker.getConsecutiveFailures());
+        assertEquals(2, breaker.getTrips());
+
+        Thread.sleep(second + 10);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.onSuccess());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testOnlyOneProbeIsLetThrough() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(20, 1000, 10000);
+        Thread.sleep(breaker.onFailure() + 10);
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger acquired = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < 1000; j++) {
+                        if (breaker.tryAcquire()) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(1, acquired.get());
+    }
+}
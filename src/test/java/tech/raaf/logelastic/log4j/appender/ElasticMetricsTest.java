@@ -0,0 +1,136 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import tech.raaf.logelastic.log4j.layout.ElasticLayout;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ElasticMetricsTest {
+
+    @Test
+    public void testAppenderMetricsArePublishedOverJmx() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            elasticsearch.respond(request -> request.bodyAsString().contains("refused")
+                    ? new StubElasticsearch.Response(400, "{\"error\":\"refused\"}")
+                    : new StubElasticsearch.Response(201, "{}"));
+            final ElasticAppender appender = ElasticAppender.newBuilder()
+                    .setConfiguration(new DefaultConfiguration())
+                    .withName("metrics-test")
+                    .withLayout(ElasticLayout.createDefaultLayout())
+                    .setUrl(elasticsearch.url() + "/logs")
+                    .build();
+            appender.start();
+            appender.append(event("accepted"));
+            appender.append(event("accepted"));
+            appender.append(event("refused"));
+
+            final ElasticMetrics metrics = appender.getMetrics();
+            assertEquals(3, metrics.getEventsAppended());
+            assertEquals(2, metrics.getEventsShipped());
+            assertEquals(1, metrics.getEventsDropped());
+            assertEquals(3, metrics.getRequests());
+            assertEquals(1L, (long) metrics.getFailedRequestsByStatus().get(400));
+            assertEquals(3, metrics.getRequestLatency().getCount());
+            assertTrue(metrics.getSerializedBytes() > 0);
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("tech.raaf.logelastic:type=ElasticAppender,name=metrics-test");
+            assertEquals(2L, server.getAttribute(name, "EventsShipped"));
+            assertEquals(3L, ((CompositeData) server.getAttribute(name, "RequestLatency")).get("count"));
+            assertEquals(1, ((TabularData) server.getAttribute(name, "FailedRequestsByStatus")).size());
+
+            appender.stop(5, TimeUnit.SECONDS);
+            assertFalse(server.isRegistered(name));
+        }
+    }
+
+    @Test
+    public void testReconfiguredAppenderKeepsItsMetricsRegistered() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            final ElasticAppender previous = appender("reconfigured-test", elasticsearch);
+            previous.start();
+            // A reconfiguration starts the new appender before it stops the old one.
+            final ElasticAppender next = appender("reconfigured-test", elasticsearch);
+            next.start();
+            previous.stop(5, TimeUnit.SECONDS);
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("tech.raaf.logelastic:type=ElasticAppender,name=reconfigured-test");
+            assertTrue(server.isRegistered(name));
+            next.append(event("after reconfiguring"));
+            assertEquals(1L, server.getAttribute(name, "EventsAppended"));
+            assertSame(next.getMetrics(), RecordingReporter.REGISTERED.get("reconfigured-test"));
+
+            next.stop(5, TimeUnit.SECONDS);
+            assertFalse(server.isRegistered(name));
+            assertFalse(RecordingReporter.REGISTERED.containsKey("reconfigured-test"));
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        final Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(0);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(63, histogram.getP50());
+        assertEquals(100, histogram.getP99());
+        assertEquals(0, histogram.getPercentile(0));
+    }
+
+    private static ElasticAppender appender(final String name, final StubElasticsearch elasticsearch) {
+        return ElasticAppender.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .withName(name)
+                .withLayout(ElasticLayout.createDefaultLayout())
+                .setUrl(elasticsearch.url() + "/logs")
+                .build();
+    }
+
+    private static Log4jLogEvent event(final String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    /**
+     * Keeps track of the metrics registered with reporters, loaded from META-INF/services in the test resources.
+     */
+    public static class RecordingReporter implements ElasticMetricsReporter {
+
+        static final Map<String, ElasticMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+        @Override
+        public void register(final String appenderName, final ElasticMetrics metrics) {
+            REGISTERED.put(appenderName, metrics);
+        }
+
+        @Override
+        public void unregister(final String appenderName, final ElasticMetrics metrics) {
+            // Fails the test when another appender's metrics are withdrawn.
+            assertSame(REGISTERED.remove(appenderName), metrics);
+        }
+    }
+}
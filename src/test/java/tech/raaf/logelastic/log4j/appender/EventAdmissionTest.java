@@ -0,0 +1,70 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import tech.raaf.logelastic.log4j.config.RateLimit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventAdmissionTest {
+
+    @Test
+    public void testMostSpecificRuleLimitsEachLoggerAndLevel() {
+        final EventAdmission admission = new EventAdmission(new RateLimit[]{
+                RateLimit.createRateLimit("", "INFO", 0.001, 5, 1),
+                RateLimit.createRateLimit("com.noisy", null, 0.001, 2, 1)}, 0, "summary");
+
+        assertEquals(2, admitted(admission, "com.noisy.Storm", Level.ERROR, 10));
+        assertEquals(2, admitted(admission, "com.noisy.Storm", Level.DEBUG, 10));
+        assertEquals(2, admitted(admission, "com.noisy.Other", Level.DEBUG, 10));
+        assertEquals(5, admitted(admission, "com.noisyneighbour.Quiet", Level.INFO, 10));
+        assertEquals(10, admitted(admission, "com.noisyneighbour.Quiet", Level.WARN, 10));
+        assertNull(admission.pollSummary(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testSamplingAndSummary() {
+        final EventAdmission admission = new EventAdmission(new RateLimit[]{
+                RateLimit.createRateLimit("com.debug", "DEBUG", 0, 0, 0),
+                RateLimit.createRateLimit("com.sampled", null, 0, 0, 0.5)}, 60000, "summary");
+
+        assertEquals(0, admitted(admission, "com.debug.Chatty", Level.TRACE, 7));
+        assertEquals(3, admitted(admission, "com.debug.Chatty", Level.INFO, 3));
+        final int sampled = admitted(admission, "com.sampled", Level.INFO, 10000);
+        assertTrue(sampled > 4000 && sampled < 6000);
+
+        assertNull(admission.pollSummary(System.currentTimeMillis()));
+        final LogEvent summary = admission.pollSummary(System.currentTimeMillis() + 60000);
+        assertEquals("summary", summary.getLoggerName());
+        assertEquals(7 + 10000 - sampled, (long) summary.getContextData().getValue("suppressed"));
+        assertEquals(7L, (long) summary.getContextData().getValue("suppressed_com_debug_Chatty_TRACE"));
+        assertTrue(summary.getMessage().getFormattedMessage().contains("com.debug.Chatty TRACE: 7"));
+        assertFalse(admission.admit(event("com.debug.Chatty", Level.DEBUG)));
+        assertEquals(1L, (long) admission.summary(0).getContextData().getValue("suppressed"));
+        assertNull(admission.summary(0));
+    }
+
+    private static int admitted(final EventAdmission admission, final String logger, final Level level, final int events) {
+        int admitted = 0;
+        for (int i = 0; i < events; i++) {
+            if (admission.admit(event(logger, level))) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    private static LogEvent event(final String logger, final Level level) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(level)
+                .setMessage(new SimpleMessage("message"))
+                .build();
+    }
+}
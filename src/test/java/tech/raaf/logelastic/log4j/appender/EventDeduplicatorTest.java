@@ -0,0 +1,90 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EventDeduplicatorTest {
+
+    private static final IllegalStateException FAILURE = new IllegalStateException("down");
+
+    @Test
+    public void testRepeatsAreCollapsedPerWindow() {
+        final EventDeduplicator deduplicator = new EventDeduplicator(1000, 64);
+        final List<LogEvent> collapsed = new ArrayList<>();
+
+        assertTrue(deduplicator.accept(event(10_000, "a", FAILURE), collapsed::add));
+        assertFalse(deduplicator.accept(event(10_100, "b", FAILURE), collapsed::add));
+        assertFalse(deduplicator.accept(event(10_500, "c", FAILURE), collapsed::add));
+        assertTrue(deduplicator.accept(event(10_600, "c", null), collapsed::add));
+        assertTrue(collapsed.isEmpty());
+
+        assertTrue(deduplicator.accept(event(11_000, "d", FAILURE), collapsed::add));
+        assertEquals(1, collapsed.size());
+        final LogEvent document = collapsed.get(0);
+        assertEquals("Call to b failed", document.getMessage().getFormattedMessage());
+        assertEquals(10_500, document.getTimeMillis());
+        assertEquals(3L, (long) document.getContextData().getValue("occurrences"));
+        assertEquals(10_000L, (long) document.getContextData().getValue("firstOccurrence"));
+        assertEquals(10_500L, (long) document.getContextData().getValue("lastOccurrence"));
+
+        assertFalse(deduplicator.accept(event(11_200, "e", FAILURE), collapsed::add));
+        deduplicator.flush(collapsed::add);
+        assertEquals(2, collapsed.size());
+        assertEquals(2L, (long) collapsed.get(1).getContextData().getValue("occurrences"));
+    }
+
+    @Test
+    public void testFingerprintsAndEviction() {
+        assertEquals(EventDeduplicator.fingerprint(event(0, "a", FAILURE)), EventDeduplicator.fingerprint(event(5, "b", FAILURE)));
+        assertNotEquals(EventDeduplicator.fingerprint(event(0, "a", FAILURE)), EventDeduplicator.fingerprint(event(0, "a", new IllegalStateException("down"))));
+        assertNotEquals(EventDeduplicator.fingerprint(event(0, "a", null)), EventDeduplicator.fingerprint(event(0, "a", FAILURE)));
+
+        final EventDeduplicator deduplicator = new EventDeduplicator(60000, 1);
+        final List<LogEvent> collapsed = new ArrayList<>();
+        int shipped = 0;
+        for (int i = 0; i < 100; i++) {
+            for (int logger = 0; logger < 40; logger++) {
+                if (deduplicator.accept(event("logger" + logger, i), collapsed::add)) {
+                    shipped++;
+                }
+            }
+        }
+        // With one window per stripe, evicted windows reopen and their repeats are still counted.
+        deduplicator.flush(collapsed::add);
+        long occurrences = 0;
+        for (final LogEvent document : collapsed) {
+            occurrences += (long) document.getContextData().getValue("occurrences");
+        }
+        assertEquals(4000, shipped + occurrences - collapsed.size());
+    }
+
+    private static LogEvent event(final long time, final String target, final Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.ERROR)
+                .setTimeMillis(time)
+                .setMessage(new ParameterizedMessage("Call to {} failed", target))
+                .setThrown(thrown)
+                .build();
+    }
+
+    private static LogEvent event(final String logger, final long time) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(Level.ERROR)
+                .setTimeMillis(time)
+                .setMessage(new ParameterizedMessage("Repeated"))
+                .build();
+    }
+}
@@ -0,0 +1,66 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HttpConnectionPoolTest {
+
+    private static final byte[] HEADERS = "Content-Type: application/json\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BODY = "{\"n\":1}".getBytes(StandardCharsets.UTF_8);
+
+    private StubElasticsearch elasticsearch;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        elasticsearch = new StubElasticsearch();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        elasticsearch.close();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        final HttpConnectionPool pool = new HttpConnectionPool(new URL(elasticsearch.url()), null, true, 1000, 5000, 2, 60000);
+        elasticsearch.respond(request -> new StubElasticsearch.Response(201, "{\"result\":\"created\"}"));
+
+        for (int i = 0; i < 3; i++) {
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final HttpConnection.Response result = pool.execute("POST", "/logs/_doc", HEADERS, BODY, BODY.length, response);
+            assertEquals(201, result.getStatus());
+            assertEquals("{\"result\":\"created\"}", new String(response.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        assertEquals(1, pool.getCreatedConnections());
+        assertEquals(2, pool.getReusedConnections());
+        assertEquals(1, pool.getIdleConnections());
+        assertEquals(0, pool.getLeasedConnections());
+        assertEquals("{\"n\":1}", elasticsearch.history().get(2).bodyAsString());
+        pool.shutdown();
+        assertEquals(0, pool.getIdleConnections());
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvictedAndErrorsReported() throws Exception {
+        final HttpConnectionPool pool = new HttpConnectionPool(new URL(elasticsearch.url()), null, true, 1000, 5000, 2, 1);
+        elasticsearch.respond(request -> new StubElasticsearch.Response(400, "{\"error\":\"bad\"}"));
+
+        final HttpConnection.Response first = pool.execute("POST", "/logs/_doc", HEADERS, BODY, BODY.length, null);
+        assertEquals(400, first.getStatus());
+        assertEquals("{\"error\":\"bad\"}", first.getErrorBody());
+
+        Thread.sleep(10);
+        pool.execute("POST", "/logs/_doc", HEADERS, BODY, BODY.length, null);
+        assertEquals(2, pool.getCreatedConnections());
+        assertTrue(pool.getEvictedConnections() >= 1);
+    }
+}
@@ -0,0 +1,190 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import tech.raaf.logelastic.log4j.layout.ElasticLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HttpManagerTest {
+
+    @Test
+    public void testRequestsAreSpreadOverLiveNodes() throws Exception {
+        try (StubElasticsearch first = new StubElasticsearch(); StubElasticsearch second = new StubElasticsearch()) {
+            final String dead = "http://127.0.0.1:" + freePort();
+            final HttpManager manager = manager(first.url(), Arrays.asList(new URL(dead), new URL(second.url())));
+            final ElasticLayout layout = ElasticLayout.createDefaultLayout();
+
+            for (int i = 0; i < 6; i++) {
+                manager.send(layout, event("message " + i));
+            }
+
+            assertEquals(6, first.history().size() + second.history().size());
+            assertTrue(first.history().size() >= 2);
+            assertTrue(second.history().size() >= 2);
+            assertEquals("/logs/_doc?filter_path=result", first.history().get(0).path);
+
+            final List<ElasticNode> nodes = manager.getNodes();
+            assertEquals(3, nodes.size());
+            assertFalse(nodes.get(1).isAlive());
+            assertEquals(1, nodes.get(1).getFailures());
+            assertTrue(nodes.get(0).isAlive());
+            assertTrue(nodes.get(2).isAlive());
+            manager.stop(1, java.util.concurrent.TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testExhaustedPoolDoesNotMarkTheNodeDead() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            final CountDownLatch answering = new CountDownLatch(1);
+            final CountDownLatch answer = new CountDownLatch(1);
+            elasticsearch.respond(request -> {
+                answering.countDown();
+                try {
+                    answer.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new StubElasticsearch.Response(201, "{}");
+            });
+            final String url = elasticsearch.url();
+            final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(url + "/logs"),
+                    new URL(url + "/logs/_doc"), new URL(url + "/logs/_bulk"), 200, 0, null, null, null, true, 1, 30000,
+                    null, LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+            final ElasticLayout layout = ElasticLayout.createDefaultLayout();
+
+            final CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return manager.send(layout, event("first"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            assertTrue(answering.await(5, TimeUnit.SECONDS));
+            // The only connection is taken, so this one gives up waiting for it.
+            assertFalse(manager.send(layout, event("second")));
+            answer.countDown();
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+
+            final ElasticNode node = manager.getNodes().get(0);
+            assertTrue(node.isAlive());
+            assertEquals(0, node.getFailures());
+            assertEquals(0, node.getCircuitBreaker().getTrips());
+            assertTrue(manager.send(layout, event("third")));
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSniffedNodesReplaceConfiguredNodes() throws Exception {
+        try (StubElasticsearch seed = new StubElasticsearch(); StubElasticsearch other = new StubElasticsearch()) {
+            final String otherAddress = other.url().substring("http://".length());
+            seed.respond(request -> request.path.equals("/_nodes/http")
+                    ? new StubElasticsearch.Response(200, "{\"nodes\":{\"a\":{\"http\":{\"publish_address\":\"localhost/" + otherAddress + "\"}}}}")
+                    : new StubElasticsearch.Response(201, "{}"));
+            final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(seed.url() + "/logs"),
+                    new URL(seed.url() + "/logs/_doc"), new URL(seed.url() + "/logs/_bulk"), 1000, 0, null, null, null,
+                    true, 2, 30000, null, LoadBalancing.LEAST_OUTSTANDING, true, 0, null, TransportType.BLOCKING);
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!manager.getNodes().get(0).getUrl().getHost().equals("localhost") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, manager.getNodes().size());
+            assertEquals(new URL("http://localhost:" + other.url().substring(other.url().lastIndexOf(':') + 1)).toExternalForm(),
+                    manager.getNodes().get(0).getUrl().toExternalForm());
+
+            manager.send(ElasticLayout.createDefaultLayout(), event("sniffed"));
+            assertEquals(1, other.history().size());
+            manager.stop(1, java.util.concurrent.TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testBodiesAreCompressed() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            final String url = elasticsearch.url();
+            final RequestCompressor compressor = new RequestCompressor(RequestCompressor.Encoding.GZIP, 6, 256, 2);
+            final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(url + "/logs"),
+                    new URL(url + "/logs/_doc"), new URL(url + "/logs/_bulk"), 1000, 0, null, null, null, true, 2, 30000,
+                    null, LoadBalancing.ROUND_ROBIN, false, 0, compressor, TransportType.BLOCKING);
+
+            final StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                body.append("{\"index\":{}}\n{\"message\":\"the same message over and over\"}\n");
+            }
+            final byte[] bulk = body.toString().getBytes(StandardCharsets.UTF_8);
+            manager.sendBulk(bulk, bulk.length);
+            manager.send(ElasticLayout.createDefaultLayout(), event("small"));
+
+            final StubElasticsearch.Request compressed = elasticsearch.history().get(0);
+            assertEquals("gzip", compressed.headers.get("Content-encoding").get(0));
+            assertTrue(compressed.body.length < bulk.length / 4);
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.body))) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+                assertArrayEquals(bulk, out.toByteArray());
+            }
+
+            final StubElasticsearch.Request plain = elasticsearch.history().get(1);
+            assertFalse(plain.headers.containsKey("Content-encoding"));
+            assertEquals(1, compressor.getCompressedRequests());
+            assertEquals(bulk.length, compressor.getUncompressedBytes());
+            assertTrue(compressor.getCompressionRatio() > 4);
+            manager.stop(1, java.util.concurrent.TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPublishAddresses() throws Exception {
+        assertEquals("http://10.0.0.1:9200", NodeSniffer.toUrl("10.0.0.1:9200", "http").toExternalForm());
+        assertEquals("https://es1:9200", NodeSniffer.toUrl("es1/10.0.0.1:9200", "https").toExternalForm());
+        assertEquals("http://10.0.0.1:9201", NodeSniffer.toUrl("inet[/10.0.0.1:9201]", "http").toExternalForm());
+        assertEquals(2, NodeSniffer.parse(("{\"nodes\":{\"a\":{\"http\":{\"publish_address\":\"a:1\"}},"
+                + "\"b\":{\"http\":{\"publish_address\":\"b:2\"}},\"c\":{}}}").getBytes(StandardCharsets.UTF_8), "http").size());
+    }
+
+    private static HttpManager manager(final String url, final List<URL> nodes) throws Exception {
+        return new HttpManager(new DefaultConfiguration(), "test", new URL(url + "/logs"), new URL(url + "/logs/_doc"),
+                new URL(url + "/logs/_bulk"), 1000, 0, null, null, null, true, 2, 30000, nodes,
+                LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+    }
+
+    private static LogEvent event(final String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IndexBootstrapTest {
+
+    @Test
+    public void testTemplateIsInstalledAndIndicesAreCreatedOnce() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            final HttpManager manager = manager(elasticsearch.url());
+            final IndexRouter router = new IndexRouter("/logs", IndexFrequencyType.MINUTE, "-", ZoneOffset.UTC);
+            final IndexBootstrap bootstrap = new IndexBootstrap(manager, "test", router, "logs");
+            awaitRequests(elasticsearch, 3);
+            assertTrue(bootstrap.stop(1, TimeUnit.SECONDS));
+
+            final List<StubElasticsearch.Request> requests = elasticsearch.history();
+            assertEquals("PUT", requests.get(0).method);
+            assertEquals("/_template/logs", requests.get(0).path);
+            final String template = new String(requests.get(0).body, StandardCharsets.UTF_8);
+            assertTrue(template.startsWith("{\"index_patterns\":[\"logs-*\"],"));
+            assertTrue(template.contains("\"formattedMessage\""));
+
+            // The template holds the mapping, so the indices are created empty.
+            for (final StubElasticsearch.Request request : requests.subList(1, 3)) {
+                assertEquals("PUT", request.method);
+                assertTrue(request.path.startsWith("/logs-"));
+                assertEquals("{}", new String(request.body, StandardCharsets.UTF_8));
+            }
+
+            // Known indices are not created again, unless the next period came in sight meanwhile.
+            bootstrap.bootstrap();
+            assertTrue(elasticsearch.history().size() <= 4);
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testRejectedTemplateFallsBackToMapping() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            elasticsearch.respond(request -> request.path.startsWith("/_template/")
+                    ? new StubElasticsearch.Response(400, "{\"error\":{\"type\":\"mapper_parsing_exception\"}}")
+                    : new StubElasticsearch.Response(400, "{\"error\":{\"type\":\"resource_already_exists_exception\"}}"));
+            final HttpManager manager = manager(elasticsearch.url());
+            final IndexRouter router = new IndexRouter("/logs", IndexFrequencyType.NONE, "", ZoneOffset.UTC);
+            final IndexBootstrap bootstrap = new IndexBootstrap(manager, "test", router, "logs");
+            awaitRequests(elasticsearch, 2);
+            assertTrue(bootstrap.stop(1, TimeUnit.SECONDS));
+
+            assertTrue(new String(elasticsearch.history().get(0).body, StandardCharsets.UTF_8).startsWith("{\"index_patterns\":[\"logs\"],"));
+            final StubElasticsearch.Request index = elasticsearch.history().get(1);
+            assertEquals("/logs", index.path);
+            assertTrue(new String(index.body, StandardCharsets.UTF_8).contains("\"mappings\""));
+
+            // An index that already exists counts as known.
+            bootstrap.bootstrap();
+            assertEquals(2, elasticsearch.history().size());
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testTemplateIsRetriedWhenElasticsearchIsOverloaded() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            final AtomicInteger templates = new AtomicInteger();
+            elasticsearch.respond(request -> request.path.startsWith("/_template/") && templates.getAndIncrement() == 0
+                    ? new StubElasticsearch.Response(503, "{\"error\":{\"type\":\"cluster_block_exception\"}}")
+                    : new StubElasticsearch.Response(200, "{}"));
+            final HttpManager manager = manager(elasticsearch.url());
+            final IndexRouter router = new IndexRouter("/logs", IndexFrequencyType.NONE, "", ZoneOffset.UTC);
+            final IndexBootstrap bootstrap = new IndexBootstrap(manager, "test", router, "logs");
+            awaitRequests(elasticsearch, 2);
+            assertTrue(bootstrap.stop(1, TimeUnit.SECONDS));
+
+            // Until the template is in place, the index gets the mapping itself.
+            assertTrue(new String(elasticsearch.history().get(1).body, StandardCharsets.UTF_8).contains("\"mappings\""));
+
+            bootstrap.bootstrap();
+            assertEquals(3, elasticsearch.history().size());
+            assertEquals("/_template/logs", elasticsearch.history().get(2).path);
+            bootstrap.bootstrap();
+            assertEquals(3, elasticsearch.history().size());
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testMissingIndicesAreCreatedByTheBootstrap() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            elasticsearch.respond(request -> request.method.equals("POST")
+                    ? new StubElasticsearch.Response(404, "{\"error\":{\"type\":\"index_not_found_exception\"}}")
+                    : new StubElasticsearch.Response(200, "{}"));
+            final HttpManager manager = manager(elasticsearch.url());
+            final IndexRouter router = new IndexRouter("/logs", IndexFrequencyType.NONE, "", ZoneOffset.UTC);
+            final IndexBootstrap bootstrap = new IndexBootstrap(manager, "test", router, "logs");
+            manager.setIndexBootstrap(bootstrap);
+            awaitRequests(elasticsearch, 2);
+
+            // The request fails right away, the indices its action lines name are created on the bootstrap thread.
+            final byte[] body = ("{\"index\":{\"_index\":\"logs-2019\"}}\n{}\n{\"index\":{}}\n{}\n"
+                    + "{\"index\":{\"_index\":\"logs-2019\"}}\n{}\n").getBytes(StandardCharsets.UTF_8);
+            final HttpStatusException e = assertThrows(HttpStatusException.class, () -> manager.sendBulk(body, body.length));
+            assertEquals(404, e.getStatus());
+            awaitRequests(elasticsearch, 5);
+            assertTrue(bootstrap.stop(1, TimeUnit.SECONDS));
+
+            final List<StubElasticsearch.Request> requests = elasticsearch.history();
+            assertEquals(5, requests.size());
+            assertEquals("POST", requests.get(2).method);
+            assertEquals("PUT", requests.get(3).method);
+            assertEquals("/logs-2019", requests.get(3).path);
+            // An action line without an index writes to the index of the URL.
+            assertEquals("PUT", requests.get(4).method);
+            assertEquals("/logs", requests.get(4).path);
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static HttpManager manager(final String url) throws Exception {
+        return new HttpManager(new DefaultConfiguration(), "test", new URL(url + "/logs"), new URL(url + "/logs/_doc"),
+                new URL(url + "/logs/_bulk"), 1000, 0, null, null, null, true, 2, 30000, null,
+                LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+    }
+
+    private static void awaitRequests(final StubElasticsearch elasticsearch, final int requests) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (elasticsearch.history().size() < requests && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
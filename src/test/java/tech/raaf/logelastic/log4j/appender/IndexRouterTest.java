@@ -0,0 +1,50 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class IndexRouterTest {
+
+    @Test
+    public void testIndexFollowsEventTime() {
+        final IndexRouter router = new IndexRouter("/logs", IndexFrequencyType.DAY, "-", ZoneOffset.UTC);
+        final long january11 = millis(2026, 1, 11, 23, 59, ZoneOffset.UTC);
+        final long november1 = millis(2026, 11, 1, 0, 0, ZoneOffset.UTC);
+
+        final IndexRouter.Index first = router.route(january11);
+        assertEquals("/logs-20260111", first.getPath());
+        assertSame(first, router.route(january11 - 23 * 60 * 60 * 1000L));
+        assertEquals("/logs-20260112", router.route(january11 + 60 * 1000L).getPath());
+        assertEquals("/logs-20261101", router.route(november1).getPath());
+        assertEquals("{\"index\":{\"_index\":\"logs-20261101\"}}\n",
+                new String(router.route(november1).getAction(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFrequenciesAndZones() {
+        final long time = millis(2026, 3, 5, 7, 8, ZoneOffset.UTC);
+        assertEquals("/a/logs_202603050708", new IndexRouter("/a/logs", IndexFrequencyType.MINUTE, "_", ZoneOffset.UTC).route(time).getPath());
+        assertEquals("/logs.2026030507", new IndexRouter("/logs", IndexFrequencyType.HOUR, ".", ZoneOffset.UTC).route(time).getPath());
+        assertEquals("/logs-202603", new IndexRouter("/logs", IndexFrequencyType.MONTH, "-", ZoneOffset.UTC).route(time).getPath());
+        assertEquals("/logs-2026", new IndexRouter("/logs", IndexFrequencyType.YEAR, "-", ZoneOffset.UTC).route(time).getPath());
+        assertEquals("/logs-20260304", new IndexRouter("/logs", IndexFrequencyType.DAY, "-", ZoneId.of("America/New_York"))
+                .route(millis(2026, 3, 5, 3, 0, ZoneOffset.UTC)).getPath());
+
+        final IndexRouter none = new IndexRouter("/logs", IndexFrequencyType.NONE, "", ZoneOffset.UTC);
+        assertEquals("/logs", none.route(time).getPath());
+        assertEquals("{\"index\":{}}\n", new String(none.route(0).getAction(), StandardCharsets.UTF_8));
+        assertNotEquals(none.route(time).getPath(), new IndexRouter("/logs", IndexFrequencyType.DAY, "-", ZoneOffset.UTC).route(time).getPath());
+    }
+
+    private static long millis(final int year, final int month, final int day, final int hour, final int minute, final ZoneId zone) {
+        return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, zone).toInstant().toEpochMilli();
+    }
+}
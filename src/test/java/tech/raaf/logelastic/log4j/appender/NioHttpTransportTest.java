@@ -0,0 +1,109 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NioHttpTransportTest {
+
+    private static final byte[] HEADERS = "Content-Type: application/json\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private StubElasticsearch elasticsearch;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        elasticsearch = new StubElasticsearch();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        elasticsearch.close();
+    }
+
+    @Test
+    public void testManyRequestsInFlightFromOneThread() throws Exception {
+        final CountDownLatch submitted = new CountDownLatch(1);
+        elasticsearch.respond(request -> {
+            try {
+                // The stub answers one request at a time, so this holds back all of them.
+                submitted.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new StubElasticsearch.Response(201, "{\"result\":\"created\"}");
+        });
+        final NioHttpTransport transport = new NioHttpTransport(new URL(elasticsearch.url()), 1000, 5000, 4, 60000);
+
+        final List<String> responses = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            final byte[] body = ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+            transport.execute("POST", "/logs/_doc", HEADERS, body, body.length, sink, new HttpTransport.Callback() {
+                @Override
+                public void completed(final HttpConnection.Response response) {
+                    responses.add(response.getStatus() + " " + new String(sink.toByteArray(), StandardCharsets.UTF_8));
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(final IOException e) {
+                    responses.add(e.toString());
+                    done.countDown();
+                }
+            });
+        }
+        submitted.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(8, responses.size());
+        for (final String response : responses) {
+            assertEquals("201 {\"result\":\"created\"}", response);
+        }
+        assertEquals(8, elasticsearch.history().size());
+        assertEquals(201, transport.execute("POST", "/logs/_doc", HEADERS, new byte[0], 0, null).getStatus());
+        transport.shutdown();
+    }
+
+    @Test
+    public void testBulkRequestsAndUnreachableNodes() throws Exception {
+        final String index = elasticsearch.url() + "/logs";
+        final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(index), new URL(index + "/_doc"),
+                new URL(index + "/_bulk"), 1000, 5000, null, null, null, true, 4, 30000,
+                null, LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.ASYNC);
+        elasticsearch.respond(request -> new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}"));
+
+        final BulkProcessor processor = new BulkProcessor(manager, "test", 1024 * 1024, 5, 60000, 0, null, 4, 0);
+        for (int i = 0; i < 20; i++) {
+            processor.add(("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(processor.stop(5, TimeUnit.SECONDS));
+        assertEquals(20, manager.getMetrics().getEventsShipped());
+        assertEquals(4, elasticsearch.history().size());
+        manager.stop(1, TimeUnit.SECONDS);
+
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final NioHttpTransport unreachable = new NioHttpTransport(new URL("http://127.0.0.1:" + port), 1000, 5000, 1, 60000);
+        assertThrows(ConnectException.class, () -> unreachable.execute("POST", "/logs/_doc", HEADERS, new byte[0], 0, null));
+        unreachable.shutdown();
+    }
+}
@@ -0,0 +1,72 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+import tech.raaf.logelastic.log4j.config.Header;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class RequestHeadersTest {
+
+    @Test
+    public void testScopes() {
+        assertEquals(RequestHeaders.Scope.STATIC, RequestHeaders.scopeOf(Header.createHeader("A", "plain")));
+        assertEquals(RequestHeaders.Scope.STATIC, RequestHeaders.scopeOf(Header.createHeader("A", "${sys:user.name}-${env:HOME}")));
+        assertEquals(RequestHeaders.Scope.STATIC, RequestHeaders.scopeOf(Header.createHeader("A", "${hostName}")));
+        assertEquals(RequestHeaders.Scope.BATCH, RequestHeaders.scopeOf(Header.createHeader("A", "${sys:a}${date:yyyy}")));
+        assertEquals(RequestHeaders.Scope.EVENT, RequestHeaders.scopeOf(Header.createHeader("A", "${date:yyyy}${ctx:user}")));
+        assertEquals(RequestHeaders.Scope.EVENT, RequestHeaders.scopeOf(Header.createHeader("A", "${custom:key}")));
+        assertEquals(RequestHeaders.Scope.EVENT, RequestHeaders.scopeOf(Header.createHeader("A", "${sys:${ctx:key}}")));
+    }
+
+    @Test
+    public void testTemplatesReuseRenderedBytes() {
+        System.setProperty("request.headers.test", "static");
+        final RequestHeaders headers = new RequestHeaders(new DefaultConfiguration().getStrSubstitutor(), new Header[]{
+                Header.createHeader("X-Static", "${sys:request.headers.test}"),
+                Header.createHeader("X-User", "${ctx:user}")});
+        System.setProperty("request.headers.test", "changed");
+
+        final RequestHeaders.Template template = headers.template("application/json", "gzip");
+        final byte[] jane = template.render(event("jane"), false);
+        assertEquals("Content-Type: application/json\r\nX-Static: static\r\nX-User: jane\r\n",
+                new String(jane, StandardCharsets.ISO_8859_1));
+        assertSame(jane, template.render(event("jane"), false));
+        assertEquals("Content-Type: application/json\r\nX-Static: static\r\nX-User: john\r\nContent-Encoding: gzip\r\n",
+                new String(template.render(event("john"), true), StandardCharsets.ISO_8859_1));
+
+        final RequestHeaders.Template fixed = new RequestHeaders(new DefaultConfiguration().getStrSubstitutor(),
+                new Header[]{Header.createHeader("X-Static", "value")}).template(null, null);
+        assertSame(fixed.render(null, false), fixed.render(event("jane"), true));
+        assertEquals("X-Static: value\r\n", new String(fixed.render(null, false), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void testLineBreaksDontStartNewHeaders() {
+        final RequestHeaders headers = new RequestHeaders(new DefaultConfiguration().getStrSubstitutor(), new Header[]{
+                Header.createHeader("X-Static", "a\r\nX-Injected: b"),
+                Header.createHeader("X-User", "${ctx:user}")});
+        final RequestHeaders.Template template = headers.template(null, null);
+        assertEquals("X-Static: a  X-Injected: b\r\nX-User: jane  GET /_all HTTP/1.1\r\n",
+                new String(template.render(event("jane\r\nGET /_all HTTP/1.1"), false), StandardCharsets.ISO_8859_1));
+    }
+
+    private static LogEvent event(final String user) {
+        final SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("user", user);
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("message"))
+                .setContextData(contextData)
+                .build();
+    }
+}
@@ -0,0 +1,190 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tech.raaf.logelastic.log4j.layout.ElasticLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentLogTest {
+
+    private File directory;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("segment-log").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testRecordsSurviveReopenAndReplayInOrder() throws Exception {
+        SegmentLog log = new SegmentLog(directory, 256, 1024);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(append(log, "{\"n\":" + i + "}\n"));
+        }
+        BulkBatch batch = new BulkBatch(256);
+        assertEquals(3, log.peek(batch, 3, 1024));
+        assertEquals("{\"n\":0}\n{\"n\":1}\n{\"n\":2}\n", new String(batch.array(), 0, batch.byteSize(), StandardCharsets.UTF_8));
+        log.commit();
+        assertEquals(7, log.getPendingRecords());
+        log.close();
+
+        log = new SegmentLog(directory, 256, 1024);
+        assertEquals(7, log.getPendingRecords());
+        batch = new BulkBatch(256);
+        int replayed = 0;
+        while (!log.isEmpty()) {
+            replayed += log.peek(batch, 100, 1024);
+            log.commit();
+        }
+        assertEquals(7, replayed);
+        assertTrue(new String(batch.array(), 0, batch.byteSize(), StandardCharsets.UTF_8).startsWith("{\"n\":3}\n{\"n\":4}\n"));
+        assertFalse(append(log, new String(new char[300])));
+        log.close();
+    }
+
+    @Test
+    public void testOldestSegmentIsEvictedWhenFull() throws Exception {
+        final SegmentLog log = new SegmentLog(directory, 128, 256);
+        for (int i = 0; i < 30; i++) {
+            append(log, "{\"n\":" + (i < 10 ? "0" : "") + i + "}\n");
+        }
+        assertEquals(256, log.getDiskBytes());
+        assertTrue(log.getEvictedRecords() > 0);
+        assertEquals(30, log.getEvictedRecords() + log.getPendingRecords());
+
+        final BulkBatch batch = new BulkBatch(256);
+        log.peek(batch, 1, 1024);
+        assertFalse(new String(batch.array(), 0, batch.byteSize(), StandardCharsets.UTF_8).startsWith("{\"n\":00}"));
+        log.close();
+    }
+
+    @Test
+    public void testRejectedConfigurationLeavesTheDirectoryUnlocked() throws Exception {
+        final ElasticAppender appender = ElasticAppender.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .withName("rejected")
+                .withLayout(ElasticLayout.createDefaultLayout())
+                .setUrl("http://127.0.0.1:9200/logs")
+                .setSpillDirectory(directory.getPath())
+                .setShutdownTimeoutMillis(-1)
+                .build();
+        assertNull(appender);
+
+        final SegmentLog log = SegmentLog.open(directory, 1024, 65536, "accepted");
+        log.close();
+    }
+
+    @Test
+    public void testDirectoryIsLockedAndRecoveredSegmentsKeepTheirSize() throws Exception {
+        SegmentLog log = SegmentLog.open(directory, 1024, 65536, "first");
+        assertTrue(append(log, new String(new char[300])));
+        assertThrows(IOException.class, () -> new SegmentLog(directory, 1024, 65536));
+        assertThrows(IOException.class, () -> SegmentLog.open(directory, 1024, 65536, "second"));
+        // The appender that replaces the first one on a reconfiguration shares its log.
+        final SegmentLog successor = SegmentLog.open(directory, 1024, 65536, "first");
+        assertSame(log, successor);
+        log.close();
+        assertTrue(append(successor, new String(new char[300])));
+        successor.close();
+
+        // A record that doesn't fit in the smaller recovered segment goes to a new one.
+        log = new SegmentLog(directory, 4096, 65536);
+        assertEquals(1024, log.getDiskBytes());
+        assertTrue(append(log, new String(new char[900])));
+        assertEquals(1024 + 4096, log.getDiskBytes());
+        assertEquals(3, log.getPendingRecords());
+        log.close();
+
+        // The other way around the recovered segment is used up before a new one is created.
+        log = new SegmentLog(directory, 512, 65536);
+        assertTrue(append(log, new String(new char[400])));
+        assertEquals(1024 + 4096, log.getDiskBytes());
+        log.close();
+    }
+
+    @Test
+    public void testReplayerShipsBacklogWhenNodeIsLive() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            elasticsearch.respond(request -> new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}"));
+            final String index = elasticsearch.url() + "/logs";
+            final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(index), new URL(index + "/_doc"),
+                    new URL(index + "/_bulk"), 1000, 0, null, null, null, true, 2, 30000,
+                    null, LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+            final SegmentLog log = new SegmentLog(directory, 4096, 8192);
+            append(log, "{\"index\":{}}\n{\"n\":0}\n");
+            append(log, "{\"index\":{}}\n{\"n\":1}\n");
+
+            final SpillReplayer replayer = new SpillReplayer(manager, "test", log, 1024 * 1024, 1000);
+            final StubElasticsearch.Request request = elasticsearch.take();
+            assertNotNull(request);
+            assertEquals("/logs/_bulk?filter_path=errors,items.*.error,items.*.status", request.path);
+            assertEquals("{\"index\":{}}\n{\"n\":0}\n{\"index\":{}}\n{\"n\":1}\n", request.bodyAsString());
+
+            assertTrue(replayer.stop(5, TimeUnit.SECONDS));
+            assertTrue(log.isEmpty());
+            log.close();
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testReplayerDropsRecordsThatAreRejectedForGood() throws Exception {
+        try (StubElasticsearch elasticsearch = new StubElasticsearch()) {
+            elasticsearch.respond(request -> elasticsearch.history().size() == 1
+                    ? new StubElasticsearch.Response(400, "{\"error\":{\"type\":\"illegal_argument_exception\"}}")
+                    : new StubElasticsearch.Response(200, "{\"took\":1,\"errors\":false,\"items\":[]}"));
+            final String index = elasticsearch.url() + "/logs";
+            final HttpManager manager = new HttpManager(new DefaultConfiguration(), "test", new URL(index), new URL(index + "/_doc"),
+                    new URL(index + "/_bulk"), 1000, 0, null, null, null, true, 2, 30000,
+                    null, LoadBalancing.ROUND_ROBIN, false, 0, null, TransportType.BLOCKING);
+            final SegmentLog log = new SegmentLog(directory, 4096, 8192);
+            append(log, "{\"index\":{}}\n{\"n\":0}\n");
+            append(log, "{\"index\":{}}\n{\"n\":1}\n");
+
+            // The rejected record doesn't hold up the one behind it.
+            final SpillReplayer replayer = new SpillReplayer(manager, "test", log, 1024 * 1024, 1);
+            assertNotNull(elasticsearch.take());
+            final StubElasticsearch.Request request = elasticsearch.take();
+            assertNotNull(request);
+            assertEquals("{\"index\":{}}\n{\"n\":1}\n", request.bodyAsString());
+
+            assertTrue(replayer.stop(5, TimeUnit.SECONDS));
+            assertTrue(log.isEmpty());
+            assertEquals(1, manager.getMetrics().getEventsRejected());
+            assertEquals(1, manager.getMetrics().getEventsShipped());
+            log.close();
+            manager.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static boolean append(final SegmentLog log, final String record) throws Exception {
+        final byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        return log.append(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,215 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SenderPipelineTest {
+
+    @Test
+    public void testEventsAreCopiedAndShippedInOrder() throws Exception {
+        final List<String> shipped = new CopyOnWriteArrayList<>();
+        final SenderPipeline pipeline = new SenderPipeline("test", 2, 16, OverflowPolicy.BLOCK, Level.WARN);
+        pipeline.start(event -> shipped.add(event.getMessage().getFormattedMessage()), event -> { });
+
+        for (int i = 0; i < 100; i++) {
+            pipeline.publish(event(Level.INFO, "message " + i));
+        }
+        assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+        assertEquals(100, shipped.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, shipped.get(i));
+        }
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch taken = new CountDownLatch(2);
+        final List<String> spilled = new CopyOnWriteArrayList<>();
+        final SenderPipeline dropping = new SenderPipeline("test", 1, 4, OverflowPolicy.DROP_BELOW_LEVEL, Level.WARN);
+        final SenderPipeline spilling = new SenderPipeline("test", 1, 4, OverflowPolicy.SPILL, Level.WARN);
+        dropping.start(event -> block(taken, release), event -> { });
+        spilling.start(event -> block(taken, release), event -> spilled.add(event.getMessage().getFormattedMessage()));
+
+        // One event keeps its slot while the sender thread is blocked on it, three fill the ring buffer.
+        dropping.publish(event(Level.INFO, "taken"));
+        spilling.publish(event(Level.INFO, "taken"));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            dropping.publish(event(Level.INFO, "fill " + i));
+            spilling.publish(event(Level.INFO, "fill " + i));
+        }
+        waitForDepth(dropping, 4);
+        waitForDepth(spilling, 4);
+
+        assertFalse(dropping.publish(event(Level.DEBUG, "dropped")));
+        assertFalse(dropping.publish(event(Level.INFO, "dropped")));
+        assertEquals(2, dropping.getDroppedEvents());
+
+        assertTrue(spilling.publish(event(Level.INFO, "spilled")));
+        assertEquals(1, spilled.size());
+        assertEquals("spilled", spilled.get(0));
+
+        release.countDown();
+        assertTrue(dropping.publish(event(Level.ERROR, "kept")));
+        assertTrue(dropping.stop(5, TimeUnit.SECONDS));
+        assertTrue(spilling.stop(5, TimeUnit.SECONDS));
+        assertEquals(2, dropping.getDroppedEvents());
+    }
+
+    @Test
+    public void testBlockedPublisherGivesUpWhenStopped() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch taken = new CountDownLatch(1);
+        final List<String> leftover = new CopyOnWriteArrayList<>();
+        final SenderPipeline pipeline = new SenderPipeline("test", 1, 4, OverflowPolicy.BLOCK, Level.WARN);
+        pipeline.start(event -> block(taken, release), event -> { });
+        pipeline.publish(event(Level.INFO, "taken"));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            pipeline.publish(event(Level.INFO, "fill " + i));
+        }
+        waitForDepth(pipeline, 4);
+
+        final CompletableFuture<Boolean> blocked = CompletableFuture.supplyAsync(
+                () -> pipeline.publish(event(Level.INFO, "blocked")));
+        Thread.sleep(50);
+        assertFalse(blocked.isDone());
+
+        // The sender thread stays stuck, so the ring buffer never frees a slot.
+        assertFalse(pipeline.stop(100, TimeUnit.MILLISECONDS,
+                event -> leftover.add(event.getMessage().getFormattedMessage())));
+        if (blocked.get(5, TimeUnit.SECONDS)) {
+            assertTrue(leftover.contains("blocked"));
+        } else {
+            assertEquals(1, pipeline.getDroppedEvents());
+        }
+        release.countDown();
+    }
+
+    @Test
+    public void testPriorityLaneBypassesBacklog() throws Exception {
+        final List<String> shipped = new CopyOnWriteArrayList<>();
+        final SenderPipeline pipeline = new SenderPipeline("test", 1, 4, OverflowPolicy.DROP_NEWEST, Level.WARN,
+                Level.WARN, 4, OverflowPolicy.BLOCK, 8);
+
+        // Queued before the sender thread starts, so the normal lane is full and holds a backlog.
+        for (int i = 0; i < 5; i++) {
+            pipeline.publish(event(Level.DEBUG, "debug " + i));
+        }
+        assertEquals(1, pipeline.getDroppedEvents());
+        // The priority lane has slots of its own, so none of these is dropped although the normal lane is full.
+        assertTrue(pipeline.publish(event(Level.ERROR, "error")));
+        assertTrue(pipeline.publish(event(Level.WARN, "warn")));
+        assertTrue(pipeline.publish(event(Level.FATAL, "fatal")));
+        assertTrue(pipeline.publish(event(Level.ERROR, "error 2")));
+        assertEquals(1, pipeline.getDroppedEvents());
+        assertEquals(8, pipeline.getQueueDepth());
+
+        pipeline.start(event -> shipped.add(event.getMessage().getFormattedMessage()), event -> { });
+        assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+        assertEquals(8, shipped.size());
+        assertEquals("error", shipped.get(0));
+        assertEquals("warn", shipped.get(1));
+        assertEquals("fatal", shipped.get(2));
+        assertEquals("error 2", shipped.get(3));
+        assertEquals("debug 0", shipped.get(4));
+    }
+
+    @Test
+    public void testPartitionsKeepTheirOrderAcrossThreads() throws Exception {
+        final Map<String, List<String>> shipped = new ConcurrentHashMap<>();
+        final Map<String, Set<String>> senders = new ConcurrentHashMap<>();
+        final SenderPipeline pipeline = new SenderPipeline("test", 4, 64, OverflowPolicy.BLOCK, Level.WARN,
+                null, 0, null, 1, event -> event.getLoggerName().hashCode());
+        pipeline.start(event -> {
+            shipped.computeIfAbsent(event.getLoggerName(), logger -> new CopyOnWriteArrayList<>())
+                    .add(event.getMessage().getFormattedMessage());
+            senders.computeIfAbsent(event.getLoggerName(), logger -> ConcurrentHashMap.newKeySet())
+                    .add(Thread.currentThread().getName());
+        }, event -> { });
+
+        // Every logger is logged to by one thread at a time, but by a different thread each round.
+        for (int round = 0; round < 4; round++) {
+            final int first = round * 50;
+            final Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final String logger = "logger" + t;
+                threads[t] = new Thread(() -> {
+                    for (int i = first; i < first + 50; i++) {
+                        pipeline.publish(event(logger, "message " + i));
+                    }
+                });
+                threads[t].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        }
+        assertTrue(pipeline.stop(5, TimeUnit.SECONDS));
+
+        assertEquals(8, shipped.size());
+        for (final Map.Entry<String, List<String>> entry : shipped.entrySet()) {
+            assertEquals(200, entry.getValue().size());
+            for (int i = 0; i < 200; i++) {
+                assertEquals("message " + i, entry.getValue().get(i));
+            }
+            assertEquals(1, senders.get(entry.getKey()).size());
+        }
+        final Set<String> allSenders = new HashSet<>();
+        senders.values().forEach(allSenders::addAll);
+        assertTrue(allSenders.size() > 1);
+    }
+
+    private static LogEvent event(final String logger, final String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static LogEvent event(final Level level, final String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(level)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static void waitForDepth(final SenderPipeline pipeline, final long depth) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getQueueDepth() != depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(depth, pipeline.getQueueDepth());
+    }
+
+    private static void block(final CountDownLatch taken, final CountDownLatch release) {
+        taken.countDown();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package tech.raaf.logelastic.log4j.appender;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A local stand-in for Elasticsearch that records requests and answers them with a scripted response.
+ */
+class StubElasticsearch implements AutoCloseable {
+
+    static class Request {
+        final String method;
+        final String path;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        Request(final String method, final String path, final Map<String, List<String>> headers, final byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String bodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    static class Response {
+        final int status;
+        final String body;
+
+        Response(final int status, final String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    static {
+        // Write responses without waiting for the client to acknowledge the headers, which takes 40ms with delayed ACKs.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final List<Request> history = new CopyOnWriteArrayList<>();
+    private volatile Function<Request, Response> responder = r -> new Response(201, "{}");
+    private volatile boolean record = true;
+
+    StubElasticsearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void respond(final Function<Request, Response> responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Stops keeping requests around, for long runs such as benchmarks.
+     */
+    void record(final boolean record) {
+        this.record = record;
+    }
+
+    Request take() throws InterruptedException {
+        return requests.poll(10, TimeUnit.SECONDS);
+    }
+
+    List<Request> history() {
+        return history;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream is = exchange.getRequestBody()) {
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+        }
+        final Request request = new Request(exchange.getRequestMethod(), exchange.getRequestURI().toString(),
+                exchange.getRequestHeaders(), body.toByteArray());
+        if (record) {
+            history.add(request);
+        }
+        final Response response = responder.apply(request);
+        final byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+        if (record) {
+            requests.add(request);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
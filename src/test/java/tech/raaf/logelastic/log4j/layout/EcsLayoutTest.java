@@ -0,0 +1,89 @@
+package tech.raaf.logelastic.log4j.layout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EcsLayoutTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testEcsFields() throws Exception {
+        final SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("user", "jane");
+        contextData.putValue("attempt", 2);
+        final LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("test.logger")
+                .setLevel(Level.ERROR)
+                .setMarker(MarkerManager.getMarker("AUDIT"))
+                .setMessage(new ParameterizedMessage("{} failed", "login"))
+                .setThreadName("worker")
+                .setThreadId(42)
+                .setTimeMillis(1556705730123L)
+                .setContextData(contextData)
+                .setThrown(new IllegalStateException("broken"))
+                .setSource(new StackTraceElement("Some", "method", "Some.java", 12))
+                .setIncludeLocation(true)
+                .build();
+        final EcsLayout layout = EcsLayout.newBuilder()
+                .setServiceName("shop")
+                .setLocationInfo(true)
+                .setProperties(true)
+                .build();
+
+        final byte[] bytes = layout.toByteArray(event);
+        assertEquals('\n', bytes[bytes.length - 1]);
+        final JsonNode document = MAPPER.readTree(bytes);
+        assertEquals("2019-05-01T10:15:30.123Z", document.get("@timestamp").asText());
+        assertEquals("ERROR", document.get("log.level").asText());
+        assertEquals("login failed", document.get("message").asText());
+        assertEquals("1.2.0", document.get("ecs.version").asText());
+        assertEquals("shop", document.get("service.name").asText());
+        assertEquals("worker", document.get("process.thread.name").asText());
+        assertEquals(42, document.get("process.thread.id").asLong());
+        assertEquals("test.logger", document.get("log.logger").asText());
+        assertEquals("Some.java", document.get("log.origin").get("file").get("name").asText());
+        assertEquals(12, document.get("log.origin").get("file").get("line").asInt());
+        assertEquals("method", document.get("log.origin").get("function").asText());
+        assertEquals("jane", document.get("labels").get("user").asText());
+        assertEquals("2", document.get("labels").get("attempt").asText());
+        assertEquals("AUDIT", document.get("tags").get(0).asText());
+        assertEquals("java.lang.IllegalStateException", document.get("error.type").asText());
+        assertEquals("broken", document.get("error.message").asText());
+        assertTrue(document.get("error.stack_trace").asText().startsWith("java.lang.IllegalStateException: broken\n\tat "));
+    }
+
+    @Test
+    public void testStringsAreEscaped() throws Exception {
+        final String message = "quote \" backslash \\ newline \n tab \t control \u0001 é € 😀";
+        final LogEvent event = Log4jLogEvent.newBuilder()
+                .setLoggerName("")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .setTimeMillis(-1)
+                .build();
+        final String encoded = EcsLayout.newBuilder().build().toSerializable(event);
+
+        assertEquals(1, encoded.split("\n").length);
+        final JsonNode document = MAPPER.readTree(encoded.getBytes(StandardCharsets.UTF_8));
+        assertEquals(message, document.get("message").asText());
+        assertEquals("1969-12-31T23:59:59.999Z", document.get("@timestamp").asText());
+        assertFalse(document.has("log.logger"));
+        assertFalse(document.has("labels"));
+        assertFalse(document.has("service.name"));
+    }
+}
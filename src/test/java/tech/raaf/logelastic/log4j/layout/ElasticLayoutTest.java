@@ -0,0 +1,175 @@
+package tech.raaf.logelastic.log4j.layout;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.DefaultThreadContextStack;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ElasticLayoutTest {
+
+    @Test
+    public void testStreamingMatchesJackson() {
+        final LogEvent event = richEvent();
+        for (final boolean compact : new boolean[]{true, false}) {
+            for (final boolean properties : new boolean[]{true, false}) {
+                final ElasticLayout streaming = layout(compact, properties, true);
+                final ElasticLayout jackson = layout(compact, properties, false);
+                assertTrue(streaming.isStreaming());
+                assertFalse(jackson.isStreaming());
+
+                final String expected = jackson.toSerializable(event);
+                assertEquals(expected, new String(streaming.toByteArray(event), StandardCharsets.UTF_8));
+                // The second event written by the same thread must not be preceded by a separator.
+                assertEquals(expected, streaming.toSerializable(event));
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingReadsMutableEventsDirectly() {
+        final MutableLogEvent event = new MutableLogEvent();
+        event.initFrom(richEvent());
+        event.setMessage(new ParameterizedMessage("{} and {}", "this", "that"));
+
+        final ElasticLayout streaming = layout(true, true, true);
+        final ElasticLayout jackson = layout(true, true, false);
+        final String encoded = new String(streaming.toByteArray(event), StandardCharsets.UTF_8);
+        assertEquals(jackson.toSerializable(event), encoded);
+        assertTrue(encoded.contains("\"message\":\"this and that\""));
+    }
+
+    @Test
+    public void testCompactStacktrace() throws Exception {
+        final ElasticLayout layout = ElasticLayout.newBuilder()
+                .setCompact(true)
+                .setCompactStacktrace(true)
+                .setMaxStackFrames(3)
+                .setStacktraceFilter("org.junit., sun.reflect.")
+                .build();
+        final ObjectMapper mapper = new ObjectMapper();
+        final JsonNode first = mapper.readTree(layout.toByteArray(failure(1))).get("thrown");
+        final JsonNode second = mapper.readTree(layout.toByteArray(failure(2))).get("thrown");
+        final JsonNode other = mapper.readTree(layout.toByteArray(richEvent())).get("thrown");
+
+        assertEquals("java.lang.IllegalStateException", first.get("name").asText());
+        assertEquals("attempt 1", first.get("message").asText());
+        assertEquals(16, first.get("stackHash").asText().length());
+        assertEquals(first.get("stackHash"), second.get("stackHash"));
+        assertNotEquals(first.get("stackHash"), other.get("stackHash"));
+        assertFalse(first.has("extendedStackTrace"));
+
+        final String trace = first.get("stackTrace").asText();
+        assertTrue(trace.startsWith("java.lang.IllegalStateException: attempt 1\n\tat " + ElasticLayoutTest.class.getName() + ".failure("));
+        assertEquals(3, count(trace, "\tat "));
+        assertTrue(trace.contains(" frames omitted\n"));
+        assertTrue(trace.contains("\nCaused by: java.io.IOException: disk\n"));
+        assertTrue(trace.matches("(?s).*\t\\.\\.\\. \\d+ more$"));
+        assertFalse(trace.contains("org.junit."));
+
+        final CompactThrowable compact = new CompactThrowable(3, new String[0]);
+        final Throwable thrown = failure(3).getThrown();
+        assertSame(compact.encode(thrown), compact.encode(thrown));
+    }
+
+    @Test
+    public void testFieldLimits() throws Exception {
+        final ElasticLayout layout = ElasticLayout.newBuilder()
+                .setCompact(true)
+                .setProperties(true)
+                .setMaxMessageLength(10)
+                .setMaxValueLength(4)
+                .build();
+        final ObjectMapper mapper = new ObjectMapper();
+        final JsonNode limited = mapper.readTree(layout.toByteArray(richEvent()));
+        assertEquals("line one\nl", limited.get("message").asText());
+        assertEquals("ünïc", limited.get("contextMap").get("user").asText());
+        assertEquals("failed", limited.get("thrown").get("message").asText());
+        assertTrue(limited.get("truncated").asBoolean());
+        final LogEvent fitting = new Log4jLogEvent.Builder(failure(1)).setContextStack(ThreadContext.EMPTY_STACK).build();
+        assertFalse(mapper.readTree(layout.toByteArray(fitting)).has("truncated"));
+
+        // A runaway message is cut to the document limit, and the frames that don't fit anymore are left out.
+        final StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            huge.append("{\"n\":\"\u00e9\"}");
+        }
+        final ElasticLayout bounded = ElasticLayout.newBuilder().setCompact(true).setMaxDocumentBytes(8192).build();
+        final LogEvent runaway = new Log4jLogEvent.Builder(failure(1)).setMessage(new SimpleMessage(huge.toString())).build();
+        final byte[] document = bounded.toByteArray(runaway);
+        assertTrue(document.length <= 8192, "document of " + document.length + " bytes");
+        final JsonNode cut = mapper.readTree(document);
+        assertTrue(huge.toString().startsWith(cut.get("message").asText()));
+        assertTrue(cut.get("message").asText().length() > 1000);
+        assertTrue(cut.get("thrown").get("extendedStackTrace").size() < failure(1).getThrownProxy().getExtendedStackTrace().length);
+        assertTrue(cut.get("truncated").asBoolean());
+    }
+
+    private static LogEvent failure(final int attempt) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test.logger")
+                .setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("failed"))
+                .setThrown(new IllegalStateException("attempt " + attempt, new java.io.IOException("disk")))
+                .build();
+    }
+
+    private static int count(final String text, final String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static ElasticLayout layout(final boolean compact, final boolean properties, final boolean streaming) {
+        return ElasticLayout.newBuilder()
+                .setCompact(compact)
+                .setLocationInfo(true)
+                .setProperties(properties)
+                .setStreaming(streaming)
+                .build();
+    }
+
+    private static LogEvent richEvent() {
+        final SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("user", "ünïcode \"quoted\"");
+        contextData.putValue("count", 3);
+        final DefaultThreadContextStack contextStack = new DefaultThreadContextStack(true);
+        contextStack.push("outer");
+        final Exception thrown = new IllegalStateException("failed", new RuntimeException("cause"));
+        thrown.addSuppressed(new Exception("suppressed"));
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test.logger")
+                .setLoggerFqcn(ElasticLayoutTest.class.getName())
+                .setLevel(Level.WARN)
+                .setMarker(MarkerManager.getMarker("CHILD").setParents(MarkerManager.getMarker("PARENT")))
+                .setMessage(new SimpleMessage("line one\nline two\t\u0001"))
+                .setThreadName("worker")
+                .setThreadId(42)
+                .setThreadPriority(7)
+                .setTimeMillis(1500000000000L)
+                .setContextData(contextData)
+                .setContextStack(contextStack)
+                .setThrown(thrown)
+                .setSource(new StackTraceElement("Some", "method", "Some.java", 12))
+                .setIncludeLocation(true)
+                .build();
+    }
+}